@@ -20,13 +20,21 @@ package org.apache.felix.cm.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
 
 
 /**
@@ -34,16 +42,41 @@ import org.osgi.framework.Constants;
  * underlying actual {@link PersistenceManager} implementation. All API calls
  * are also (or primarily) routed through a local cache of dictionaries indexed
  * by the <code>service.pid</code>.
+ * <p>
+ * In addition the cached dictionaries are indexed by the values of the
+ * {@link #INDEXED_PROPERTIES} such that the dictionaries having a given value
+ * for one of these properties can be found without inspecting all dictionaries.
  */
 class CachingPersistenceManagerProxy implements PersistenceManager
 {
 
+    /**
+     * The properties for which the cached dictionaries are indexed by
+     * {@link #getDictionaries(String, String)}.
+     */
+    static final String[] INDEXED_PROPERTIES =
+        { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID, ConfigurationAdmin.SERVICE_BUNDLELOCATION };
+
     /** the actual PersistenceManager */
     private final PersistenceManager pm;
 
     /** cached dictionaries */
     private final Hashtable cache;
 
+    /**
+     * indexes of the cached dictionaries, one for each of the
+     * {@link #INDEXED_PROPERTIES}, mapping a string value of the property to
+     * the set of PIDs of the dictionaries having this value
+     */
+    private final Map[] indexes;
+
+    /**
+     * PIDs of the cached dictionaries having a value other than a string
+     * for one of the {@link #INDEXED_PROPERTIES}. Such values are not indexed
+     * and the dictionaries are always considered candidates.
+     */
+    private final Set[] unindexed;
+
     /**
      * Indicates whether the getDictionaries method has already been called
      * and the cache is complete with respect to the contents of the underlying
@@ -60,6 +93,13 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     {
         this.pm = pm;
         this.cache = new Hashtable();
+        this.indexes = new Map[INDEXED_PROPERTIES.length];
+        this.unindexed = new Set[INDEXED_PROPERTIES.length];
+        for ( int i = 0; i < INDEXED_PROPERTIES.length; i++ )
+        {
+            this.indexes[i] = new HashMap();
+            this.unindexed[i] = new HashSet();
+        }
     }
 
 
@@ -70,7 +110,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public void delete( String pid ) throws IOException
     {
-        cache.remove( pid );
+        uncache( pid );
         pm.delete( pid );
     }
 
@@ -98,22 +138,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public Enumeration getDictionaries() throws IOException
     {
-        // if not fully loaded, call back to the underlying persistence
-        // manager and cach all dictionaries whose service.pid is set
-        if ( !fullyLoaded )
-        {
-            Enumeration fromPm = pm.getDictionaries();
-            while ( fromPm.hasMoreElements() )
-            {
-                Dictionary next = ( Dictionary ) fromPm.nextElement();
-                String pid = ( String ) next.get( Constants.SERVICE_PID );
-                if ( pid != null )
-                {
-                    cache.put( pid, next );
-                }
-            }
-            fullyLoaded = true;
-        }
+        loadAll();
 
         return new Enumeration()
         {
@@ -134,6 +159,44 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     }
 
 
+    /**
+     * Returns an <code>Enumeration</code> of <code>Dictionary</code> objects
+     * like {@link #getDictionaries()} but only containing dictionaries which
+     * may have the given value for the given property. The dictionaries are
+     * looked up in the index instead of inspecting all dictionaries.
+     * <p>
+     * The returned dictionaries must still be checked against the property
+     * value because dictionaries whose property value is not a string are
+     * always returned.
+     *
+     * @param key One of the {@link #INDEXED_PROPERTIES}
+     * @param value The value of the property
+     * @throws IllegalArgumentException if the property is not indexed
+     */
+    public Enumeration getDictionaries( final String key, final String value ) throws IOException
+    {
+        final int idx = indexOf( key );
+        if ( idx < 0 )
+        {
+            throw new IllegalArgumentException( "Property " + key + " is not indexed" );
+        }
+
+        loadAll();
+
+        final List result = new ArrayList();
+        synchronized ( this )
+        {
+            final Set pids = ( Set ) indexes[idx].get( value );
+            if ( pids != null )
+            {
+                addCopies( result, pids );
+            }
+            addCopies( result, unindexed[idx] );
+        }
+        return Collections.enumeration( result );
+    }
+
+
     /**
      * Returns the dictionary for the given PID or <code>null</code> if no
      * such dictionary is stored by the underyling persistence manager. This
@@ -152,7 +215,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
             loaded = pm.load( pid );
             if ( loaded != null )
             {
-                cache.put( pid, loaded );
+                cache( pid, loaded );
             }
         }
         return copy( loaded );
@@ -171,7 +234,135 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     public void store( String pid, Dictionary properties ) throws IOException
     {
         pm.store( pid, properties );
-        cache.put( pid, copy( properties ) );
+        cache( pid, copy( properties ) );
+    }
+
+
+    /**
+     * If not fully loaded, calls back to the underlying persistence manager
+     * and caches all dictionaries whose service.pid is set.
+     */
+    private void loadAll() throws IOException
+    {
+        if ( !fullyLoaded )
+        {
+            Enumeration fromPm = pm.getDictionaries();
+            while ( fromPm.hasMoreElements() )
+            {
+                Dictionary next = ( Dictionary ) fromPm.nextElement();
+                String pid = ( String ) next.get( Constants.SERVICE_PID );
+                if ( pid != null )
+                {
+                    cache( pid, next );
+                }
+            }
+            fullyLoaded = true;
+        }
+    }
+
+
+    /**
+     * Puts the dictionary into the cache and updates the indexes.
+     */
+    private synchronized void cache( final String pid, final Dictionary properties )
+    {
+        final Dictionary old = ( Dictionary ) cache.put( pid, properties );
+        if ( old != null )
+        {
+            index( pid, old, false );
+        }
+        index( pid, properties, true );
+    }
+
+
+    /**
+     * Removes the dictionary from the cache and the indexes.
+     */
+    private synchronized void uncache( final String pid )
+    {
+        final Dictionary old = ( Dictionary ) cache.remove( pid );
+        if ( old != null )
+        {
+            index( pid, old, false );
+        }
+    }
+
+
+    /**
+     * Adds the PID to or removes it from the indexes for the values of the
+     * {@link #INDEXED_PROPERTIES} in the dictionary.
+     */
+    private void index( final String pid, final Dictionary properties, final boolean add )
+    {
+        for ( int i = 0; i < INDEXED_PROPERTIES.length; i++ )
+        {
+            final Object value = properties.get( INDEXED_PROPERTIES[i] );
+            if ( value instanceof String )
+            {
+                Set pids = ( Set ) indexes[i].get( value );
+                if ( add )
+                {
+                    if ( pids == null )
+                    {
+                        pids = new HashSet();
+                        indexes[i].put( value, pids );
+                    }
+                    pids.add( pid );
+                }
+                else if ( pids != null )
+                {
+                    pids.remove( pid );
+                    if ( pids.isEmpty() )
+                    {
+                        indexes[i].remove( value );
+                    }
+                }
+            }
+            else if ( value != null )
+            {
+                if ( add )
+                {
+                    unindexed[i].add( pid );
+                }
+                else
+                {
+                    unindexed[i].remove( pid );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds copies of the cached dictionaries with the given PIDs to the list.
+     */
+    private void addCopies( final List list, final Set pids )
+    {
+        for ( Iterator pi = pids.iterator(); pi.hasNext(); )
+        {
+            final Dictionary cached = ( Dictionary ) cache.get( pi.next() );
+            if ( cached != null )
+            {
+                list.add( copy( cached ) );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the index of the property in the {@link #INDEXED_PROPERTIES}
+     * or -1 if the property is not indexed.
+     */
+    static int indexOf( final String key )
+    {
+        for ( int i = 0; i < INDEXED_PROPERTIES.length; i++ )
+        {
+            if ( INDEXED_PROPERTIES[i].equals( key ) )
+            {
+                return i;
+            }
+        }
+        return -1;
     }
 
 
@@ -653,10 +653,23 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
         List configList = new ArrayList();
 
+        // use the index of the persistence manager proxies if the filter
+        // requires a specific PID, factory PID or bundle location
+        final String[] indexedTerm = getIndexedTerm( filterString );
+
         PersistenceManager[] pmList = getPersistenceManagers();
         for ( int i = 0; i < pmList.length; i++ )
         {
-            Enumeration configs = pmList[i].getDictionaries();
+            final Enumeration configs;
+            if ( indexedTerm != null && pmList[i] instanceof CachingPersistenceManagerProxy )
+            {
+                configs = ( ( CachingPersistenceManagerProxy ) pmList[i] ).getDictionaries( indexedTerm[0],
+                    indexedTerm[1] );
+            }
+            else
+            {
+                configs = pmList[i].getDictionaries();
+            }
             while ( configs.hasMoreElements() )
             {
                 final Dictionary config = ( Dictionary ) configs.nextElement();
@@ -856,6 +869,120 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     }
 
 
+    /**
+     * Returns the property and value of an equality term of the filter which
+     * every matching configuration must satisfy, if the property is one of the
+     * {@link CachingPersistenceManagerProxy#INDEXED_PROPERTIES}. Such a term
+     * is either the filter itself or one of the operands of a top level
+     * <code>&amp;</code> filter, in which case the term for the property
+     * first in the list of indexed properties is returned.
+     *
+     * @param filterString The filter to analyze, may be <code>null</code>.
+     * @return An array with the property name and the value or
+     *      <code>null</code> if the filter has no such term.
+     */
+    static String[] getIndexedTerm( String filterString )
+    {
+        if ( filterString == null )
+        {
+            return null;
+        }
+
+        final String filter = filterString.trim();
+        if ( !filter.startsWith( "(&" ) || !filter.endsWith( ")" ) )
+        {
+            return getIndexedSimpleTerm( filter );
+        }
+
+        String[] result = null;
+        int resultIndex = Integer.MAX_VALUE;
+        int depth = 0;
+        int start = -1;
+        for ( int i = 2; i < filter.length() - 1; i++ )
+        {
+            final char c = filter.charAt( i );
+            if ( c == '\\' )
+            {
+                i++;
+            }
+            else if ( c == '(' )
+            {
+                if ( depth++ == 0 )
+                {
+                    start = i;
+                }
+            }
+            else if ( c == ')' && --depth == 0 )
+            {
+                final String[] term = getIndexedSimpleTerm( filter.substring( start, i + 1 ) );
+                if ( term != null && CachingPersistenceManagerProxy.indexOf( term[0] ) < resultIndex )
+                {
+                    result = term;
+                    resultIndex = CachingPersistenceManagerProxy.indexOf( term[0] );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the property and value if the filter is a plain equality
+     * filter like <code>(service.pid=value)</code> for one of the indexed
+     * properties. Substring filters and values with surrounding whitespace
+     * are not considered.
+     */
+    private static String[] getIndexedSimpleTerm( final String filter )
+    {
+        final int eq = filter.indexOf( '=' );
+        if ( !filter.startsWith( "(" ) || !filter.endsWith( ")" ) || eq < 0 )
+        {
+            return null;
+        }
+
+        // the property name is case insensitive
+        final String attr = filter.substring( 1, eq ).trim();
+        String key = null;
+        for ( int i = 0; i < CachingPersistenceManagerProxy.INDEXED_PROPERTIES.length; i++ )
+        {
+            if ( CachingPersistenceManagerProxy.INDEXED_PROPERTIES[i].equalsIgnoreCase( attr ) )
+            {
+                key = CachingPersistenceManagerProxy.INDEXED_PROPERTIES[i];
+                break;
+            }
+        }
+        if ( key == null )
+        {
+            return null;
+        }
+
+        final StringBuffer value = new StringBuffer();
+        for ( int i = eq + 1; i < filter.length() - 1; i++ )
+        {
+            final char c = filter.charAt( i );
+            if ( c == '\\' && i + 1 < filter.length() - 1 )
+            {
+                value.append( filter.charAt( ++i ) );
+            }
+            else if ( c == '*' || c == '(' || c == ')' || c == '\\' )
+            {
+                return null;
+            }
+            else
+            {
+                value.append( c );
+            }
+        }
+        if ( value.length() == 0 || Character.isWhitespace( value.charAt( 0 ) )
+            || Character.isWhitespace( value.charAt( value.length() - 1 ) ) )
+        {
+            return null;
+        }
+        return new String[]
+            { key, value.toString() };
+    }
+
+
     private ServiceReference getServiceReference()
     {
         ServiceRegistration reg = configurationAdminRegistration;
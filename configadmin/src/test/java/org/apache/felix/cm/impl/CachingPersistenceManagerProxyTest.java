@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.MockPersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+public class CachingPersistenceManagerProxyTest extends TestCase
+{
+
+    private static final String FACTORY_PID = "test.factory";
+
+    private static final String LOCATION = "test://location";
+
+
+    public void test_index_of_stored_dictionaries() throws IOException
+    {
+        final MockPersistenceManager mpm = new MockPersistenceManager();
+        mpm.store( "test.pid.1", createConfig( "test.pid.1", FACTORY_PID, LOCATION ) );
+        mpm.store( "test.pid.2", createConfig( "test.pid.2", FACTORY_PID, null ) );
+        mpm.store( "test.pid.3", createConfig( "test.pid.3", null, LOCATION ) );
+
+        final CachingPersistenceManagerProxy pm = new CachingPersistenceManagerProxy( mpm );
+        assertEquals( set( "test.pid.2" ), pids( pm.getDictionaries( Constants.SERVICE_PID, "test.pid.2" ) ) );
+        assertEquals( set( "test.pid.1", "test.pid.2" ), pids( pm.getDictionaries(
+            ConfigurationAdmin.SERVICE_FACTORYPID, FACTORY_PID ) ) );
+        assertEquals( set( "test.pid.1", "test.pid.3" ), pids( pm.getDictionaries(
+            ConfigurationAdmin.SERVICE_BUNDLELOCATION, LOCATION ) ) );
+        assertEquals( set(), pids( pm.getDictionaries( Constants.SERVICE_PID, "test.pid.4" ) ) );
+
+        // update and delete configurations through the proxy
+        pm.store( "test.pid.1", createConfig( "test.pid.1", FACTORY_PID, null ) );
+        pm.delete( "test.pid.2" );
+        pm.store( "test.pid.4", createConfig( "test.pid.4", FACTORY_PID, LOCATION ) );
+
+        assertEquals( set( "test.pid.1", "test.pid.4" ), pids( pm.getDictionaries(
+            ConfigurationAdmin.SERVICE_FACTORYPID, FACTORY_PID ) ) );
+        assertEquals( set( "test.pid.3", "test.pid.4" ), pids( pm.getDictionaries(
+            ConfigurationAdmin.SERVICE_BUNDLELOCATION, LOCATION ) ) );
+        assertEquals( set(), pids( pm.getDictionaries( Constants.SERVICE_PID, "test.pid.2" ) ) );
+    }
+
+
+    public void test_non_string_values_are_candidates() throws IOException
+    {
+        final Dictionary config = createConfig( "test.pid.1", null, null );
+        config.put( ConfigurationAdmin.SERVICE_FACTORYPID, new String[]
+            { FACTORY_PID } );
+
+        final CachingPersistenceManagerProxy pm = new CachingPersistenceManagerProxy( new MockPersistenceManager() );
+        pm.store( "test.pid.1", config );
+
+        assertEquals( set( "test.pid.1" ), pids( pm.getDictionaries( ConfigurationAdmin.SERVICE_FACTORYPID,
+            "other.factory" ) ) );
+    }
+
+
+    public void test_unindexed_property()
+    {
+        final CachingPersistenceManagerProxy pm = new CachingPersistenceManagerProxy( new MockPersistenceManager() );
+        try
+        {
+            pm.getDictionaries( "foo", "bar" );
+            fail( "Expected IllegalArgumentException" );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // expected
+        }
+        catch ( IOException ioe )
+        {
+            fail( "Unexpected IOException: " + ioe );
+        }
+    }
+
+
+    private static Dictionary createConfig( final String pid, final String factoryPid, final String location )
+    {
+        final Dictionary config = new Hashtable();
+        config.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            config.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        if ( location != null )
+        {
+            config.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, location );
+        }
+        return config;
+    }
+
+
+    private static Set pids( final Enumeration configs )
+    {
+        final Set pids = new HashSet();
+        while ( configs.hasMoreElements() )
+        {
+            pids.add( ( ( Dictionary ) configs.nextElement() ).get( Constants.SERVICE_PID ) );
+        }
+        return pids;
+    }
+
+
+    private static Set set( final String... values )
+    {
+        final Set set = new HashSet();
+        for ( int i = 0; i < values.length; i++ )
+        {
+            set.add( values[i] );
+        }
+        return set;
+    }
+}
@@ -261,6 +261,36 @@ public class ConfigurationManagerTest extends TestCase
     }
 
 
+    public void testGetIndexedTerm()
+    {
+        assertTerm( "service.pid", "a.b", "(service.pid=a.b)" );
+        assertTerm( "service.factoryPid", "a.b", " (SERVICE.FACTORYPID=a.b) " );
+        assertTerm( "service.bundleLocation", "file:/x(1)", "(service.bundleLocation=file:/x\\(1\\))" );
+        assertTerm( "service.pid", "a.b", "(&(service.factoryPid=a)(x=y)(service.pid=a.b))" );
+        assertTerm( "service.factoryPid", "a", "(&(|(service.pid=b)(service.pid=c))(service.factoryPid=a))" );
+
+        assertNull( ConfigurationManager.getIndexedTerm( null ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(x=y)" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(service.pid=*)" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(service.pid=a*)" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(service.pid~=a)" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(service.pid>=a)" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(service.pid= a)" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(!(service.pid=a))" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(|(service.pid=a)(service.pid=b))" ) );
+        assertNull( ConfigurationManager.getIndexedTerm( "(&(x=y)(!(service.pid=a)))" ) );
+    }
+
+
+    private static void assertTerm( final String key, final String value, final String filter )
+    {
+        final String[] term = ConfigurationManager.getIndexedTerm( filter );
+        assertNotNull( filter, term );
+        assertEquals( key, term[0] );
+        assertEquals( value, term[1] );
+    }
+
+
     private static ConfigurationManager createConfigurationManager( final LogService logService )
     {
         ConfigurationManager configMgr = new ConfigurationManager();
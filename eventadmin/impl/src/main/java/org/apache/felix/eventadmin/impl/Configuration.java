@@ -83,6 +83,38 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * all handlers in exactly this package are ignored. If the string ends with a star,
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueueSize</tt> - The maximum number of
+ *          asynchronous events queued for each <tt>EventHandler</tt>.
+ * </p>
+ * The default value is 0, which delivers asynchronous events in the order of each
+ * posting thread. A positive value enables a queue per <tt>EventHandler</tt>, which
+ * is drained in batches by a thread of the pool, so slow handlers do not delay
+ * the delivery to other handlers. The metrics of the queues are available with
+ * the <tt>eventadmin:queues</tt> shell command.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueuePolicy</tt> - What to do if the
+ *          queue of an <tt>EventHandler</tt> is full.
+ * </p>
+ * With <tt>drop</tt>, the default, the event is not delivered to this handler.
+ * With <tt>timeout</tt>, the posting thread waits up to the configured
+ * <tt>Timeout</tt> for the queue to have space again before dropping the event.
+ * Threads of the event admin never wait, as this could deadlock the delivery.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.CallerThreadTimeout</tt> - Enforce the
+ *          timeout without handing the delivery to another thread?
+ * </p>
+ * The default is <tt>false</tt>, which delivers each event with a timeout using a
+ * thread of the pool while the calling thread waits. Setting this value to
+ * <tt>true</tt> delivers the events using the calling thread, and a single watchdog
+ * thread blacklists handlers exceeding the timeout. This avoids two thread switches
+ * per handler, but the calling thread is blocked until a timed out handler returns.
  *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
@@ -100,6 +132,9 @@ public class Configuration
     static final String PROP_REQUIRE_TOPIC = "org.apache.felix.eventadmin.RequireTopic";
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
+    static final String PROP_ASYNC_QUEUE_SIZE = "org.apache.felix.eventadmin.AsyncQueueSize";
+    static final String PROP_ASYNC_QUEUE_POLICY = "org.apache.felix.eventadmin.AsyncQueuePolicy";
+    static final String PROP_CALLER_THREAD_TIMEOUT = "org.apache.felix.eventadmin.CallerThreadTimeout";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -114,6 +149,12 @@ public class Configuration
 
     private int m_logLevel;
 
+    private int m_asyncQueueSize;
+
+    private boolean m_asyncQueueWait;
+
+    private boolean m_callerThreadTimeout;
+
     // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_sync_pool;
 
@@ -133,6 +174,9 @@ public class Configuration
 
     private ServiceRegistration m_managedServiceReg;
 
+    // The registration of the queue metrics command
+    private ServiceRegistration m_queueMetricsReg;
+
     public Configuration( BundleContext bundleContext )
     {
         m_bundleContext = bundleContext;
@@ -239,6 +283,11 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    m_bundleContext.getProperty(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+            m_asyncQueueWait = "timeout".equals(m_bundleContext.getProperty(PROP_ASYNC_QUEUE_POLICY));
+            m_callerThreadTimeout = getBooleanProperty(
+                m_bundleContext.getProperty(PROP_CALLER_THREAD_TIMEOUT), false);
         }
         else
         {
@@ -264,6 +313,10 @@ public class Configuration
                     config.get(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    config.get(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+            m_asyncQueueWait = "timeout".equals(config.get(PROP_ASYNC_QUEUE_POLICY));
+            m_callerThreadTimeout = getBooleanProperty(config.get(PROP_CALLER_THREAD_TIMEOUT), false);
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -272,6 +325,15 @@ public class Configuration
         }
     }
 
+    /**
+     * The time to wait for space in a full asynchronous queue, 0 to drop
+     * the event right away.
+     */
+    private long getAsyncQueueTimeout()
+    {
+        return m_asyncQueueWait ? m_timeout : 0;
+    }
+
     private void startOrUpdate()
     {
         LogWrapper.getLogger().setLogLevel(m_logLevel);
@@ -283,6 +345,10 @@ public class Configuration
             PROP_TIMEOUT + "=" + m_timeout);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_SIZE + "=" + m_asyncQueueSize);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_CALLER_THREAD_TIMEOUT + "=" + m_callerThreadTimeout);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
@@ -313,7 +379,10 @@ public class Configuration
                     m_async_pool,
                     m_timeout,
                     m_ignoreTimeout,
-                    m_requireTopic);
+                    m_requireTopic,
+                    m_asyncQueueSize,
+                    getAsyncQueueTimeout(),
+                    m_callerThreadTimeout);
 
             // Finally, adapt the outside events to our kind of events as per spec
             adaptEvents(m_admin);
@@ -326,7 +395,23 @@ public class Configuration
         }
         else
         {
-            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic);
+            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic,
+                    m_asyncQueueSize, getAsyncQueueTimeout(), m_callerThreadTimeout);
+        }
+
+        // the queue metrics are only available with a queue per handler
+        if ( m_asyncQueueSize > 0 && m_queueMetricsReg == null )
+        {
+            final Dictionary props = new Hashtable();
+            props.put("osgi.command.scope", "eventadmin");
+            props.put("osgi.command.function", new String[] {"queues"});
+            m_queueMetricsReg = m_bundleContext.registerService(QueueMetricsCommand.class.getName(),
+                    new QueueMetricsCommand(m_admin), props);
+        }
+        else if ( m_asyncQueueSize == 0 && m_queueMetricsReg != null )
+        {
+            m_queueMetricsReg.unregister();
+            m_queueMetricsReg = null;
         }
 
     }
@@ -355,6 +440,11 @@ public class Configuration
                 m_managedServiceReg.unregister();
                 m_managedServiceReg = null;
             }
+            if ( m_queueMetricsReg != null )
+            {
+                m_queueMetricsReg.unregister();
+                m_queueMetricsReg = null;
+            }
             // We need to unregister manually
             if ( m_registration != null )
             {
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl;
+
+import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
+
+/**
+ * The <tt>eventadmin:queues</tt> shell command, which lists the metrics
+ * of the asynchronous queue of each event handler. It is registered if
+ * the asynchronous delivery uses a queue per handler.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class QueueMetricsCommand
+{
+    private final EventAdminImpl m_admin;
+
+    public QueueMetricsCommand(final EventAdminImpl admin)
+    {
+        m_admin = admin;
+    }
+
+    public String queues()
+    {
+        return m_admin.getQueueMetrics();
+    }
+}
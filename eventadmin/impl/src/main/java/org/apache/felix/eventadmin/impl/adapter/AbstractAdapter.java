@@ -18,6 +18,7 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
+import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.EventAdmin;
 
@@ -51,5 +52,32 @@ public abstract class AbstractAdapter
         return m_admin;
     }
 
+    /**
+     * Check if an event with the given topic might be delivered to a
+     * handler. Adapters use this to avoid assembling events which are
+     * not delivered at all.
+     *
+     * @param topic The topic of the event.
+     * @return <tt>false</tt> if there is no handler for the topic or the
+     *         event admin is stopped.
+     */
+    protected boolean hasHandlers(final String topic)
+    {
+        final EventAdmin admin = m_admin;
+        if ( admin instanceof EventAdminImpl )
+        {
+            try
+            {
+                return ((EventAdminImpl)admin).hasHandlers(topic);
+            }
+            catch (IllegalStateException e)
+            {
+                // This is o.k. - indicates that we are stopped.
+                return false;
+            }
+        }
+        return true;
+    }
+
     public abstract void destroy(final BundleContext bundleContext);
 }
@@ -18,8 +18,8 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
@@ -36,6 +36,15 @@ import org.osgi.service.event.EventConstants;
  */
 public class BundleEventAdapter extends AbstractAdapter implements BundleListener
 {
+    private static final String TOPIC_PREFIX = BundleEvent.class.getName().replace('.', '/') + '/';
+    private static final String TOPIC_INSTALLED = TOPIC_PREFIX + "INSTALLED";
+    private static final String TOPIC_STARTED = TOPIC_PREFIX + "STARTED";
+    private static final String TOPIC_STOPPED = TOPIC_PREFIX + "STOPPED";
+    private static final String TOPIC_UPDATED = TOPIC_PREFIX + "UPDATED";
+    private static final String TOPIC_UNINSTALLED = TOPIC_PREFIX + "UNINSTALLED";
+    private static final String TOPIC_RESOLVED = TOPIC_PREFIX + "RESOLVED";
+    private static final String TOPIC_UNRESOLVED = TOPIC_PREFIX + "UNRESOLVED";
+
     /**
      * The constructor of the adapter. This will register the adapter with the given
      * context as a <tt>BundleListener</tt> and subsequently, will post received
@@ -62,55 +71,60 @@ public class BundleEventAdapter extends AbstractAdapter implements BundleListene
      */
     public void bundleChanged(final BundleEvent event)
     {
-        final Dictionary properties = new Hashtable();
-
-        properties.put(EventConstants.EVENT, event);
-
-        properties.put("bundle.id", new Long(event.getBundle()
-            .getBundleId()));
-
-        final String symbolicName = event.getBundle().getSymbolicName();
-
-        if (null != symbolicName)
-        {
-            properties.put(EventConstants.BUNDLE_SYMBOLICNAME,
-                symbolicName);
-        }
-
-        properties.put("bundle", event.getBundle());
-
-        final StringBuffer topic = new StringBuffer(BundleEvent.class
-            .getName().replace('.', '/')).append('/');
+        final String topic;
 
         switch (event.getType())
         {
             case BundleEvent.INSTALLED:
-                topic.append("INSTALLED");
+                topic = TOPIC_INSTALLED;
                 break;
             case BundleEvent.STARTED:
-                topic.append("STARTED");
+                topic = TOPIC_STARTED;
                 break;
             case BundleEvent.STOPPED:
-                topic.append("STOPPED");
+                topic = TOPIC_STOPPED;
                 break;
             case BundleEvent.UPDATED:
-                topic.append("UPDATED");
+                topic = TOPIC_UPDATED;
                 break;
             case BundleEvent.UNINSTALLED:
-                topic.append("UNINSTALLED");
+                topic = TOPIC_UNINSTALLED;
                 break;
             case BundleEvent.RESOLVED:
-                topic.append("RESOLVED");
+                topic = TOPIC_RESOLVED;
                 break;
             case BundleEvent.UNRESOLVED:
-                topic.append("UNRESOLVED");
+                topic = TOPIC_UNRESOLVED;
                 break;
             default:
                 return; // IGNORE EVENT
         }
 
+        // don't assemble the event if nobody is interested
+        if (!hasHandlers(topic))
+        {
+            return;
+        }
+
+        final Map properties = new HashMap(8);
+
+        properties.put(EventConstants.EVENT, event);
+
+        properties.put("bundle.id", new Long(event.getBundle()
+            .getBundleId()));
+
+        final String symbolicName = event.getBundle().getSymbolicName();
+
+        if (null != symbolicName)
+        {
+            properties.put(EventConstants.BUNDLE_SYMBOLICNAME,
+                symbolicName);
+        }
+
+        properties.put("bundle", event.getBundle());
+
         try {
-            getEventAdmin().postEvent(new Event(topic.toString(), properties));
+            getEventAdmin().postEvent(new Event(topic, properties));
         } catch (IllegalStateException e) {
             // This is o.k. - indicates that we are stopped.
         }
@@ -18,8 +18,8 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -37,6 +37,14 @@ import org.osgi.service.event.EventConstants;
  */
 public class FrameworkEventAdapter extends AbstractAdapter implements FrameworkListener
 {
+    private static final String TOPIC_PREFIX = FrameworkEvent.class.getName().replace('.', '/') + '/';
+    private static final String TOPIC_STARTED = TOPIC_PREFIX + "STARTED";
+    private static final String TOPIC_ERROR = TOPIC_PREFIX + "ERROR";
+    private static final String TOPIC_PACKAGES_REFRESHED = TOPIC_PREFIX + "PACKAGES_REFRESHED";
+    private static final String TOPIC_STARTLEVEL_CHANGED = TOPIC_PREFIX + "STARTLEVEL_CHANGED";
+    private static final String TOPIC_WARNING = TOPIC_PREFIX + "WARNING";
+    private static final String TOPIC_INFO = TOPIC_PREFIX + "INFO";
+
     /**
      * The constructor of the adapter. This will register the adapter with the
      * given context as a <tt>FrameworkListener</tt> and subsequently, will
@@ -64,7 +72,39 @@ public class FrameworkEventAdapter extends AbstractAdapter implements FrameworkL
      */
     public void frameworkEvent(final FrameworkEvent event)
     {
-        final Dictionary properties = new Hashtable();
+        final String topic;
+
+        switch (event.getType())
+        {
+            case FrameworkEvent.STARTED:
+                topic = TOPIC_STARTED;
+                break;
+            case FrameworkEvent.ERROR:
+                topic = TOPIC_ERROR;
+                break;
+            case FrameworkEvent.PACKAGES_REFRESHED:
+                topic = TOPIC_PACKAGES_REFRESHED;
+                break;
+            case FrameworkEvent.STARTLEVEL_CHANGED:
+                topic = TOPIC_STARTLEVEL_CHANGED;
+                break;
+            case FrameworkEvent.WARNING:
+                topic = TOPIC_WARNING;
+                break;
+            case FrameworkEvent.INFO:
+                topic = TOPIC_INFO;
+                break;
+            default:
+                return; // IGNORE EVENT
+        }
+
+        // don't assemble the event if nobody is interested
+        if (!hasHandlers(topic))
+        {
+            return;
+        }
+
+        final Map properties = new HashMap(16);
 
         properties.put(EventConstants.EVENT, event);
 
@@ -103,36 +143,8 @@ public class FrameworkEventAdapter extends AbstractAdapter implements FrameworkL
             properties.put(EventConstants.EXCEPTION, thrown);
         }
 
-        final StringBuffer topic = new StringBuffer(
-            FrameworkEvent.class.getName().replace('.', '/'))
-            .append('/');
-
-        switch (event.getType())
-        {
-            case FrameworkEvent.STARTED:
-                topic.append("STARTED");
-                break;
-            case FrameworkEvent.ERROR:
-                topic.append("ERROR");
-                break;
-            case FrameworkEvent.PACKAGES_REFRESHED:
-                topic.append("PACKAGES_REFRESHED");
-                break;
-            case FrameworkEvent.STARTLEVEL_CHANGED:
-                topic.append("STARTLEVEL_CHANGED");
-                break;
-            case FrameworkEvent.WARNING:
-                topic.append("WARNING");
-                break;
-            case FrameworkEvent.INFO:
-                topic.append("INFO");
-                break;
-            default:
-                return; // IGNORE EVENT
-        }
-
         try {
-            getEventAdmin().postEvent(new Event(topic.toString(), properties));
+            getEventAdmin().postEvent(new Event(topic, properties));
         } catch(IllegalStateException e) {
             // This is o.k. - indicates that we are stopped.
         }
@@ -18,8 +18,8 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.Bundle;
@@ -47,6 +47,14 @@ import org.osgi.service.event.EventConstants;
  */
 public class LogEventAdapter extends AbstractAdapter implements ServiceListener
 {
+    // The topics are literals as the LogEntry class might not be available
+    private static final String TOPIC_PREFIX = "org/osgi/service/log/LogEntry/";
+    private static final String TOPIC_LOG_ERROR = TOPIC_PREFIX + "LOG_ERROR";
+    private static final String TOPIC_LOG_WARNING = TOPIC_PREFIX + "LOG_WARNING";
+    private static final String TOPIC_LOG_INFO = TOPIC_PREFIX + "LOG_INFO";
+    private static final String TOPIC_LOG_DEBUG = TOPIC_PREFIX + "LOG_DEBUG";
+    private static final String TOPIC_LOG_OTHER = TOPIC_PREFIX + "LOG_OTHER";
+
     // The internal lock for this object used instead synchronized(this)
     private final Object m_lock = new Object();
 
@@ -152,7 +160,34 @@ public class LogEventAdapter extends AbstractAdapter implements ServiceListener
                     // compendium is taking place (i.e., the log entry is adapted to
                     // an event and posted via the EventAdmin)
 
-                    final Dictionary properties = new Hashtable();
+                    final String topic;
+
+                    switch (entry.getLevel())
+                    {
+                        case org.osgi.service.log.LogService.LOG_ERROR:
+                            topic = TOPIC_LOG_ERROR;
+                            break;
+                        case org.osgi.service.log.LogService.LOG_WARNING:
+                            topic = TOPIC_LOG_WARNING;
+                            break;
+                        case org.osgi.service.log.LogService.LOG_INFO:
+                            topic = TOPIC_LOG_INFO;
+                            break;
+                        case org.osgi.service.log.LogService.LOG_DEBUG:
+                            topic = TOPIC_LOG_DEBUG;
+                            break;
+                        default:
+                            topic = TOPIC_LOG_OTHER;
+                            break;
+                    }
+
+                    // don't assemble the event if nobody is interested
+                    if (!hasHandlers(topic))
+                    {
+                        return;
+                    }
+
+                    final Map properties = new HashMap(32);
 
                     final Bundle bundle = entry.getBundle();
 
@@ -254,31 +289,8 @@ public class LogEventAdapter extends AbstractAdapter implements ServiceListener
                         }
                     }
 
-                    final StringBuffer topic = new StringBuffer(
-                        org.osgi.service.log.LogEntry.class.getName().replace(
-                            '.', '/')).append('/');
-
-                    switch (entry.getLevel())
-                    {
-                        case org.osgi.service.log.LogService.LOG_ERROR:
-                            topic.append("LOG_ERROR");
-                            break;
-                        case org.osgi.service.log.LogService.LOG_WARNING:
-                            topic.append("LOG_WARNING");
-                            break;
-                        case org.osgi.service.log.LogService.LOG_INFO:
-                            topic.append("LOG_INFO");
-                            break;
-                        case org.osgi.service.log.LogService.LOG_DEBUG:
-                            topic.append("LOG_DEBUG");
-                            break;
-                        default:
-                            topic.append("LOG_OTHER");
-                            break;
-                    }
-
                     try {
-                        getEventAdmin().postEvent(new Event(topic.toString(), properties));
+                        getEventAdmin().postEvent(new Event(topic, properties));
                     } catch(IllegalStateException e) {
                         // This is o.k. - indicates that we are stopped.
                     }
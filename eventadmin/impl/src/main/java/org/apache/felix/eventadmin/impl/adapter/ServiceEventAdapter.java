@@ -18,8 +18,8 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.BundleContext;
@@ -38,6 +38,11 @@ import org.osgi.service.event.EventConstants;
  */
 public class ServiceEventAdapter extends AbstractAdapter implements ServiceListener
 {
+    private static final String TOPIC_PREFIX = ServiceEvent.class.getName().replace('.', '/') + '/';
+    private static final String TOPIC_REGISTERED = TOPIC_PREFIX + "REGISTERED";
+    private static final String TOPIC_MODIFIED = TOPIC_PREFIX + "MODIFIED";
+    private static final String TOPIC_UNREGISTERING = TOPIC_PREFIX + "UNREGISTERING";
+
     /**
      * The constructor of the adapter. This will register the adapter with the
      * given context as a <tt>ServiceListener</tt> and subsequently, will
@@ -65,7 +70,30 @@ public class ServiceEventAdapter extends AbstractAdapter implements ServiceListe
      */
     public void serviceChanged(final ServiceEvent event)
     {
-        final Dictionary properties = new Hashtable();
+        final String topic;
+
+        switch (event.getType())
+        {
+            case ServiceEvent.REGISTERED:
+                topic = TOPIC_REGISTERED;
+                break;
+            case ServiceEvent.MODIFIED:
+                topic = TOPIC_MODIFIED;
+                break;
+            case ServiceEvent.UNREGISTERING:
+                topic = TOPIC_UNREGISTERING;
+                break;
+            default:
+                return; // IGNORE
+        }
+
+        // don't assemble the event if nobody is interested
+        if (!hasHandlers(topic))
+        {
+            return;
+        }
+
+        final Map properties = new HashMap(16);
 
         properties.put(EventConstants.EVENT, event);
 
@@ -115,26 +143,8 @@ public class ServiceEventAdapter extends AbstractAdapter implements ServiceListe
             }
         }
 
-        final StringBuffer topic = new StringBuffer(ServiceEvent.class
-            .getName().replace('.', '/')).append('/');
-
-        switch (event.getType())
-        {
-            case ServiceEvent.REGISTERED:
-                topic.append("REGISTERED");
-                break;
-            case ServiceEvent.MODIFIED:
-                topic.append("MODIFIED");
-                break;
-            case ServiceEvent.UNREGISTERING:
-                topic.append("UNREGISTERING");
-                break;
-            default:
-                return; // IGNORE
-        }
-
         try {
-            getEventAdmin().postEvent(new Event(topic.toString(), properties));
+            getEventAdmin().postEvent(new Event(topic, properties));
         } catch(IllegalStateException e) {
             // This is o.k. - indicates that we are stopped.
         }
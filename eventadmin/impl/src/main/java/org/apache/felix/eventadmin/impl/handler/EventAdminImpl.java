@@ -20,6 +20,7 @@ package org.apache.felix.eventadmin.impl.handler;
 
 import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.tasks.QueuedDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
@@ -46,6 +47,12 @@ public class EventAdminImpl implements EventAdmin
     // The asynchronous event dispatcher
     private final AsyncDeliverTasks m_postManager;
 
+    // The asynchronous event dispatcher with a queue per handler
+    private final QueuedDeliverTasks m_queuedPostManager;
+
+    // Use the queue per handler for asynchronous events?
+    private volatile boolean m_queuedDelivery;
+
     // The synchronous event dispatcher
     private final SyncDeliverTasks m_sendManager;
 
@@ -54,6 +61,12 @@ public class EventAdminImpl implements EventAdmin
      *
      * @param syncPool The synchronous thread pool
      * @param asyncPool The asynchronous thread pool
+     * @param asyncQueueSize The size of the asynchronous queue per handler
+     *        or 0 to deliver asynchronous events per posting thread
+     * @param asyncQueueTimeout The time in ms to wait if an asynchronous queue
+     *        is full before dropping the event, 0 to drop it right away
+     * @param callerThreadTimeout Deliver by the calling thread and use a
+     *        watchdog for the timeout handling
      */
     public EventAdminImpl(
                     final BundleContext bundleContext,
@@ -61,7 +74,10 @@ public class EventAdminImpl implements EventAdmin
                     final DefaultThreadPool asyncPool,
                     final int timeout,
                     final String[] ignoreTimeout,
-                    final boolean requireTopic)
+                    final boolean requireTopic,
+                    final int asyncQueueSize,
+                    final long asyncQueueTimeout,
+                    final boolean callerThreadTimeout)
     {
         checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
@@ -69,8 +85,11 @@ public class EventAdminImpl implements EventAdmin
         this.tracker = new EventHandlerTracker(bundleContext);
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
-        m_sendManager = new SyncDeliverTasks(syncPool, timeout);
+        m_sendManager = new SyncDeliverTasks(syncPool, timeout, callerThreadTimeout);
         m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
+        m_queuedPostManager = new QueuedDeliverTasks(asyncPool, m_sendManager,
+                asyncQueueSize, asyncQueueTimeout);
+        m_queuedDelivery = asyncQueueSize > 0;
     }
 
     /**
@@ -97,7 +116,15 @@ public class EventAdminImpl implements EventAdmin
      */
     public void postEvent(final Event event)
     {
-        m_postManager.execute(this.getTracker().getHandlers(event), event);
+        final EventHandlerProxy[] handlers = this.getTracker().getHandlers(event);
+        if ( m_queuedDelivery )
+        {
+            m_queuedPostManager.execute(handlers, event);
+        }
+        else
+        {
+            m_postManager.execute(handlers, event);
+        }
     }
 
     /**
@@ -114,6 +141,20 @@ public class EventAdminImpl implements EventAdmin
         m_sendManager.execute(this.getTracker().getHandlers(event), event, false);
     }
 
+    /**
+     * Check if there are handlers for the topic. This allows to avoid
+     * assembling events nobody is interested in.
+     *
+     * @param topic The event topic
+     * @return <code>true</code> if an event with this topic might be delivered
+     *
+     * @throws IllegalStateException - In case we are stopped
+     */
+    public boolean hasHandlers(final String topic)
+    {
+        return this.getTracker().hasHandlers(topic);
+    }
+
     /**
      * This method can be used to stop the delivery of events.
      */
@@ -121,6 +162,7 @@ public class EventAdminImpl implements EventAdmin
     {
         this.tracker.close();
         this.tracker = null;
+        this.m_sendManager.close();
     }
 
     /**
@@ -128,14 +170,28 @@ public class EventAdminImpl implements EventAdmin
      */
     public void update(final int timeout,
                     final String[] ignoreTimeout,
-                    final boolean requireTopic)
+                    final boolean requireTopic,
+                    final int asyncQueueSize,
+                    final long asyncQueueTimeout,
+                    final boolean callerThreadTimeout)
     {
         this.tracker.close();
         this.tracker.update(ignoreTimeout, requireTopic);
-        this.m_sendManager.update(timeout);
+        this.m_sendManager.update(timeout, callerThreadTimeout);
+        this.m_queuedPostManager.update(asyncQueueSize, asyncQueueTimeout);
+        this.m_queuedDelivery = asyncQueueSize > 0;
         this.tracker.open();
     }
 
+    /**
+     * Returns a table with the metrics of the asynchronous queue
+     * of each handler, see {@link QueuedDeliverTasks#getMetrics(EventHandlerProxy[])}.
+     */
+    public String getQueueMetrics()
+    {
+        return m_queuedPostManager.getMetrics(this.getTracker().getProxies());
+    }
+
     /**
      * This is a utility method that will throw a <tt>NullPointerException</tt>
      * in case that the given object is null. The message will be of the form
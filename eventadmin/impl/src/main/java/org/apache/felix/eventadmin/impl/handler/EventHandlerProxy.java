@@ -18,6 +18,7 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -66,6 +67,9 @@ public class EventHandlerProxy {
     /** Deliver async ordered. */
     private boolean asyncOrderedDelivery;
 
+    /** The queue of the asynchronous delivery, created on demand. */
+    private volatile Object deliveryQueue;
+
     /**
      * Create an EventHandlerProxy.
      *
@@ -329,6 +333,15 @@ public class EventHandlerProxy {
      * - check permission
      */
     public boolean canDeliver(final Event event)
+    {
+        return this.canDeliver(event, PermissionsUtil.createSubscribePermission(event.getTopic()));
+    }
+
+    /**
+     * Check if this handler is allowed to receive the event
+     * using an already created subscribe permission for the topic.
+     */
+    public boolean canDeliver(final Event event, final Permission p)
     {
         if ( this.blacklisted )
         {
@@ -349,7 +362,6 @@ public class EventHandlerProxy {
         }
 
         // permission check
-        final Object p = PermissionsUtil.createSubscribePermission(event.getTopic());
         if (p != null && !bundle.hasPermission(p) )
         {
             return false;
@@ -423,6 +435,40 @@ public class EventHandlerProxy {
         }
     }
 
+    /**
+     * Get the queue of the asynchronous delivery for this handler.
+     * If there is no queue yet, it is created by the given factory.
+     */
+    public Object getDeliveryQueue(final QueueFactory factory)
+    {
+        Object queue = this.deliveryQueue;
+        if ( queue == null && factory != null )
+        {
+            synchronized ( this )
+            {
+                if ( this.deliveryQueue == null )
+                {
+                    this.deliveryQueue = factory.createQueue(this);
+                }
+                queue = this.deliveryQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Factory for the queue of the asynchronous delivery.
+     */
+    public static interface QueueFactory
+    {
+        Object createQueue(EventHandlerProxy proxy);
+    }
+
+    public String toString()
+    {
+        return "[" + this.reference + " | Bundle(" + this.reference.getBundle() + ")]";
+    }
+
     /**
      * Blacklist the handler.
      */
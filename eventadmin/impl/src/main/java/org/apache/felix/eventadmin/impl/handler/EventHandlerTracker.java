@@ -18,8 +18,10 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.*;
 
+import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
@@ -33,30 +35,25 @@ import org.osgi.util.tracker.ServiceTracker;
  */
 public class EventHandlerTracker extends ServiceTracker {
 
-    /** The proxies in this list match all events. */
-	private volatile List matchingAllEvents;
+    /** The maximum number of topics for which the handlers are cached. */
+    private static final int MAX_CACHED_TOPICS = 1024;
 
-    /** This is a map for exact topic matches. The key is the topic,
-     * the value is a list of proxies.
-     */
-    private volatile Map matchingTopic;
+    /** Empty handler array. */
+    private static final EventHandlerProxy[] NO_HANDLERS = new EventHandlerProxy[0];
 
-	/** This is a map for wildcard topics. The key is the prefix of the topic,
-	 * the value is a list of proxies
-	 */
-	private volatile Map matchingPrefixTopic;
+    /** All proxies with a valid configuration, guarded by this. */
+    private final List proxies = new ArrayList();
 
+    /** The handler index built from the proxies. It is rebuilt on each
+     * change, so it can be read without synchronization.
+     */
+    private volatile HandlerIndex index = new HandlerIndex(new ArrayList());
 
 	/** The context for the proxies. */
 	private HandlerContext handlerContext;
 
     public EventHandlerTracker(final BundleContext context) {
 		super(context, EventHandler.class.getName(), null);
-
-		// we start with empty collections
-		this.matchingAllEvents = new ArrayList();
-		this.matchingTopic = new HashMap();
-		this.matchingPrefixTopic = new HashMap();
 	}
 
     /**
@@ -130,188 +127,285 @@ public class EventHandlerTracker extends ServiceTracker {
         proxy.dispose();
 	}
 
-	private void updateMap(final Map proxyListMap, final String key, final EventHandlerProxy proxy, final boolean add) {
-        List proxies = (List)proxyListMap.get(key);
-        if (proxies == null) {
-            if ( !add )
+    /**
+     * Add the event handler and rebuild the handler index.
+     */
+    private synchronized void put(final EventHandlerProxy proxy) {
+        this.proxies.add(proxy);
+        this.index = new HandlerIndex(this.proxies);
+    }
+
+    /**
+     * Remove the event handler and rebuild the handler index.
+     */
+    private synchronized void remove(final EventHandlerProxy proxy) {
+        if ( this.proxies.remove(proxy) )
+        {
+            this.index = new HandlerIndex(this.proxies);
+        }
+    }
+
+    /**
+     * Get all tracked handlers with a valid configuration.
+     */
+    public synchronized EventHandlerProxy[] getProxies() {
+        return (EventHandlerProxy[])this.proxies.toArray(new EventHandlerProxy[this.proxies.size()]);
+    }
+
+    /**
+     * Get all handlers for this event
+     *
+     * The handlers for a topic are resolved once and cached until the
+     * handlers change. The returned array is only copied if the filter
+     * or permissions of a handler do not allow to deliver the event.
+     *
+     * @param event The event topic
+     * @return All handlers for the event
+     */
+    public EventHandlerProxy[] getHandlers(final Event event) {
+        final TopicHandlers topicHandlers = this.getTopicHandlers(event.getTopic());
+
+        // now check permission and filters
+        final EventHandlerProxy[] handlers = topicHandlers.handlers;
+        for(int i = 0; i < handlers.length; i++)
+        {
+            if ( !handlers[i].canDeliver(event, topicHandlers.permission) )
             {
-                return;
+                final List result = new ArrayList(handlers.length - 1);
+                for(int j = 0; j < i; j++)
+                {
+                    result.add(handlers[j]);
+                }
+                for(int j = i + 1; j < handlers.length; j++)
+                {
+                    if ( handlers[j].canDeliver(event, topicHandlers.permission) )
+                    {
+                        result.add(handlers[j]);
+                    }
+                }
+                return (EventHandlerProxy[])result.toArray(new EventHandlerProxy[result.size()]);
             }
-            proxies = new ArrayList();
-        } else {
-            proxies = new ArrayList(proxies);
         }
-        if ( add )
+        return handlers;
+    }
+
+    /**
+     * Check if there are handlers for the topic, regardless of
+     * their filters and permissions.
+     *
+     * @param topic The event topic
+     * @return <code>true</code> if an event with this topic might be delivered
+     */
+    public boolean hasHandlers(final String topic) {
+        return this.getTopicHandlers(topic).handlers.length > 0;
+    }
+
+    /**
+     * Get the cached handlers for the topic or resolve them.
+     */
+    private TopicHandlers getTopicHandlers(final String topic) {
+        final HandlerIndex localIndex = this.index;
+        final TopicHandlers topicHandlers = (TopicHandlers)localIndex.resolved.get(topic);
+        if ( topicHandlers == null )
         {
-            proxies.add(proxy);
+            return this.resolve(localIndex, topic);
         }
-        else
+        return topicHandlers;
+    }
+
+    /**
+     * Resolve the handlers for the topic and cache them in the index
+     * unless it has been replaced in the meantime or is full.
+     */
+    private TopicHandlers resolve(final HandlerIndex localIndex, final String topic) {
+        final List handlers = new ArrayList();
+        for(int i = 0; i < localIndex.matchingAllEvents.length; i++)
         {
-            proxies.remove(proxy);
+            handlers.add(localIndex.matchingAllEvents[i]);
         }
-        if ( proxies.size() == 0 )
+
+        // walk down the topic tree; prefix handlers of a node match
+        // if the topic has more segments, exact handlers if it ends there
+        TopicNode node = localIndex.root;
+        int start = 0;
+        while ( node != null )
         {
-            proxyListMap.remove(key);
+            final int end = topic.indexOf('/', start);
+            node = node.getChild(end == -1 ? topic.substring(start) : topic.substring(start, end));
+            if ( node != null )
+            {
+                addAll(handlers, end == -1 ? node.exact : node.prefix);
+                if ( end == -1 )
+                {
+                    node = null;
+                }
+                start = end + 1;
+            }
         }
-        else
+
+        final TopicHandlers result = new TopicHandlers(handlers.isEmpty()
+            ? NO_HANDLERS
+            : (EventHandlerProxy[])handlers.toArray(new EventHandlerProxy[handlers.size()]),
+            PermissionsUtil.createSubscribePermission(topic));
+        synchronized ( this )
         {
-            proxyListMap.put(key, proxies);
+            if ( this.index == localIndex && localIndex.resolved.size() < MAX_CACHED_TOPICS )
+            {
+                final Map newResolved = new HashMap(localIndex.resolved);
+                newResolved.put(topic, result);
+                localIndex.resolved = newResolved;
+            }
         }
-	}
-
-	/**
-	 * Check the topics of the event handler and put it into the
-	 * corresponding collections.
-	 * We always create new collections - while this is "expensive"
-	 * it allows us to read from them unsynced
-	 */
-	private synchronized void put(final EventHandlerProxy proxy) {
-		final String[] topics = proxy.getTopics();
-		if ( topics == null )
-		{
-		    final List newMatchingAllEvents = new ArrayList(this.matchingAllEvents);
-		    newMatchingAllEvents.add(proxy);
-		    this.matchingAllEvents = newMatchingAllEvents;
-		}
-		else
-		{
-		    Map newMatchingTopic = null;
-		    Map newMatchingPrefixTopic = null;
-    		for(int i = 0; i < topics.length; i++) {
-    			final String topic = topics[i];
-
-    			if ( topic.endsWith("/*") )
-    			{
-                    // prefix topic: we remove the /*
-    			    if ( newMatchingPrefixTopic == null )
-    			    {
-    			        newMatchingPrefixTopic = new HashMap(this.matchingPrefixTopic);
-    			    }
-
-    				final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(newMatchingPrefixTopic, prefix, proxy, true);
-    			}
-    			else
-    			{
-    			    // exact match
-                    if ( newMatchingTopic == null )
-                    {
-                        newMatchingTopic = new HashMap(this.matchingTopic);
-                    }
+        return result;
+    }
 
-                    this.updateMap(newMatchingTopic, topic, proxy, true);
-    			}
-    		}
-    		if ( newMatchingTopic != null )
-    		{
-    		    this.matchingTopic = newMatchingTopic;
-    		}
-    		if ( newMatchingPrefixTopic != null )
-    		{
-    		    this.matchingPrefixTopic = newMatchingPrefixTopic;
-    		}
-		}
-	}
+    private static void addAll(final List handlers, final List proxies)
+    {
+        if ( proxies != null )
+        {
+            for(int i = 0; i < proxies.size(); i++)
+            {
+                final Object proxy = proxies.get(i);
+                if ( !handlers.contains(proxy) )
+                {
+                    handlers.add(proxy);
+                }
+            }
+        }
+    }
 
     /**
-     * Check the topics of the event handler and remove it from the
-     * corresponding collections.
-     * We always create new collections - while this is "expensive"
-     * it allows us to read from them unsynced
+     * The handlers of all event handlers by topic. An index is never
+     * changed after it has been built, except for the cache of resolved
+     * topics which is replaced on each addition.
      */
-	private synchronized void remove(final EventHandlerProxy proxy) {
-        final String[] topics = proxy.getTopics();
-        if ( topics == null )
+    private static final class HandlerIndex
+    {
+        /** The proxies in this array match all events. */
+        public final EventHandlerProxy[] matchingAllEvents;
+
+        /** The root of the topic tree. */
+        public final TopicNode root = new TopicNode();
+
+        /** The resolved handlers by topic. */
+        public volatile Map resolved = new HashMap();
+
+        public HandlerIndex(final List proxies)
         {
-            final List newMatchingAllEvents = new ArrayList(this.matchingAllEvents);
-            newMatchingAllEvents.remove(proxy);
-            this.matchingAllEvents = newMatchingAllEvents;
-        } else {
-            Map newMatchingTopic = null;
-            Map newMatchingPrefixTopic = null;
-            for(int i = 0; i < topics.length; i++) {
-                final String topic = topics[i];
-
-                if ( topic.endsWith("/*") )
+            final List all = new ArrayList();
+            for(int i = 0; i < proxies.size(); i++)
+            {
+                final EventHandlerProxy proxy = (EventHandlerProxy)proxies.get(i);
+                final String[] topics = proxy.getTopics();
+                if ( topics == null )
                 {
-                    // prefix topic: we remove the /*
-                    if ( newMatchingPrefixTopic == null )
-                    {
-                        newMatchingPrefixTopic = new HashMap(this.matchingPrefixTopic);
-                    }
-
-                    final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(newMatchingPrefixTopic, prefix, proxy, false);
+                    all.add(proxy);
                 }
                 else
                 {
-                    // exact match
-                    if ( newMatchingTopic == null )
+                    for(int j = 0; j < topics.length; j++)
                     {
-                        newMatchingTopic = new HashMap(this.matchingTopic);
+                        final String topic = topics[j];
+                        if ( topic.endsWith("/*") )
+                        {
+                            // prefix topic: we remove the /*
+                            this.root.getNode(topic.substring(0, topic.length() - 2)).addPrefix(proxy);
+                        }
+                        else
+                        {
+                            this.root.getNode(topic).addExact(proxy);
+                        }
                     }
-
-                    this.updateMap(newMatchingTopic, topic, proxy, false);
                 }
             }
-            if ( newMatchingTopic != null )
+            this.matchingAllEvents = (EventHandlerProxy[])all.toArray(new EventHandlerProxy[all.size()]);
+        }
+    }
+
+    /**
+     * A node of the topic tree. Each node represents one segment
+     * of a topic, i.e. the part between two slashes.
+     */
+    private static final class TopicNode
+    {
+        /** The child nodes by segment. */
+        private Map children;
+
+        /** The handlers for the topic ending at this node. */
+        public List exact;
+
+        /** The handlers for all topics below this node. */
+        public List prefix;
+
+        public TopicNode getChild(final String segment)
+        {
+            return this.children == null ? null : (TopicNode)this.children.get(segment);
+        }
+
+        /**
+         * Get the node for the topic, creating the missing nodes.
+         */
+        public TopicNode getNode(final String topic)
+        {
+            TopicNode node = this;
+            int start = 0;
+            int end;
+            do
+            {
+                end = topic.indexOf('/', start);
+                final String segment = (end == -1 ? topic.substring(start) : topic.substring(start, end));
+                TopicNode child = node.getChild(segment);
+                if ( child == null )
+                {
+                    if ( node.children == null )
+                    {
+                        node.children = new HashMap();
+                    }
+                    child = new TopicNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                start = end + 1;
+            } while ( end != -1 );
+            return node;
+        }
+
+        public void addExact(final EventHandlerProxy proxy)
+        {
+            if ( this.exact == null )
             {
-                this.matchingTopic = newMatchingTopic;
+                this.exact = new ArrayList();
             }
-            if ( newMatchingPrefixTopic != null )
+            this.exact.add(proxy);
+        }
+
+        public void addPrefix(final EventHandlerProxy proxy)
+        {
+            if ( this.prefix == null )
             {
-                this.matchingPrefixTopic = newMatchingPrefixTopic;
+                this.prefix = new ArrayList();
             }
+            this.prefix.add(proxy);
         }
-	}
+    }
 
-	/**
-	 * Get all handlers for this event
-	 *
-	 * @param event The event topic
-	 * @return All handlers for the event
-	 */
-	public Collection getHandlers(final Event event) {
-	    final String topic = event.getTopic();
-
-		final Set handlers = new HashSet();
-
-		// Add all handlers matching everything
-		handlers.addAll(this.matchingAllEvents);
-
-		// Now check for prefix matches
-		if ( !this.matchingPrefixTopic.isEmpty() )
-		{
-		    int pos = topic.lastIndexOf('/');
-			while (pos != -1)
-			{
-			    final String prefix = topic.substring(0, pos);
-				List proxies = (List)this.matchingPrefixTopic.get(prefix);
-				if (proxies != null)
-				{
-					handlers.addAll(proxies);
-				}
-
-				pos = prefix.lastIndexOf('/');
-			}
-		}
+    /**
+     * The resolved handlers for a topic.
+     */
+    private static final class TopicHandlers
+    {
+        /** The handlers before checking filters and permissions. */
+        public final EventHandlerProxy[] handlers;
 
-		// Add the handlers for matching topic names
-		List proxies = (List)this.matchingTopic.get(topic);
-		if (proxies != null) {
-			handlers.addAll(proxies);
-		}
+        /** The subscribe permission for the topic or <code>null</code>. */
+        public final Permission permission;
 
-		// now check permission and filters
-		final Iterator i = handlers.iterator();
-		while ( i.hasNext() ) {
-		    final EventHandlerProxy proxy = (EventHandlerProxy) i.next();
-		    if ( !proxy.canDeliver(event) ) {
-		        i.remove();
-		    }
-		}
-		return handlers;
-	}
+        public TopicHandlers(final EventHandlerProxy[] handlers, final Permission permission)
+        {
+            this.handlers = handlers;
+            this.permission = permission;
+        }
+    }
 
     /**
      * The matcher interface for checking if timeout handling
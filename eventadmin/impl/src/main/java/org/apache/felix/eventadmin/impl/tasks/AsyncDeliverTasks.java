@@ -18,12 +18,12 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
 import org.osgi.service.event.Event;
 
 /**
@@ -65,7 +65,7 @@ public class AsyncDeliverTasks
      * @param tasks The event handler dispatch tasks to execute
      *
      */
-    public void execute(final Collection tasks, final Event event)
+    public void execute(final EventHandlerProxy[] tasks, final Event event)
     {
         /*
         final Iterator i = tasks.iterator();
@@ -113,7 +113,7 @@ public class AsyncDeliverTasks
 
         private final Object m_key;
 
-        public TaskExecuter(final Collection tasks, final Event event, final Object key)
+        public TaskExecuter(final EventHandlerProxy[] tasks, final Event event, final Object key)
         {
             m_key = key;
             m_tasks.add(new Object[] {tasks, event});
@@ -129,7 +129,7 @@ public class AsyncDeliverTasks
                 {
                     tasks = (Object[]) m_tasks.remove(0);
                 }
-                m_deliver_task.execute((Collection)tasks[0], (Event)tasks[1], true);
+                m_deliver_task.execute((EventHandlerProxy[])tasks[0], (Event)tasks[1], true);
                 synchronized ( m_running_threads )
                 {
                     running = m_tasks.size() > 0;
@@ -141,7 +141,7 @@ public class AsyncDeliverTasks
             } while ( running );
         }
 
-        public void add(final Collection tasks, final Event event)
+        public void add(final EventHandlerProxy[] tasks, final Event event)
         {
             synchronized ( m_tasks )
             {
@@ -16,29 +16,23 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-package org.apache.felix.framework.util;
+package org.apache.felix.eventadmin.impl.tasks;
 
-public class Mutex
+/**
+ * This thread class is used for delivering the events
+ * asynchronously.
+ * It acts like a marker.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class AsyncThread extends Thread
 {
-    private int m_count;
-
-    public Mutex()
-    {
-        m_count = 1;
-    }
-
-    public synchronized void down() throws InterruptedException
-    {
-        while (m_count <= 0)
-        {
-            wait();
-        }
-        m_count = 0;
-    }
 
-    public synchronized void up()
+    /**
+     * Constructor used by the thread pool.
+     */
+    public AsyncThread(Runnable target)
     {
-        m_count = 1;
-        notifyAll();
+        super(target);
     }
-}
\ No newline at end of file
+}
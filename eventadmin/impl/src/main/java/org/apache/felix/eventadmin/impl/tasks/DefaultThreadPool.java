@@ -58,7 +58,7 @@ public class DefaultThreadPool
 
                 public Thread newThread( final Runnable command )
                 {
-                    final Thread thread = new Thread( command );
+                    final Thread thread = new AsyncThread( command );
                     thread.setPriority( Thread.NORM_PRIORITY );
                     thread.setDaemon( true );
 
@@ -71,6 +71,14 @@ public class DefaultThreadPool
         runWhenBlocked();
     }
 
+    /**
+     * Is the thread one of the threads of the event admin pools?
+     */
+    public static boolean isPoolThread(final Thread thread)
+    {
+        return thread instanceof SyncThread || thread instanceof AsyncThread;
+    }
+
     /**
      * Configure a new pool size.
      */
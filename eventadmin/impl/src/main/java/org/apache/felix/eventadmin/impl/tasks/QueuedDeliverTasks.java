@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.osgi.service.event.Event;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedLinkedQueue;
+
+/**
+ * This class does the asynchronous event delivery using a queue per
+ * event handler.
+ *
+ * Posting an event only appends it to the queues of the handlers. A
+ * drain task is scheduled on the thread pool when a queue becomes non
+ * empty; it takes the queued events in batches and delivers them in
+ * order, using the sync deliver tasks for the timeout handling. Hence
+ * each handler gets the events in the order they were posted, while a
+ * slow handler does not delay the delivery to other handlers.
+ *
+ * The queues are bounded: if a queue is full, the event is dropped for
+ * this handler, by default right away. Otherwise the posting thread waits
+ * at most the configured time for the drain task to make space. Threads
+ * of the event admin pools never wait, as they might be the drain task of
+ * the full queue or be needed to run it: waiting there could deadlock
+ * drain tasks posting to each other's queues or starve the pool.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class QueuedDeliverTasks implements EventHandlerProxy.QueueFactory
+{
+    /** The maximum number of events a drain task takes from the queue at once. */
+    private static final int BATCH_SIZE = 64;
+
+    /** The thread pool used to run the drain tasks. */
+    private final DefaultThreadPool m_pool;
+
+    /** The deliver task for actually delivering the events. */
+    private final SyncDeliverTasks m_deliver_task;
+
+    /** The maximum number of queued events per handler. */
+    private volatile int m_capacity;
+
+    /** The time in ms to wait for space in a full queue, 0 to drop right away. */
+    private volatile long m_offerTimeout;
+
+    /**
+     * Create the queued deliver tasks.
+     *
+     * @param pool The thread pool used to run the drain tasks
+     * @param deliverTask The deliver tasks for dispatching the event.
+     * @param capacity The maximum number of queued events per handler
+     * @param offerTimeout The time in ms to wait if a queue is full before
+     *        dropping the event, 0 to drop it right away
+     */
+    public QueuedDeliverTasks(final DefaultThreadPool pool,
+                    final SyncDeliverTasks deliverTask,
+                    final int capacity,
+                    final long offerTimeout)
+    {
+        m_pool = pool;
+        m_deliver_task = deliverTask;
+        this.update(capacity, offerTimeout);
+    }
+
+    /**
+     * Update the queue configuration.
+     */
+    public void update(final int capacity, final long offerTimeout)
+    {
+        m_capacity = capacity;
+        m_offerTimeout = offerTimeout;
+    }
+
+    /**
+     * Queue the event for each of the handlers.
+     *
+     * @param tasks The event handler dispatch tasks to execute
+     * @param event The event to deliver
+     */
+    public void execute(final EventHandlerProxy[] tasks, final Event event)
+    {
+        final long time = System.currentTimeMillis();
+        for(int i = 0; i < tasks.length; i++)
+        {
+            final HandlerQueue queue = (HandlerQueue)tasks[i].getDeliveryQueue(this);
+            if ( queue.offer(event, time) )
+            {
+                m_pool.executeTask(queue);
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.impl.handler.EventHandlerProxy.QueueFactory#createQueue(org.apache.felix.eventadmin.impl.handler.EventHandlerProxy)
+     */
+    public Object createQueue(final EventHandlerProxy proxy)
+    {
+        return new HandlerQueue(proxy);
+    }
+
+    /**
+     * Returns a table with the queue metrics of the given handlers.
+     * Latencies are the times between posting and delivering an event,
+     * the handler time is the time spent in delivering events.
+     */
+    public String getMetrics(final EventHandlerProxy[] handlers)
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("Queued\tMax\tDelivered\tDropped\tAvgLatency(ms)\tMaxLatency(ms)\tHandlerTime(ms)\tHandler\n");
+        for(int i = 0; i < handlers.length; i++)
+        {
+            final HandlerQueue queue = (HandlerQueue)handlers[i].getDeliveryQueue(null);
+            if ( queue != null )
+            {
+                queue.appendMetrics(sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An event in a queue together with its post time.
+     */
+    private static final class QueuedEvent
+    {
+        public final Event event;
+
+        public final long time;
+
+        public QueuedEvent(final Event event, final long time)
+        {
+            this.event = event;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The queue of a handler, which is its own drain task.
+     */
+    private final class HandlerQueue implements Runnable
+    {
+        private final EventHandlerProxy m_handler;
+
+        /** The queued events. */
+        private final BoundedLinkedQueue m_queue = new BoundedLinkedQueue(m_capacity);
+
+        /** Is a drain task scheduled or running? Guarded by this. */
+        private boolean m_scheduled;
+
+        // The current batch, only used by the drain task.
+        private final QueuedEvent[] m_batch = new QueuedEvent[BATCH_SIZE];
+
+        // Metrics, guarded by this.
+        private int m_maxSize;
+        private long m_delivered;
+        private long m_dropped;
+        private long m_latency;
+        private long m_maxLatency;
+        private long m_handlerTime;
+
+        public HandlerQueue(final EventHandlerProxy handler)
+        {
+            m_handler = handler;
+        }
+
+        /**
+         * Add the event to the queue.
+         * @return <code>true</code> if a drain task must be scheduled.
+         */
+        public boolean offer(final Event event, final long time)
+        {
+            final int capacity = m_capacity;
+            if ( m_queue.capacity() != capacity )
+            {
+                m_queue.setCapacity(capacity);
+            }
+            // never wait on a thread of our pools, see above
+            final long timeout = DefaultThreadPool.isPoolThread(Thread.currentThread())
+                    ? 0 : m_offerTimeout;
+            boolean queued;
+            try
+            {
+                queued = m_queue.offer(new QueuedEvent(event, time), timeout);
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+            synchronized ( this )
+            {
+                if ( !queued )
+                {
+                    m_dropped++;
+                    return false;
+                }
+                m_maxSize = Math.max(m_maxSize, m_queue.size());
+                if ( m_scheduled )
+                {
+                    return false;
+                }
+                m_scheduled = true;
+                return true;
+            }
+        }
+
+        /**
+         * Deliver the queued events in batches until the queue is empty.
+         */
+        public void run()
+        {
+            while ( true )
+            {
+                int count = 0;
+                try
+                {
+                    while ( count < BATCH_SIZE )
+                    {
+                        final QueuedEvent queued = (QueuedEvent)m_queue.poll(0);
+                        if ( queued == null )
+                        {
+                            break;
+                        }
+                        m_batch[count++] = queued;
+                    }
+                }
+                catch (final InterruptedException ie)
+                {
+                    // deliver what we have, the pool is shutting down
+                    Thread.currentThread().interrupt();
+                }
+                if ( count == 0 )
+                {
+                    synchronized ( this )
+                    {
+                        // an event offered after our last poll is either
+                        // seen here or schedules a new drain task
+                        if ( m_queue.peek() == null )
+                        {
+                            m_scheduled = false;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                long latency = 0;
+                long maxLatency = 0;
+                final long start = System.currentTimeMillis();
+                for(int i = 0; i < count; i++)
+                {
+                    final long eventLatency = System.currentTimeMillis() - m_batch[i].time;
+                    latency += eventLatency;
+                    maxLatency = Math.max(maxLatency, eventLatency);
+                    try
+                    {
+                        m_deliver_task.execute(m_handler, m_batch[i].event);
+                    }
+                    catch (final Throwable t)
+                    {
+                        LogWrapper.getLogger().log(
+                                LogWrapper.LOG_WARNING,
+                                "Exception: " + t, t);
+                    }
+                    m_batch[i] = null;
+                }
+                final long handlerTime = System.currentTimeMillis() - start;
+
+                synchronized ( this )
+                {
+                    m_delivered += count;
+                    m_latency += latency;
+                    m_maxLatency = Math.max(m_maxLatency, maxLatency);
+                    m_handlerTime += handlerTime;
+                }
+            }
+        }
+
+        public synchronized void appendMetrics(final StringBuffer sb)
+        {
+            sb.append(m_queue.size()).append('\t');
+            sb.append(m_maxSize).append('\t');
+            sb.append(m_delivered).append('\t');
+            sb.append(m_dropped).append('\t');
+            sb.append(m_delivered == 0 ? 0 : m_latency / m_delivered).append('\t');
+            sb.append(m_maxLatency).append('\t');
+            sb.append(m_handlerTime).append('\t');
+            sb.append(m_handler).append('\n');
+        }
+    }
+}
@@ -18,9 +18,6 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import java.util.Collection;
-import java.util.Iterator;
-
 import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
 import org.osgi.service.event.Event;
 
@@ -51,6 +48,13 @@ import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
  * within the event handler, the timeout handler is stopped for the
  * delivery time of the inner event!
  *
+ * Alternatively, the timeout can be enforced without a thread handoff:
+ * the calling thread delivers the event directly while a shared
+ * {@link TimeoutWatchdog} blacklists the handler once its time is up.
+ * This saves the two thread switches per handler, but a handler that
+ * times out keeps blocking the calling thread until it returns; it only
+ * does not get any further events.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class SyncDeliverTasks
@@ -59,24 +63,42 @@ public class SyncDeliverTasks
     /** The thread pool used to spin-off new threads. */
     private final DefaultThreadPool pool;
 
-    private long timeout;
+    /** The watchdog for deliveries by the calling thread. */
+    private final TimeoutWatchdog watchdog = new TimeoutWatchdog();
+
+    /** The delivery watched for the current thread, if any. */
+    private final ThreadLocal currentDelivery = new ThreadLocal();
+
+    private volatile long timeout;
+
+    /** Deliver by the calling thread and use the watchdog for timeouts? */
+    private volatile boolean callerThread;
 
     /**
      * Construct a new sync deliver tasks.
      * @param pool The thread pool used to spin-off new threads.
      */
-    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout)
+    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout, final boolean callerThread)
     {
         this.pool = pool;
-        this.update(timeout);
+        this.update(timeout, callerThread);
     }
 
     /**
      * Update the timeout configuration
      */
-    public void update(final long timeout)
+    public void update(final long timeout, final boolean callerThread)
     {
         this.timeout = timeout;
+        this.callerThread = callerThread;
+    }
+
+    /**
+     * Stop the timeout watchdog.
+     */
+    public void close()
+    {
+        this.watchdog.close();
     }
 
     /**
@@ -101,74 +123,114 @@ public class SyncDeliverTasks
      * @param tasks The event handler dispatch tasks to execute
      *
      */
-    public void execute(final Collection tasks, final Event event, final boolean filterAsyncUnordered)
+    public void execute(final EventHandlerProxy[] tasks, final Event event, final boolean filterAsyncUnordered)
     {
-        final Thread sleepingThread = Thread.currentThread();
-        final SyncThread syncThread = sleepingThread instanceof SyncThread ? (SyncThread)sleepingThread : null;
-
-        final Iterator i = tasks.iterator();
-        while ( i.hasNext() )
+        for(int i = 0; i < tasks.length; i++)
         {
-            final EventHandlerProxy task = (EventHandlerProxy)i.next();
-//            if ( !filterAsyncUnordered || task.isAsyncOrderedDelivery() )
+//            if ( !filterAsyncUnordered || tasks[i].isAsyncOrderedDelivery() )
 //            {
-                if ( !useTimeout(task) )
-                {
-                    // no timeout, we can directly execute
-                    task.sendEvent(event);
-                }
-                else if ( syncThread != null )
-                {
-                    // if this is a cascaded event, we directly use this thread
-                    // otherwise we could end up in a starvation
-                    final long startTime = System.currentTimeMillis();
-                    task.sendEvent(event);
-                    if ( System.currentTimeMillis() - startTime > this.timeout )
-                    {
-                        task.blackListHandler();
-                    }
-                }
-                else
+                this.execute(tasks[i], event);
+//            }
+        }
+    }
+
+    /**
+     * Deliver the event to a single handler, blocking until the
+     * event is send (or a timeout occurs).
+     *
+     * @param task The event handler dispatch task to execute
+     */
+    public void execute(final EventHandlerProxy task, final Event event)
+    {
+        if ( !useTimeout(task) )
+        {
+            // no timeout, we can directly execute
+            task.sendEvent(event);
+        }
+        else if ( this.callerThread )
+        {
+            this.executeWatched(task, event);
+        }
+        else if ( Thread.currentThread() instanceof SyncThread )
+        {
+            // if this is a cascaded event, we directly use this thread
+            // otherwise we could end up in a starvation
+            final long startTime = System.currentTimeMillis();
+            task.sendEvent(event);
+            if ( System.currentTimeMillis() - startTime > this.timeout )
+            {
+                task.blackListHandler();
+            }
+        }
+        else
+        {
+            final Rendezvous startBarrier = new Rendezvous();
+            final Rendezvous timerBarrier = new Rendezvous();
+            this.pool.executeTask(new Runnable()
+            {
+                public void run()
                 {
-                    final Rendezvous startBarrier = new Rendezvous();
-                    final Rendezvous timerBarrier = new Rendezvous();
-                    this.pool.executeTask(new Runnable()
-                    {
-                        public void run()
-                        {
-                            try
-                            {
-                                // notify the outer thread to start the timer
-                                startBarrier.waitForRendezvous();
-                                // execute the task
-                                task.sendEvent(event);
-                                // stop the timer
-                                timerBarrier.waitForRendezvous();
-                            }
-                            catch (final IllegalStateException ise)
-                            {
-                                // this can happen on shutdown, so we ignore it
-                            }
-                        }
-                    });
-                    // we wait for the inner thread to start
-                    startBarrier.waitForRendezvous();
-
-                    // timeout handling
-                    // we sleep for the sleep time
-                    // if someone wakes us up it's the finished inner task
                     try
                     {
-                        timerBarrier.waitAttemptForRendezvous(this.timeout);
+                        // notify the outer thread to start the timer
+                        startBarrier.waitForRendezvous();
+                        // execute the task
+                        task.sendEvent(event);
+                        // stop the timer
+                        timerBarrier.waitForRendezvous();
                     }
-                    catch (final TimeoutException ie)
+                    catch (final IllegalStateException ise)
                     {
-                        // if we timed out, we have to blacklist the handler
-                        task.blackListHandler();
+                        // this can happen on shutdown, so we ignore it
                     }
-
                 }
-//            }
+            });
+            // we wait for the inner thread to start
+            startBarrier.waitForRendezvous();
+
+            // timeout handling
+            // we sleep for the sleep time
+            // if someone wakes us up it's the finished inner task
+            try
+            {
+                timerBarrier.waitAttemptForRendezvous(this.timeout);
+            }
+            catch (final TimeoutException ie)
+            {
+                // if we timed out, we have to blacklist the handler
+                task.blackListHandler();
+            }
+        }
+    }
+
+    /**
+     * Deliver the event to a single handler using the calling thread
+     * while the watchdog takes care of the timeout. The timeout of an
+     * outer delivery by this thread is stopped during the delivery.
+     *
+     * @param task The event handler dispatch task to execute
+     */
+    private void executeWatched(final EventHandlerProxy task, final Event event)
+    {
+        final TimeoutWatchdog.Delivery outer = (TimeoutWatchdog.Delivery)this.currentDelivery.get();
+        if ( outer != null )
+        {
+            this.watchdog.stop(outer);
+        }
+        final TimeoutWatchdog.Delivery delivery = this.watchdog.start(task, this.timeout);
+        this.currentDelivery.set(delivery);
+        try
+        {
+            task.sendEvent(event);
+        }
+        finally
+        {
+            this.watchdog.stop(delivery);
+            this.currentDelivery.set(outer);
+            if ( outer != null )
+            {
+                this.watchdog.resume(outer);
+            }
         }
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+
+/**
+ * A single thread watching all deliveries which are executed by the
+ * calling thread.
+ *
+ * A delivery is registered with a deadline before the handler is called
+ * and unregistered afterwards. If the deadline of a delivery has passed,
+ * the watchdog thread blacklists the handler - the calling thread is
+ * never interrupted, it just does not have to wait for the blacklisting.
+ * The running deliveries are kept in a doubly linked list, hence starting
+ * and stopping a delivery is only a short synchronized section.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TimeoutWatchdog implements Runnable
+{
+    /** The head of the list of running deliveries, guarded by this. */
+    private Delivery m_head;
+
+    /** The time the watchdog thread wakes up next, guarded by this. */
+    private long m_wakeup = Long.MAX_VALUE;
+
+    /** The watchdog thread, started on demand, guarded by this. */
+    private Thread m_thread;
+
+    /** Is this watchdog closed? Guarded by this. */
+    private boolean m_closed;
+
+    /**
+     * Start watching the delivery to a handler.
+     *
+     * @param handler The handler to be blacklisted on timeout
+     * @param timeout The time in milliseconds granted to the handler
+     * @return The delivery to be passed to {@link #stop(Delivery)}
+     */
+    public Delivery start(final EventHandlerProxy handler, final long timeout)
+    {
+        final Delivery delivery = new Delivery(handler);
+        delivery.m_remaining = timeout;
+        this.resume(delivery);
+        return delivery;
+    }
+
+    /**
+     * Stop watching a delivery, either because it is finished or because
+     * the handler is delivering a nested event. If the deadline of the
+     * delivery has passed, the delivery is left to the watchdog thread for
+     * blacklisting the handler.
+     *
+     * @param delivery The delivery returned by {@link #start(EventHandlerProxy, long)}
+     */
+    public synchronized void stop(final Delivery delivery)
+    {
+        if ( m_closed || delivery.m_expired || !delivery.m_watched )
+        {
+            return;
+        }
+        delivery.m_remaining = delivery.m_deadline - System.currentTimeMillis();
+        if ( delivery.m_remaining > 0 )
+        {
+            this.unlink(delivery);
+        }
+        else
+        {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Continue watching a delivery stopped by {@link #stop(Delivery)} with
+     * the time it had left.
+     *
+     * @param delivery The delivery returned by {@link #start(EventHandlerProxy, long)}
+     */
+    public synchronized void resume(final Delivery delivery)
+    {
+        if ( m_closed || delivery.m_expired || delivery.m_watched )
+        {
+            return;
+        }
+        delivery.m_deadline = System.currentTimeMillis() + delivery.m_remaining;
+        delivery.m_watched = true;
+        delivery.m_next = m_head;
+        if ( m_head != null )
+        {
+            m_head.m_previous = delivery;
+        }
+        m_head = delivery;
+
+        if ( m_thread == null )
+        {
+            m_thread = new Thread(this, "EventAdminTimeoutWatchdog");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+        else if ( delivery.m_deadline < m_wakeup )
+        {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the watchdog thread. Deliveries are not watched anymore.
+     */
+    public synchronized void close()
+    {
+        m_closed = true;
+        m_head = null;
+        this.notifyAll();
+    }
+
+    private void unlink(final Delivery delivery)
+    {
+        if ( delivery.m_previous == null )
+        {
+            m_head = delivery.m_next;
+        }
+        else
+        {
+            delivery.m_previous.m_next = delivery.m_next;
+        }
+        if ( delivery.m_next != null )
+        {
+            delivery.m_next.m_previous = delivery.m_previous;
+        }
+        delivery.m_previous = null;
+        delivery.m_next = null;
+        delivery.m_watched = false;
+    }
+
+    /**
+     * The watchdog thread: blacklist the handlers of all expired deliveries
+     * and sleep until the next deadline.
+     */
+    public void run()
+    {
+        while ( true )
+        {
+            Delivery expired = null;
+            synchronized ( this )
+            {
+                if ( m_closed )
+                {
+                    m_thread = null;
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                m_wakeup = Long.MAX_VALUE;
+                Delivery current = m_head;
+                while ( current != null )
+                {
+                    final Delivery next = current.m_next;
+                    if ( current.m_deadline <= now )
+                    {
+                        this.unlink(current);
+                        current.m_expired = true;
+                        current.m_next = expired;
+                        expired = current;
+                    }
+                    else if ( current.m_deadline < m_wakeup )
+                    {
+                        m_wakeup = current.m_deadline;
+                    }
+                    current = next;
+                }
+                if ( expired == null )
+                {
+                    try
+                    {
+                        this.wait(m_wakeup == Long.MAX_VALUE ? 0 : m_wakeup - now);
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        // ignore and check again
+                    }
+                }
+            }
+
+            // blacklist outside of the lock
+            while ( expired != null )
+            {
+                try
+                {
+                    expired.m_handler.blackListHandler();
+                }
+                catch (final Throwable t)
+                {
+                    LogWrapper.getLogger().log(
+                            LogWrapper.LOG_WARNING,
+                            "Exception: " + t, t);
+                }
+                final Delivery next = expired.m_next;
+                expired.m_next = null;
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * The delivery of an event to a handler, all fields are guarded
+     * by the watchdog.
+     */
+    public static final class Delivery
+    {
+        private final EventHandlerProxy m_handler;
+
+        private long m_deadline;
+        private long m_remaining;
+        private boolean m_watched;
+        private boolean m_expired;
+
+        private Delivery m_previous;
+        private Delivery m_next;
+
+        private Delivery(final EventHandlerProxy handler)
+        {
+            m_handler = handler;
+        }
+    }
+}
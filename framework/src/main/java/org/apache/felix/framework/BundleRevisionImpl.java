@@ -26,9 +26,11 @@ import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.felix.framework.cache.Content;
+import org.apache.felix.framework.cache.JarContent;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.Util;
@@ -71,6 +73,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
 
     private Content m_content;
     private List<Content> m_contentPath;
+    private final Map<Content, EntryIndex> m_entryIndexes = new HashMap<Content, EntryIndex>();
     private ProtectionDomain m_protectionDomain = null;
     private final static SecureAction m_secureAction = new SecureAction();
 
@@ -315,6 +318,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
                     }
                 }
                 m_contentPath = null;
+                m_entryIndexes.clear();
             }
 
             m_wiring = wiring;
@@ -343,6 +347,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     synchronized void resetContent(Content content)
     {
         m_content = content;
+        m_entryIndexes.clear();
     }
 
     synchronized List<Content> getContentPath()
@@ -362,6 +367,28 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         return m_contentPath;
     }
 
+    /**
+     * Returns the entry index of the specified content of this revision,
+     * which is created on first use. Only JAR file contents are indexed,
+     * since the entries of directory contents may change.
+     * @param content a content on the content path of this revision.
+     * @return the entry index of the content or <tt>null</tt>.
+    **/
+    synchronized EntryIndex getEntryIndex(Content content)
+    {
+        if (!(content instanceof JarContent))
+        {
+            return null;
+        }
+        EntryIndex index = m_entryIndexes.get(content);
+        if (index == null)
+        {
+            index = new EntryIndex(content.getEntries());
+            m_entryIndexes.put(content, index);
+        }
+        return index;
+    }
+
     private List<Content> initializeContentPath() throws Exception
     {
         List<Content> contentList = new ArrayList();
@@ -664,6 +691,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
             m_contentPath.get(i).close();
         }
         m_contentPath = null;
+        m_entryIndexes.clear();
     }
 
     @Override
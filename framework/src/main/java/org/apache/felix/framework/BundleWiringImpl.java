@@ -40,6 +40,8 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -150,6 +152,26 @@ public class BundleWiringImpl implements BundleWiring
     // Flag indicating whether this wiring has been disposed.
     private volatile boolean m_isDisposed = false;
 
+    // Class loading counters of this wiring, null unless metrics are enabled.
+    final ClassLoadingMetrics.Counters m_metrics;
+
+    // Maximum number of names remembered by each negative lookup cache.
+    private static final int MAX_NEGATIVE_CACHE_SIZE = 4096;
+
+    // Memoized boot delegation decisions per package name.
+    private final Map<String, Boolean> m_bootDelegatedPkgs =
+        new ConcurrentHashMap<String, Boolean>();
+    // Names of classes and resources that could not be found in the
+    // wiring's own content. They only let repeated misses skip the local
+    // content lookup; imports and required bundles are still searched every
+    // time, since their providers may find the name through their own
+    // dynamic imports later. The wiring's content never changes, so these
+    // entries only need to be discarded when a dynamic wire is added.
+    private final Map<String, Boolean> m_missingClasses =
+        new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Boolean> m_missingResources =
+        new ConcurrentHashMap<String, Boolean>();
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -429,6 +451,11 @@ public class BundleWiringImpl implements BundleWiring
         m_useLocalURLs =
             (m_configMap.get(FelixConstants.USE_LOCALURLS_PROP) == null)
                 ? false : true;
+
+        ClassLoadingMetrics metrics = (revision.getBundle() instanceof BundleImpl)
+            ? ((BundleImpl) revision.getBundle()).getFramework().getClassLoadingMetrics()
+            : null;
+        m_metrics = (metrics != null) ? metrics.register(this) : null;
     }
 
     private static List<List<String>> parsePkgFilters(BundleCapability cap, String filtername)
@@ -467,6 +494,14 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        m_bootDelegatedPkgs.clear();
+        m_missingClasses.clear();
+        m_missingResources.clear();
+        if (m_metrics != null)
+        {
+            ((BundleImpl) m_revision.getBundle()).getFramework()
+                .getClassLoadingMetrics().unregister(this);
+        }
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -629,6 +664,9 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // Discard negative lookups, since the new wire may now provide them.
+        m_missingClasses.clear();
+        m_missingResources.clear();
     }
 
     public BundleRevision getResource()
@@ -878,6 +916,28 @@ public class BundleWiringImpl implements BundleWiring
                 List<Content> contentPath = m_revision.getContentPath();
                 for (Content content : contentPath)
                 {
+                    // Only look at the directories in question if the
+                    // content is indexed.
+                    EntryIndex index = m_revision.getEntryIndex(content);
+                    if (index != null)
+                    {
+                        for (String dir : index.getDirectories(path, recurse))
+                        {
+                            if (!noMerging.contains(dir))
+                            {
+                                for (String resource : index.getEntries(dir))
+                                {
+                                    if (matchesPattern(pattern, getPathHead(resource)))
+                                    {
+                                        localResources.add(
+                                            new ResourceSource(resource, m_revision));
+                                    }
+                                }
+                            }
+                        }
+                        continue;
+                    }
+
                     Enumeration<String> e = content.getEntries();
                     if (e != null)
                     {
@@ -1255,6 +1315,19 @@ public class BundleWiringImpl implements BundleWiring
             return true;
         }
 
+        // The boot delegation packages are fixed for the lifetime of
+        // the framework, so the answer for a given package can be cached.
+        Boolean cached = m_bootDelegatedPkgs.get(pkgName);
+        if (cached == null)
+        {
+            cached = Boolean.valueOf(calculateBootDelegation(pkgName));
+            m_bootDelegatedPkgs.put(pkgName, cached);
+        }
+        return cached.booleanValue();
+    }
+
+    private boolean calculateBootDelegation(String pkgName)
+    {
         boolean result = false;
 
         // Only consider delegation if we have a package name, since
@@ -1460,6 +1533,10 @@ public class BundleWiringImpl implements BundleWiring
                         result = (isClass)
                             ? (Object) bdcl.loadClass(name)
                             : (Object) bdcl.getResource(name);
+                        if ((m_metrics != null) && (result != null))
+                        {
+                            m_metrics.m_bootDelegationHits.incrementAndGet();
+                        }
                         // If this is a java.* package, then always terminate the
                         // search; otherwise, continue to look locally if not found.
                         if (pkgName.startsWith("java.") || (result != null))
@@ -1483,8 +1560,11 @@ public class BundleWiringImpl implements BundleWiring
                 // it continues if a null is returned.
                 result = searchImports(pkgName, name, isClass);
 
-                // If not found, try the revision's own class path.
-                if (result == null)
+                // If not found, try the revision's own class path, unless
+                // we already know the name cannot be found there.
+                Map<String, Boolean> missing = (isClass)
+                    ? m_missingClasses : m_missingResources;
+                if ((result == null) && !missing.containsKey(name))
                 {
                     if (isClass)
                     {
@@ -1505,12 +1585,28 @@ public class BundleWiringImpl implements BundleWiring
                         result = (Object) m_revision.getResourceLocal(name);
                     }
 
-                    // If still not found, then try the revision's dynamic imports.
+                    if ((m_metrics != null) && (result != null))
+                    {
+                        m_metrics.m_localHits.incrementAndGet();
+                    }
+
+                    // Remember the miss so that subsequent requests can skip
+                    // the local content after searching the imports.
                     if (result == null)
                     {
-                        result = searchDynamicImports(pkgName, name, isClass);
+                        if (missing.size() >= MAX_NEGATIVE_CACHE_SIZE)
+                        {
+                            missing.clear();
+                        }
+                        missing.put(name, Boolean.TRUE);
                     }
                 }
+
+                // If still not found, then try the revision's dynamic imports.
+                if (result == null)
+                {
+                    result = searchDynamicImports(pkgName, name, isClass);
+                }
             }
             finally
             {
@@ -1527,6 +1623,10 @@ public class BundleWiringImpl implements BundleWiring
 
         if (result == null)
         {
+            if (m_metrics != null)
+            {
+                m_metrics.m_negativeLookups.incrementAndGet();
+            }
             if (isClass)
             {
                 throw new ClassNotFoundException(
@@ -1555,6 +1655,10 @@ public class BundleWiringImpl implements BundleWiring
                 : (Object) ((BundleWiringImpl) provider.getWiring()).getResourceByDelegation(name);
             if (result != null)
             {
+                if (m_metrics != null)
+                {
+                    m_metrics.m_importHits.incrementAndGet();
+                }
                 return result;
             }
 
@@ -1582,6 +1686,10 @@ public class BundleWiringImpl implements BundleWiring
                         : (Object) ((BundleWiringImpl) p.getWiring()).getResourceByDelegation(name);
                     if (result != null)
                     {
+                        if (m_metrics != null)
+                        {
+                            m_metrics.m_requiredBundleHits.incrementAndGet();
+                        }
                         return result;
                     }
                 }
@@ -1627,9 +1735,18 @@ public class BundleWiringImpl implements BundleWiring
         if (provider != null)
         {
             // Return the class or resource.
-            return (isClass)
+            Object result = (isClass)
                 ? (Object) ((BundleWiringImpl) provider.getWiring()).getClassByDelegation(name)
                 : (Object) ((BundleWiringImpl) provider.getWiring()).getResourceByDelegation(name);
+            if (m_metrics != null)
+            {
+                m_metrics.m_dynamicImportResolutions.incrementAndGet();
+                if (result != null)
+                {
+                    m_metrics.m_dynamicImportHits.incrementAndGet();
+                }
+            }
+            return result;
         }
 
         // If implicit boot delegation is enabled, then try to guess whether
@@ -1837,6 +1954,17 @@ public class BundleWiringImpl implements BundleWiring
         }
     }
 
+    private static class ClassLock
+    {
+        private final Thread m_owner;
+        private boolean m_released = false;
+
+        ClassLock(Thread owner)
+        {
+            m_owner = owner;
+        }
+    }
+
     public static class BundleClassLoaderJava5 extends BundleClassLoader
     {
         static
@@ -1909,7 +2037,10 @@ public class BundleWiringImpl implements BundleWiring
         private Object[][] m_cachedLibs = new Object[0][];
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
-        private final Map<String, Thread> m_classLocks = new HashMap<String, Thread>();
+        // Per-class name locks used to define classes, so that unrelated
+        // classes can be defined in parallel.
+        private final ConcurrentMap<String, ClassLock> m_classLocks =
+            new ConcurrentHashMap<String, ClassLock>();
         private BundleWiringImpl m_wiring;
 
         public BundleClassLoader(BundleWiringImpl wiring, ClassLoader parent)
@@ -1940,13 +2071,8 @@ public class BundleWiringImpl implements BundleWiring
         protected Class loadClass(String name, boolean resolve)
             throws ClassNotFoundException
         {
-            Class clazz;
-
             // Make sure the class was not already loaded.
-            synchronized (m_classLocks)
-            {
-                clazz = findLoadedClass(name);
-            }
+            Class clazz = findLoadedClass(name);
 
             if (clazz == null)
             {
@@ -2021,6 +2147,11 @@ public class BundleWiringImpl implements BundleWiring
 
                 if (bytes != null)
                 {
+                    if (m_wiring.m_metrics != null)
+                    {
+                        m_wiring.m_metrics.m_bytesRead.addAndGet(bytes.length);
+                    }
+
                     // Get package name.
                     String pkgName = Util.getClassPackage(name);
 
@@ -2037,6 +2168,7 @@ public class BundleWiringImpl implements BundleWiring
                     WovenClassImpl wci = null;
                     if (!hooks.isEmpty())
                     {
+                        long weavingStart = (m_wiring.m_metrics != null) ? System.nanoTime() : 0;
                         // Create woven class to be used for hooks.
                         wci = new WovenClassImpl(name, m_wiring, bytes);
                         // Loop through hooks in service ranking order.
@@ -2082,34 +2214,18 @@ public class BundleWiringImpl implements BundleWiring
                                 }
                             }
                         }
+                        if (m_wiring.m_metrics != null)
+                        {
+                            m_wiring.m_metrics.m_weavingTime.addAndGet(
+                                System.nanoTime() - weavingStart);
+                        }
                     }
 
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
+                    // the lock for this class name and make sure than no
                     // other thread has defined this class in the meantime.
-                    synchronized (m_classLocks)
-                    {
-                        Thread me = Thread.currentThread();
-                        while (m_classLocks.containsKey(name) && (m_classLocks.get(name) != me))
-                        {
-                            try
-                            {
-                                m_classLocks.wait();
-                            }
-                            catch (InterruptedException e)
-                            {
-                                // TODO: WHAT TO DO HERE?
-                                throw new RuntimeException(e);
-                            }
-                        }
-                        // Lock released, try loading class.
-                        clazz = findLoadedClass(name);
-                        if (clazz == null)
-                        {
-                            // Not found, we should try load it.
-                            m_classLocks.put(name, me);
-                        }
-                    }
+                    ClassLock lock = acquireClassLock(name);
+                    clazz = findLoadedClass(name);
 
                     byte[] wovenBytes = null;
                     Class wovenClass = null;
@@ -2156,44 +2272,49 @@ public class BundleWiringImpl implements BundleWiring
                                 // Add the dynamic requirements.
                                 if (!allWovenReqs.isEmpty())
                                 {
-                                    // Check for duplicate woven imports.
-                                    // First grab existing woven imports, if any.
-                                    Set<String> filters = new HashSet<String>();
-                                    if (m_wiring.m_wovenReqs != null)
-                                    {
-                                        for (BundleRequirement req : m_wiring.m_wovenReqs)
-                                        {
-                                            filters.add(
-                                                ((BundleRequirementImpl) req)
-                                                    .getFilter().toString());
-                                        }
-                                    }
-                                    // Then check new woven imports for duplicates
-                                    // against existing and self.
-                                    int idx = allWovenReqs.size();
-                                    while (idx < allWovenReqs.size())
+                                    // Other classes may be woven concurrently, so check
+                                    // and merge under the wiring lock.
+                                    synchronized (m_wiring)
                                     {
-                                        BundleRequirement wovenReq = allWovenReqs.get(idx);
-                                        String filter = ((BundleRequirementImpl)
-                                            wovenReq).getFilter().toString();
-                                        if (!filters.contains(filter))
+                                        // Check for duplicate woven imports.
+                                        // First grab existing woven imports, if any.
+                                        Set<String> filters = new HashSet<String>();
+                                        if (m_wiring.m_wovenReqs != null)
                                         {
-                                            filters.add(filter);
-                                            idx++;
+                                            for (BundleRequirement req : m_wiring.m_wovenReqs)
+                                            {
+                                                filters.add(
+                                                    ((BundleRequirementImpl) req)
+                                                        .getFilter().toString());
+                                            }
                                         }
-                                        else
+                                        // Then check new woven imports for duplicates
+                                        // against existing and self.
+                                        int idx = allWovenReqs.size();
+                                        while (idx < allWovenReqs.size())
                                         {
-                                            allWovenReqs.remove(idx);
+                                            BundleRequirement wovenReq = allWovenReqs.get(idx);
+                                            String filter = ((BundleRequirementImpl)
+                                                wovenReq).getFilter().toString();
+                                            if (!filters.contains(filter))
+                                            {
+                                                filters.add(filter);
+                                                idx++;
+                                            }
+                                            else
+                                            {
+                                                allWovenReqs.remove(idx);
+                                            }
                                         }
-                                    }
-                                    // Merge existing with new imports, if any.
-                                    if (!allWovenReqs.isEmpty())
-                                    {
-                                        if (m_wiring.m_wovenReqs != null)
+                                        // Merge existing with new imports, if any.
+                                        if (!allWovenReqs.isEmpty())
                                         {
-                                            allWovenReqs.addAll(0, m_wiring.m_wovenReqs);
+                                            if (m_wiring.m_wovenReqs != null)
+                                            {
+                                                allWovenReqs.addAll(0, m_wiring.m_wovenReqs);
+                                            }
+                                            m_wiring.m_wovenReqs = allWovenReqs;
                                         }
-                                        m_wiring.m_wovenReqs = allWovenReqs;
                                     }
                                 }
                             }
@@ -2286,6 +2407,10 @@ public class BundleWiringImpl implements BundleWiring
 
                                 wovenClass = clazz;
                             }
+                            if ((m_wiring.m_metrics != null) && (clazz != null))
+                            {
+                                m_wiring.m_metrics.m_classesDefined.incrementAndGet();
+                            }
 
                             // At this point if we have a trigger class, then the deferred
                             // activation trigger has tripped.
@@ -2306,11 +2431,7 @@ public class BundleWiringImpl implements BundleWiring
                             wci.complete(wovenClass, wovenBytes, wovenImports);
                         }
 
-                        synchronized (m_classLocks)
-                        {
-                            m_classLocks.remove(name);
-                            m_classLocks.notifyAll();
-                        }
+                        releaseClassLock(name, lock);
                     }
 
                     // Perform deferred activation without holding the class loader lock,
@@ -2369,6 +2490,54 @@ public class BundleWiringImpl implements BundleWiring
             return new Object[] {null, null, null, null, null, null};
         }
 
+        private ClassLock acquireClassLock(String name)
+        {
+            Thread me = Thread.currentThread();
+            ClassLock lock = new ClassLock(me);
+            while (true)
+            {
+                ClassLock existing = m_classLocks.putIfAbsent(name, lock);
+                if (existing == null)
+                {
+                    return lock;
+                }
+                // Reentrant requests from the owning thread do not
+                // need to acquire the lock again.
+                else if (existing.m_owner == me)
+                {
+                    return null;
+                }
+                synchronized (existing)
+                {
+                    while (!existing.m_released)
+                    {
+                        try
+                        {
+                            existing.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // TODO: WHAT TO DO HERE?
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void releaseClassLock(String name, ClassLock lock)
+        {
+            if (lock != null)
+            {
+                m_classLocks.remove(name, lock);
+                synchronized (lock)
+                {
+                    lock.m_released = true;
+                    lock.notifyAll();
+                }
+            }
+        }
+
         private Class getDexFileClass(JarContent content, String name, ClassLoader loader)
             throws Exception
         {
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects class loading and resource lookup counters for each bundle
+ * wiring. It is only created if the <tt>felix.classloading.metrics</tt>
+ * property is enabled, in which case it is registered as a service that
+ * also provides the <tt>felix:classloading</tt> shell command. Since the
+ * framework does not export this class, consumers other than the shell
+ * should use {@link #getMetrics()}, which only returns standard types.
+**/
+public class ClassLoadingMetrics
+{
+    static final String[] COUNTER_NAMES = {
+        "classesDefined", "bytesRead", "bootDelegationHits", "importHits",
+        "requiredBundleHits", "localHits", "dynamicImportHits",
+        "dynamicImportResolutions", "weavingTimeNanos", "negativeLookups" };
+
+    private final Map<BundleWiringImpl, Counters> m_counters =
+        new ConcurrentHashMap<BundleWiringImpl, Counters>();
+
+    Counters register(BundleWiringImpl wiring)
+    {
+        Counters counters = new Counters();
+        m_counters.put(wiring, counters);
+        return counters;
+    }
+
+    void unregister(BundleWiringImpl wiring)
+    {
+        m_counters.remove(wiring);
+    }
+
+    /**
+     * Returns the counters of all current bundle wirings. The keys of the
+     * returned map identify the bundle revision of a wiring as
+     * <tt>&lt;bundle id&gt;.&lt;revision&gt; &lt;symbolic name&gt;</tt>;
+     * the values map counter names to their values.
+     * @return the counters of all current bundle wirings.
+    **/
+    public Map<String, Map<String, Long>> getMetrics()
+    {
+        Map<String, Map<String, Long>> result = new TreeMap<String, Map<String, Long>>();
+        for (Map.Entry<BundleWiringImpl, Counters> entry : m_counters.entrySet())
+        {
+            BundleRevisionImpl revision = (BundleRevisionImpl) entry.getKey().getRevision();
+            result.put(revision.getId() + " " + revision.getSymbolicName(),
+                entry.getValue().toMap());
+        }
+        return result;
+    }
+
+    /**
+     * Resets the counters of all current bundle wirings.
+    **/
+    public void reset()
+    {
+        for (Counters counters : m_counters.values())
+        {
+            counters.reset();
+        }
+    }
+
+    /**
+     * Shell command that lists the counters of each bundle wiring.
+     * @return a table of the counters of each bundle wiring.
+    **/
+    public String classloading()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("%-10s %8s %10s %6s %6s %6s %6s %6s %6s %8s %8s  %s%n",
+            "Revision", "Defined", "Bytes", "Boot", "Import", "Req", "Local",
+            "DynHit", "DynRes", "Weave-ms", "Misses", "Bundle"));
+        for (Map.Entry<String, Map<String, Long>> entry : getMetrics().entrySet())
+        {
+            int idx = entry.getKey().indexOf(' ');
+            List<Object> args = new ArrayList<Object>();
+            args.add(entry.getKey().substring(0, idx));
+            for (String name : COUNTER_NAMES)
+            {
+                long value = entry.getValue().get(name).longValue();
+                args.add(Long.valueOf(name.equals("weavingTimeNanos") ? value / 1000000 : value));
+            }
+            args.add(entry.getKey().substring(idx + 1));
+            sb.append(String.format(
+                "%-10s %8d %10d %6d %6d %6d %6d %6d %6d %8d %8d  %s%n", args.toArray()));
+        }
+        return sb.toString();
+    }
+
+    static class Counters
+    {
+        final AtomicLong m_classesDefined = new AtomicLong();
+        final AtomicLong m_bytesRead = new AtomicLong();
+        final AtomicLong m_bootDelegationHits = new AtomicLong();
+        final AtomicLong m_importHits = new AtomicLong();
+        final AtomicLong m_requiredBundleHits = new AtomicLong();
+        final AtomicLong m_localHits = new AtomicLong();
+        final AtomicLong m_dynamicImportHits = new AtomicLong();
+        final AtomicLong m_dynamicImportResolutions = new AtomicLong();
+        final AtomicLong m_weavingTime = new AtomicLong();
+        final AtomicLong m_negativeLookups = new AtomicLong();
+
+        private AtomicLong[] all()
+        {
+            // Same order as COUNTER_NAMES.
+            return new AtomicLong[] {
+                m_classesDefined, m_bytesRead, m_bootDelegationHits, m_importHits,
+                m_requiredBundleHits, m_localHits, m_dynamicImportHits,
+                m_dynamicImportResolutions, m_weavingTime, m_negativeLookups };
+        }
+
+        Map<String, Long> toMap()
+        {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            AtomicLong[] counters = all();
+            for (int i = 0; i < counters.length; i++)
+            {
+                map.put(COUNTER_NAMES[i], Long.valueOf(counters[i].get()));
+            }
+            return map;
+        }
+
+        void reset()
+        {
+            for (AtomicLong counter : all())
+            {
+                counter.set(0);
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.felix.framework;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.util.Util;
 import org.osgi.framework.wiring.BundleRevision;
@@ -29,6 +30,7 @@ class EntryFilterEnumeration implements Enumeration
 {
     private final BundleRevision m_revision;
     private final List<Enumeration> m_enumerations;
+    private final List<EntryIndex> m_indexes;
     private final List<BundleRevision> m_revisions;
     private int m_revisionIndex = 0;
     private final String m_path;
@@ -36,7 +38,7 @@ class EntryFilterEnumeration implements Enumeration
     private final boolean m_recurse;
     private final boolean m_isURLValues;
     private final Set<String> m_dirEntries = new HashSet();
-    private final List<Object> m_nextEntries = new ArrayList(2);
+    private final LinkedList<Object> m_nextEntries = new LinkedList();
 
     public EntryFilterEnumeration(
         BundleRevision revision, boolean includeFragments, String path,
@@ -54,10 +56,16 @@ class EntryFilterEnumeration implements Enumeration
         }
         m_revisions.add(0, m_revision);
         m_enumerations = new ArrayList(m_revisions.size());
+        m_indexes = new ArrayList(m_revisions.size());
         for (int i = 0; i < m_revisions.size(); i++)
         {
-            m_enumerations.add(((BundleRevisionImpl) m_revisions.get(i)).getContent() != null ?
-                ((BundleRevisionImpl) m_revisions.get(i)).getContent().getEntries() : null);
+            BundleRevisionImpl br = (BundleRevisionImpl) m_revisions.get(i);
+            Content content = br.getContent();
+            // Indexed contents do not need to be enumerated.
+            EntryIndex index = (content != null) ? br.getEntryIndex(content) : null;
+            m_indexes.add(index);
+            m_enumerations.add(((content != null) && (index == null))
+                ? content.getEntries() : null);
         }
         m_recurse = recurse;
         m_isURLValues = isURLValues;
@@ -98,7 +106,7 @@ class EntryFilterEnumeration implements Enumeration
         {
             throw new NoSuchElementException("No more entries.");
         }
-        Object last = m_nextEntries.remove(0);
+        Object last = m_nextEntries.removeFirst();
         findNext();
         return last;
     }
@@ -115,6 +123,13 @@ class EntryFilterEnumeration implements Enumeration
         }
         while ((m_revisionIndex < m_enumerations.size()) && m_nextEntries.isEmpty())
         {
+            if (m_indexes.get(m_revisionIndex) != null)
+            {
+                findIndexed(m_indexes.get(m_revisionIndex),
+                    (BundleRevisionImpl) m_revisions.get(m_revisionIndex));
+                m_revisionIndex++;
+                continue;
+            }
             while (m_enumerations.get(m_revisionIndex) != null
                 && m_enumerations.get(m_revisionIndex).hasMoreElements()
                 && m_nextEntries.isEmpty())
@@ -232,6 +247,57 @@ class EntryFilterEnumeration implements Enumeration
         }
     }
 
+    private void findIndexed(EntryIndex index, BundleRevisionImpl revision)
+    {
+        // The index knows the directories below the path, including the
+        // ones without entries of their own, so only the subdirectories
+        // and files of these directories need to be filtered.
+        for (String dir : index.getDirectories(m_path, m_recurse))
+        {
+            for (String subdir : index.getSubdirectories(dir))
+            {
+                if (SimpleFilter.compareSubstring(m_filePattern, getLastPathElement(subdir)))
+                {
+                    if (m_isURLValues)
+                    {
+                        try
+                        {
+                            m_nextEntries.add(new URL(
+                                revision.getEntry(index.getFirstEntry(subdir)), "/" + subdir));
+                        }
+                        catch (MalformedURLException ex)
+                        {
+                        }
+                    }
+                    else
+                    {
+                        m_nextEntries.add(subdir);
+                    }
+                }
+            }
+            for (String entryName : index.getEntries(dir))
+            {
+                if ((entryName.charAt(entryName.length() - 1) != '/')
+                    && SimpleFilter.compareSubstring(
+                        m_filePattern, getLastPathElement(entryName)))
+                {
+                    if (m_isURLValues)
+                    {
+                        URL entryURL = revision.getEntry(entryName);
+                        if (entryURL != null)
+                        {
+                            m_nextEntries.add(entryURL);
+                        }
+                    }
+                    else
+                    {
+                        m_nextEntries.add(entryName);
+                    }
+                }
+            }
+        }
+    }
+
     private static String getLastPathElement(String entryName)
     {
         int endIdx = (entryName.charAt(entryName.length() - 1) == '/')
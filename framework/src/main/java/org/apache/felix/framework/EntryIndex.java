@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directory tree of the entries of a content, so that the entries of a
+ * directory or a directory subtree can be listed without enumerating all
+ * entries of the content. Directories are keyed by their path with a
+ * trailing slash, the root directory by the empty string. Since JAR files
+ * need not contain entries for their directories, the tree also contains
+ * the directories that only exist as part of the path of an entry.
+**/
+class EntryIndex
+{
+    // Maps a directory to the entries directly contained in it.
+    private final Map<String, List<String>> m_entries = new HashMap<String, List<String>>();
+    // Maps a directory to its direct subdirectories.
+    private final Map<String, Set<String>> m_dirs = new HashMap<String, Set<String>>();
+    // Maps a directory to the first entry at or below it.
+    private final Map<String, String> m_firstEntries = new HashMap<String, String>();
+
+    EntryIndex(Enumeration<String> entries)
+    {
+        while ((entries != null) && entries.hasMoreElements())
+        {
+            add(entries.nextElement());
+        }
+    }
+
+    private void add(String entry)
+    {
+        if (entry.length() == 0)
+        {
+            return;
+        }
+        String parent = getParent(entry);
+        List<String> entries = m_entries.get(parent);
+        if (entries == null)
+        {
+            entries = new ArrayList<String>();
+            m_entries.put(parent, entries);
+        }
+        entries.add(entry);
+
+        // Add the directories on the path of the entry, stopping at the
+        // first one that is already known, since its parents are as well.
+        String dir = (entry.charAt(entry.length() - 1) == '/') ? entry : parent;
+        while (dir.length() > 0)
+        {
+            if (!m_firstEntries.containsKey(dir))
+            {
+                m_firstEntries.put(dir, entry);
+            }
+            String dirParent = getParent(dir);
+            Set<String> dirs = m_dirs.get(dirParent);
+            if (dirs == null)
+            {
+                dirs = new LinkedHashSet<String>();
+                m_dirs.put(dirParent, dirs);
+            }
+            if (!dirs.add(dir))
+            {
+                break;
+            }
+            dir = dirParent;
+        }
+    }
+
+    /**
+     * Returns the entries directly contained in the specified directory,
+     * including entries for subdirectories if the content has them.
+     * @param dir the directory path ending with a slash or the empty string.
+     * @return the entries of the directory.
+    **/
+    List<String> getEntries(String dir)
+    {
+        List<String> entries = m_entries.get(dir);
+        return (entries == null) ? Collections.EMPTY_LIST : entries;
+    }
+
+    /**
+     * Returns the direct subdirectories of the specified directory,
+     * whether or not the content has entries for them.
+     * @param dir the directory path ending with a slash or the empty string.
+     * @return the subdirectories of the directory.
+    **/
+    Set<String> getSubdirectories(String dir)
+    {
+        Set<String> dirs = m_dirs.get(dir);
+        return (dirs == null) ? Collections.EMPTY_SET : dirs;
+    }
+
+    /**
+     * Returns the specified directory followed by all directories below
+     * it if requested.
+     * @param dir the directory path ending with a slash or the empty string.
+     * @param recurse whether to include the directories below it.
+     * @return the directory and, if requested, all directories below it.
+    **/
+    List<String> getDirectories(String dir, boolean recurse)
+    {
+        List<String> result = new ArrayList<String>();
+        result.add(dir);
+        for (int i = 0; recurse && (i < result.size()); i++)
+        {
+            result.addAll(getSubdirectories(result.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns an entry of the content that is the specified directory or
+     * is located below it.
+     * @param dir the directory path ending with a slash.
+     * @return an entry at or below the directory or <tt>null</tt>.
+    **/
+    String getFirstEntry(String dir)
+    {
+        return m_firstEntries.get(dir);
+    }
+
+    // Same as BundleWiringImpl.getTrailingPath().
+    private static String getParent(String entry)
+    {
+        int idx = (entry.charAt(entry.length() - 1) == '/')
+            ? entry.lastIndexOf('/', entry.length() - 2)
+            : entry.lastIndexOf('/');
+        return (idx < 0) ? "" : entry.substring(0, idx + 1);
+    }
+}
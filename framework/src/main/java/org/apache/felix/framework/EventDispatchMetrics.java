@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.felix.framework.util.EventDispatcher;
+
+/**
+ * Reports how many asynchronous framework, bundle, and service events
+ * are queued for delivery. It is only created if the
+ * <tt>felix.event.dispatch.metrics</tt> property is enabled, in which case
+ * it is registered as a service that also provides the
+ * <tt>felix:eventqueue</tt> shell command. Since the framework does not
+ * export this class, consumers other than the shell should use
+ * {@link #getMetrics()}, which only returns standard types.
+**/
+public class EventDispatchMetrics
+{
+    private final EventDispatcher m_dispatcher;
+
+    EventDispatchMetrics(EventDispatcher dispatcher)
+    {
+        m_dispatcher = dispatcher;
+    }
+
+    /**
+     * Returns the current number of queued asynchronous events as
+     * <tt>queueDepth</tt> and the highest number of asynchronous events
+     * queued at the same time as <tt>maxQueueDepth</tt>.
+     * @return the queue depths by name.
+    **/
+    public Map<String, Integer> getMetrics()
+    {
+        Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+        map.put("queueDepth", Integer.valueOf(m_dispatcher.getQueueDepth()));
+        map.put("maxQueueDepth", Integer.valueOf(m_dispatcher.getMaxQueueDepth()));
+        return map;
+    }
+
+    /**
+     * Shell command that shows the current and maximum queue depth.
+     * @return the queue depths.
+    **/
+    public String eventqueue()
+    {
+        return String.format("%-8s %8s%n%-8s %8d%n%-8s %8d%n",
+            "Queue", "Events",
+            "Current", Integer.valueOf(m_dispatcher.getQueueDepth()),
+            "Maximum", Integer.valueOf(m_dispatcher.getMaxQueueDepth()));
+    }
+}
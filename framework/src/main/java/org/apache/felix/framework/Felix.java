@@ -23,6 +23,12 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
 import org.apache.felix.framework.cache.BundleArchive;
@@ -83,6 +89,9 @@ public class Felix extends BundleImpl implements Framework
     private final FrameworkWiringImpl m_fwkWiring;
     private final FrameworkStartLevelImpl m_fwkStartLevel;
 
+    // Class loading counters, null unless enabled.
+    private final ClassLoadingMetrics m_classLoadingMetrics;
+
     // Logging related member variables.
     private final Logger m_logger;
     // Immutable config properties.
@@ -400,10 +409,18 @@ public class Felix extends BundleImpl implements Framework
             {
                 fireServiceEvent(event, oldProps);
             }
-        });
+        }, "true".equalsIgnoreCase(
+            (String) m_configMap.get(FelixConstants.SERVICE_REGISTRY_CONCURRENT_PROP)));
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        m_dispatcher = new EventDispatcher(
+            m_logger, m_registry,
+            getThreadCount(FelixConstants.EVENT_DISPATCH_THREADS_PROP));
+
+        // Create class loading metrics, if enabled.
+        m_classLoadingMetrics = "true".equalsIgnoreCase(
+            (String) m_configMap.get(FelixConstants.CLASSLOADING_METRICS_PROP))
+            ? new ClassLoadingMetrics() : null;
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -411,6 +428,11 @@ public class Felix extends BundleImpl implements Framework
         m_fwkStartLevel = new FrameworkStartLevelImpl(this, m_registry);
     }
 
+    ClassLoadingMetrics getClassLoadingMetrics()
+    {
+        return m_classLoadingMetrics;
+    }
+
     Logger getLogger()
     {
         return m_logger;
@@ -767,6 +789,19 @@ public class Felix extends BundleImpl implements Framework
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
+                // Now that all cached bundles are installed, load any
+                // resolve results persisted by the previous execution.
+                try
+                {
+                    m_resolver.loadResolutionCache(
+                        m_cache.getSystemBundleDataFile("resolver.cache"));
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Unable to load resolution cache.", ex);
+                }
+
                 // The framework is now in its startup sequence.
                 setBundleStateAndNotify(this, Bundle.STARTING);
 
@@ -777,6 +812,27 @@ public class Felix extends BundleImpl implements Framework
                 // Start services
                 m_fwkWiring.start();
                 m_fwkStartLevel.start();
+                if (m_classLoadingMetrics != null)
+                {
+                    // Also provide the metrics as a shell command.
+                    Hashtable<String, Object> props = new Hashtable<String, Object>();
+                    props.put("osgi.command.scope", "felix");
+                    props.put("osgi.command.function", new String[] { "classloading" });
+                    m_registry.registerService(_getBundleContext(),
+                        new String[] { ClassLoadingMetrics.class.getName() },
+                        m_classLoadingMetrics, props);
+                }
+                if ("true".equalsIgnoreCase(
+                    (String) m_configMap.get(FelixConstants.EVENT_DISPATCH_METRICS_PROP)))
+                {
+                    // Also provide the queue depths as a shell command.
+                    Hashtable<String, Object> props = new Hashtable<String, Object>();
+                    props.put("osgi.command.scope", "felix");
+                    props.put("osgi.command.function", new String[] { "eventqueue" });
+                    m_registry.registerService(_getBundleContext(),
+                        new String[] { EventDispatchMetrics.class.getName() },
+                        new EventDispatchMetrics(m_dispatcher), props);
+                }
 
                 try
                 {
@@ -1208,126 +1264,95 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
-            // Process bundles and stop or start them accordingly.
-            while (bundlesRemaining)
-            {
-                StartLevelTuple tuple;
-
-                // Remove our tuple to be processed while holding the queue lock
-                // and update the active start level accordingly, which allows
-                // us to determine in startBundle() if concurrent requests to
-                // start a bundle should be handled synchronously or just added
-                // to the queue and handled asynchronously.
-                synchronized (m_startLevelBundles)
-                {
-                    if (isLowering)
-                    {
-                        tuple = m_startLevelBundles.last();
-                    }
-                    else
-                    {
-                        tuple = m_startLevelBundles.first();
-                    }
+            // Create an executor for starting the bundles of a start level
+            // in parallel, if configured.
+            int threads = getThreadCount(FelixConstants.STARTLEVEL_PARALLEL_THREADS_PROP);
+            ExecutorService executor = ((threads > 0) && !isLowering)
+                ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    private int m_count = 0;
 
-                    if ((tuple.m_level >= low) && (tuple.m_level <= high))
+                    public synchronized Thread newThread(Runnable r)
                     {
-                        m_activeStartLevel = tuple.m_level;
+                        return new StartLevelWorker(
+                            r, FrameworkStartLevelImpl.THREAD_NAME + "-" + (m_count++));
                     }
-                }
+                })
+                : null;
 
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
+            try
+            {
+                // Process bundles and stop or start them accordingly.
+                while (bundlesRemaining)
                 {
-                    // Lock the current bundle.
-                    try
+                    StartLevelTuple tuple;
+
+                    // Remove our tuple to be processed while holding the queue lock
+                    // and update the active start level accordingly, which allows
+                    // us to determine in startBundle() if concurrent requests to
+                    // start a bundle should be handled synchronously or just added
+                    // to the queue and handled asynchronously.
+                    synchronized (m_startLevelBundles)
                     {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
-                    {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                        if (isLowering)
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
+                            tuple = m_startLevelBundles.last();
                         }
                         else
                         {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
+                            tuple = m_startLevelBundles.first();
+                        }
+
+                        if ((tuple.m_level >= low) && (tuple.m_level <= high))
+                        {
+                            m_activeStartLevel = tuple.m_level;
                         }
-                        continue;
                     }
 
-                    try
+                    // When raising the start level in parallel, start all bundles
+                    // of the current start level concurrently and wait for them
+                    // to finish before moving on to the next start level.
+                    if ((executor != null) && (tuple.m_level >= low) && (tuple.m_level <= high))
                     {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                        List<StartLevelTuple> batch = new ArrayList<StartLevelTuple>();
+                        synchronized (m_startLevelBundles)
                         {
-                            try
+                            for (StartLevelTuple t : m_startLevelBundles)
                             {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
+                                if (t.m_level != tuple.m_level)
+                                {
+                                    break;
+                                }
+                                batch.add(t);
                             }
                         }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+
+                        List<StartLevelTuple> processed = startLevelInParallel(executor, batch);
+
+                        synchronized (m_startLevelBundles)
                         {
-                            try
-                            {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
-                            }
+                            m_startLevelBundles.removeAll(processed);
+                            bundlesRemaining = !m_startLevelBundles.isEmpty();
                         }
+                        continue;
                     }
-                    finally
+
+                    if (!processStartLevelTuple(tuple, isLowering))
                     {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
+                        continue;
                     }
-                }
 
-                synchronized (m_startLevelBundles)
+                    synchronized (m_startLevelBundles)
+                    {
+                        m_startLevelBundles.remove(tuple);
+                        bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    }
+                }
+            }
+            finally
+            {
+                if (executor != null)
                 {
-                    m_startLevelBundles.remove(tuple);
-                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    executor.shutdown();
                 }
             }
 
@@ -1358,6 +1383,197 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts or stops the bundle of the specified start level tuple if
+     * required by the active start level.
+     * @param tuple the bundle and its start level.
+     * @param isLowering whether the start level is being lowered.
+     * @return <tt>true</tt> if the tuple was processed, <tt>false</tt> if
+     *         the bundle could not be locked and must be processed again.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, boolean isLowering)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (tuple.m_bundle.getBundleId() != 0)
+        {
+            // Lock the current bundle.
+            try
+            {
+                acquireBundleLock(tuple.m_bundle,
+                    Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                    | Bundle.STARTING | Bundle.STOPPING);
+            }
+            catch (IllegalStateException ex)
+            {
+                // Ignore if the bundle has been uninstalled.
+                if (tuple.m_bundle.getState() == Bundle.UNINSTALLED)
+                {
+                    return true;
+                }
+                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                m_logger.log(tuple.m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error locking " + tuple.m_bundle._getLocation(), ex);
+                return false;
+            }
+
+            try
+            {
+                // Start the bundle if necessary.
+                // Note that we only attempt to start the bundle if
+                // its start level is equal to the active start level,
+                // which means we assume lower bundles are in the state
+                // they should be in (i.e., we won't attempt to restart
+                // them if they previously failed to start).
+                if (!isLowering
+                    && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                        || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                        && (tuple.m_level == m_activeStartLevel)))
+                {
+                    try
+                    {
+// TODO: LAZY - Not sure if this is the best way...
+                        int options = Bundle.START_TRANSIENT;
+                        options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                            ? options | Bundle.START_ACTIVATION_POLICY
+                            : options;
+                        startBundle(tuple.m_bundle, options);
+                    }
+                    catch (Throwable th)
+                    {
+                        fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error starting " + tuple.m_bundle._getLocation(), th);
+                    }
+                }
+                // Stop the bundle if necessary.
+                else if (isLowering
+                    && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                        || (tuple.m_bundle.getState() == Bundle.STARTING))
+                        && (tuple.m_level == m_activeStartLevel)))
+                {
+                    try
+                    {
+                        stopBundle(tuple.m_bundle, false);
+                    }
+                    catch (Throwable th)
+                    {
+                        fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error stopping " + tuple.m_bundle._getLocation(), th);
+                    }
+                }
+            }
+            finally
+            {
+                // Always release bundle lock.
+                releaseBundleLock(tuple.m_bundle);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts the bundles of a single start level concurrently and waits
+     * until all of them are started. The bundles are resolved together
+     * beforehand, so they do not contend for the global lock. Failures are
+     * reported as framework events for the individual bundles.
+     * @param executor the executor to start the bundles on.
+     * @param batch the bundles of the start level.
+     * @return the tuples that were processed.
+    **/
+    private List<StartLevelTuple> startLevelInParallel(
+        ExecutorService executor, List<StartLevelTuple> batch)
+    {
+        List<Bundle> targets = new ArrayList<Bundle>(batch.size());
+        for (StartLevelTuple tuple : batch)
+        {
+            if ((tuple.m_bundle.getBundleId() != 0)
+                && (tuple.m_bundle.getState() == Bundle.INSTALLED)
+                && ((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING)))
+            {
+                targets.add(tuple.m_bundle);
+            }
+        }
+        if (!targets.isEmpty())
+        {
+            resolveBundles(targets);
+        }
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(batch.size());
+        for (final StartLevelTuple tuple : batch)
+        {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call()
+                {
+                    return Boolean.valueOf(processStartLevelTuple(tuple, false));
+                }
+            }));
+        }
+
+        // Wait for the whole start level to be processed.
+        List<StartLevelTuple> processed = new ArrayList<StartLevelTuple>(batch.size());
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                if (futures.get(i).get().booleanValue())
+                {
+                    processed.add(batch.get(i));
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+                i--;
+            }
+            catch (ExecutionException ex)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, batch.get(i).m_bundle, ex.getCause());
+                m_logger.log(batch.get(i).m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error starting " + batch.get(i).m_bundle._getLocation(), ex.getCause());
+                processed.add(batch.get(i));
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return processed;
+    }
+
+    /**
+     * Returns the number of threads configured by the specified property,
+     * or zero if the property is not set to a positive number.
+     * @param propName the name of the configuration property.
+     * @return The configured number of threads.
+    **/
+    int getThreadCount(String propName)
+    {
+        String s = (String) m_configMap.get(propName);
+
+        if (s != null)
+        {
+            try
+            {
+                int i = Integer.parseInt(s.trim());
+                return (i > 0) ? i : 0;
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and return the default value.
+            }
+        }
+        return 0;
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -1946,7 +2162,8 @@ public class Felix extends BundleImpl implements Framework
             // queued but processed synchronously.
             // Note: Don't queue starts from the start level thread, otherwise
             // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME)
+                && !(Thread.currentThread() instanceof StartLevelWorker))
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -3984,6 +4201,26 @@ public class Felix extends BundleImpl implements Framework
 
     void refreshPackages(Collection<Bundle> targets, FrameworkListener[] listeners)
     {
+        refreshPackages(targets, listeners, null);
+    }
+
+    /**
+     * Refreshes the specified bundles and all bundles depending on them. If
+     * an executor is specified, the refreshed bundles are split into groups
+     * that are not wired to each other, which are stopped and restarted
+     * concurrently without holding the global lock; in that case the calling
+     * thread must not hold the global lock.
+     * @param targets the bundles to refresh or <tt>null</tt> for all bundles
+     *        that were updated or uninstalled.
+     * @param listeners the listeners to notify when the refresh is done.
+     * @param executor the executor for stopping and restarting groups of
+     *        bundles concurrently or <tt>null</tt>.
+    **/
+    void refreshPackages(
+        Collection<Bundle> targets, FrameworkListener[] listeners, ExecutorService executor)
+    {
+        long time = System.nanoTime();
+
         // Acquire global lock.
         boolean locked = acquireGlobalLock();
         if (!locked)
@@ -4052,7 +4289,10 @@ public class Felix extends BundleImpl implements Framework
             }
         }
 
+        long closureTime = System.nanoTime() - time;
+
         // Now refresh each bundle.
+        List<List<RefreshHelper>> groups = null;
         try
         {
             boolean restart = false;
@@ -4096,31 +4336,47 @@ public class Felix extends BundleImpl implements Framework
                         helpers.add(new RefreshHelper(b));
                     }
 
-                    // Stop all refreshing bundles.
-                    for (RefreshHelper helper : helpers)
+                    // Stop and restart independent groups of bundles
+                    // concurrently after releasing the global lock.
+                    if (executor != null)
+                    {
+                        groups = groupRefreshHelpers(helpers);
+                    }
+                    else
                     {
-                        if (helper != null)
+                        // Stop all refreshing bundles.
+                        time = System.nanoTime();
+                        for (RefreshHelper helper : helpers)
                         {
-                            helper.stop();
+                            if (helper != null)
+                            {
+                                helper.stop();
+                            }
                         }
-                    }
+                        long stopTime = System.nanoTime() - time;
 
-                    // Refresh or remove all refreshing bundles first.
-                    for (RefreshHelper helper : helpers)
-                    {
-                        if (helper != null)
+                        // Refresh or remove all refreshing bundles first.
+                        time = System.nanoTime();
+                        for (RefreshHelper helper : helpers)
                         {
-                            helper.refreshOrRemove();
+                            if (helper != null)
+                            {
+                                helper.refreshOrRemove();
+                            }
                         }
-                    }
+                        long refreshTime = System.nanoTime() - time;
 
-                    // Restart all refreshed bundles that were previously running.
-                    for (RefreshHelper helper : helpers)
-                    {
-                        if (helper != null)
+                        // Restart all refreshed bundles that were previously running.
+                        time = System.nanoTime();
+                        for (RefreshHelper helper : helpers)
                         {
-                            helper.restart();
+                            if (helper != null)
+                            {
+                                helper.restart();
+                            }
                         }
+                        logRefreshTimes(helpers.size(), 1, closureTime,
+                            stopTime, refreshTime, System.nanoTime() - time);
                     }
                 }
                 else
@@ -4142,6 +4398,11 @@ public class Felix extends BundleImpl implements Framework
             releaseGlobalLock();
         }
 
+        if (groups != null)
+        {
+            refreshInParallel(bundles, groups, executor, closureTime);
+        }
+
         fireFrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, this, null);
 
         if (listeners != null)
@@ -4163,6 +4424,192 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    // Calls to this method must have the global lock.
+    private List<List<RefreshHelper>> groupRefreshHelpers(List<RefreshHelper> helpers)
+    {
+        // Start with a group per bundle and merge the groups of
+        // bundles that are wired to each other.
+        Map<Bundle, List<RefreshHelper>> groupMap = new HashMap<Bundle, List<RefreshHelper>>();
+        for (RefreshHelper helper : helpers)
+        {
+            List<RefreshHelper> group = new ArrayList<RefreshHelper>();
+            group.add(helper);
+            groupMap.put(helper.getBundle(), group);
+        }
+        for (RefreshHelper helper : helpers)
+        {
+            Set<Bundle> dependents = m_dependencies.getDependentBundles(helper.getBundle());
+            if (dependents == null)
+            {
+                continue;
+            }
+            for (Bundle dependent : dependents)
+            {
+                List<RefreshHelper> group = groupMap.get(helper.getBundle());
+                List<RefreshHelper> other = groupMap.get(dependent);
+                if ((other != null) && (other != group))
+                {
+                    if (group.size() < other.size())
+                    {
+                        List<RefreshHelper> tmp = group;
+                        group = other;
+                        other = tmp;
+                    }
+                    group.addAll(other);
+                    for (RefreshHelper h : other)
+                    {
+                        groupMap.put(h.getBundle(), group);
+                    }
+                }
+            }
+        }
+
+        List<List<RefreshHelper>> groups = new ArrayList<List<RefreshHelper>>();
+        Map<List<RefreshHelper>, Boolean> seen =
+            new IdentityHashMap<List<RefreshHelper>, Boolean>();
+        for (RefreshHelper helper : helpers)
+        {
+            List<RefreshHelper> group = groupMap.get(helper.getBundle());
+            if (seen.put(group, Boolean.TRUE) == null)
+            {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    private void refreshInParallel(Set<Bundle> bundles,
+        List<List<RefreshHelper>> groups, ExecutorService executor, long closureTime)
+    {
+        // Stop the groups concurrently, each group on a single thread.
+        long time = System.nanoTime();
+        runRefreshHelpers(groups, executor, false);
+        long stopTime = System.nanoTime() - time;
+
+        // Refresh or remove the bundles under the global lock. Bundles
+        // that were started again in the meantime are stopped first.
+        time = System.nanoTime();
+        int count = 0;
+        boolean locked = acquireGlobalLock();
+        if (!locked)
+        {
+            // Report the failure like any other refresh error and restart
+            // the bundles, which are still wired as before.
+            fireFrameworkEvent(FrameworkEvent.ERROR, this,
+                new IllegalStateException("Unable to acquire global lock for refresh."));
+            runRefreshHelpers(groups, executor, true);
+            return;
+        }
+        try
+        {
+            // Bundles may have been resolved against the revisions being
+            // refreshed while the global lock was released, so they must be
+            // refreshed too or they would stay wired to disposed revisions.
+            Set<Bundle> closure = new HashSet<Bundle>(bundles);
+            for (Bundle b : bundles)
+            {
+                populateDependentGraph((BundleImpl) b, closure);
+            }
+            closure.removeAll(bundles);
+            if (!closure.isEmpty())
+            {
+                List<RefreshHelper> group = new ArrayList<RefreshHelper>(closure.size());
+                for (Bundle b : closure)
+                {
+                    forgetUninstalledBundle((BundleImpl) b);
+                    group.add(new RefreshHelper(b));
+                }
+                groups.add(group);
+            }
+
+            for (List<RefreshHelper> group : groups)
+            {
+                for (RefreshHelper helper : group)
+                {
+                    helper.stop();
+                }
+            }
+            for (List<RefreshHelper> group : groups)
+            {
+                for (RefreshHelper helper : group)
+                {
+                    helper.refreshOrRemove();
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            releaseGlobalLock();
+        }
+        long refreshTime = System.nanoTime() - time;
+
+        // Restart the groups concurrently.
+        time = System.nanoTime();
+        runRefreshHelpers(groups, executor, true);
+        logRefreshTimes(count, groups.size(), closureTime,
+            stopTime, refreshTime, System.nanoTime() - time);
+    }
+
+    private void runRefreshHelpers(
+        List<List<RefreshHelper>> groups, ExecutorService executor, final boolean restart)
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>(groups.size());
+        for (final List<RefreshHelper> group : groups)
+        {
+            futures.add(executor.submit(new Runnable() {
+                public void run()
+                {
+                    for (RefreshHelper helper : group)
+                    {
+                        if (restart)
+                        {
+                            helper.restart();
+                        }
+                        else
+                        {
+                            helper.stop();
+                        }
+                    }
+                }
+            }));
+        }
+
+        // Wait for all groups to be processed.
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                futures.get(i).get();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+                i--;
+            }
+            catch (ExecutionException ex)
+            {
+                m_logger.log(Logger.LOG_ERROR,
+                    "Error refreshing bundles.", ex.getCause());
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void logRefreshTimes(int count, int groups, long closureTime,
+        long stopTime, long refreshTime, long restartTime)
+    {
+        m_logger.log(Logger.LOG_DEBUG,
+            "Refreshed " + count + " bundles in " + groups + " groups: closure "
+            + (closureTime / 1000000) + " ms, stop " + (stopTime / 1000000)
+            + " ms, refresh " + (refreshTime / 1000000) + " ms, restart "
+            + (restartTime / 1000000) + " ms.");
+    }
+
     Collection<Bundle> getDependencyClosure(Collection<Bundle> targets)
     {
         // Acquire global lock.
@@ -4700,6 +5147,10 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
+            // Persist resolve results for the next execution.
+            m_resolver.saveResolutionCache();
+            m_resolver.stop();
+
             // Dispose of the bundles to close their associated contents.
             bundles = getBundles();
             for (int i = 0; i < bundles.length; i++)
@@ -4771,12 +5222,18 @@ public class Felix extends BundleImpl implements Framework
     {
         private BundleImpl m_bundle = null;
         private int m_oldState = Bundle.INSTALLED;
+        private boolean m_isStopped = false;
 
         public RefreshHelper(Bundle bundle)
         {
             m_bundle = (BundleImpl) bundle;
         }
 
+        public Bundle getBundle()
+        {
+            return m_bundle;
+        }
+
         public void stop()
         {
             acquireBundleLock(m_bundle,
@@ -4784,8 +5241,15 @@ public class Felix extends BundleImpl implements Framework
                     Bundle.ACTIVE | Bundle.STOPPING | Bundle.UNINSTALLED);
             try
             {
-                m_oldState = m_bundle.getState();
-                if (m_oldState != Bundle.UNINSTALLED)
+                // Only remember the state before the first stop, since
+                // a parallel refresh stops the bundles a second time.
+                int state = m_bundle.getState();
+                if (!m_isStopped)
+                {
+                    m_oldState = state;
+                    m_isStopped = true;
+                }
+                if (state != Bundle.UNINSTALLED)
                 {
                     if (!Util.isFragment(m_bundle.adapt(BundleRevision.class)))
                     {
@@ -4851,6 +5315,20 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Worker thread used to start the bundles of a start level in parallel.
+     * Like the start level thread itself, bundles started from it must not
+     * be queued, which is checked by its type.
+    **/
+    private static class StartLevelWorker extends Thread
+    {
+        StartLevelWorker(Runnable r, String name)
+        {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
     // Compares bundles by start level. Within a start level,
     // bundles are sorted by bundle ID.
     private static class StartLevelTuple implements Comparable<StartLevelTuple>
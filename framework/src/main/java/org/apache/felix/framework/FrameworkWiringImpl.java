@@ -20,7 +20,13 @@ package org.apache.felix.framework;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.felix.framework.util.FelixConstants;
 import org.osgi.framework.AdminPermission;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.FrameworkListener;
@@ -37,12 +43,32 @@ class FrameworkWiringImpl implements FrameworkWiring, Runnable
         = new ArrayList<FrameworkListener[]>();
     private ServiceRegistration<PackageAdmin> m_paReg;
     private Thread m_thread = null;
+    // Time in milliseconds to wait for further requests to refresh together.
+    private final long m_coalesceWindow;
+    private final int m_parallelThreads;
+    private ExecutorService m_executor = null;
 
 
     public FrameworkWiringImpl(Felix felix, ServiceRegistry registry)
     {
         m_felix = felix;
         m_registry = registry;
+
+        long window = 0;
+        String s = m_felix.getProperty(FelixConstants.REFRESH_COALESCE_WINDOW_PROP);
+        if (s != null)
+        {
+            try
+            {
+                window = Long.parseLong(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and use the default value.
+            }
+        }
+        m_coalesceWindow = (window > 0) ? window : 0;
+        m_parallelThreads = m_felix.getThreadCount(FelixConstants.REFRESH_PARALLEL_THREADS_PROP);
     }
 
     void start()
@@ -102,6 +128,17 @@ class FrameworkWiringImpl implements FrameworkWiring, Runnable
                 m_thread.setDaemon(true);
                 m_thread.start();
             }
+            if ((m_executor == null) && (m_parallelThreads > 0))
+            {
+                m_executor = Executors.newFixedThreadPool(m_parallelThreads, new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "FelixFrameworkWiring");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
 
             // Queue request and notify thread.
             m_requests.add(bundles);
@@ -146,6 +183,9 @@ class FrameworkWiringImpl implements FrameworkWiring, Runnable
         {
             Collection<Bundle> bundles = null;
             FrameworkListener[] listeners = null;
+            List<Collection<Bundle>> requests = null;
+            List<FrameworkListener[]> requestListeners = null;
+            ExecutorService executor = null;
             synchronized (m_requests)
             {
                 // Wait for a refresh request.
@@ -154,6 +194,11 @@ class FrameworkWiringImpl implements FrameworkWiring, Runnable
                     // Terminate the thread if requested to do so (see stop()).
                     if (m_thread == null)
                     {
+                        if (m_executor != null)
+                        {
+                            m_executor.shutdown();
+                            m_executor = null;
+                        }
                         return;
                     }
 
@@ -166,23 +211,98 @@ class FrameworkWiringImpl implements FrameworkWiring, Runnable
                     }
                 }
 
-                // Get the bundles parameter for the current refresh request.
-                bundles = m_requests.get(0);
-                listeners = m_requestListeners.get(0);
+                // Wait for further requests to perform them together
+                // with the current one.
+                long end = System.currentTimeMillis() + m_coalesceWindow;
+                for (long now = System.currentTimeMillis();
+                    (now < end) && (m_thread != null);
+                    now = System.currentTimeMillis())
+                {
+                    try
+                    {
+                        m_requests.wait(end - now);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                    }
+                }
+
+                // Get the bundles parameter for the current refresh request
+                // or the pending requests if they are merged.
+                if (m_coalesceWindow > 0)
+                {
+                    requests = new ArrayList<Collection<Bundle>>(m_requests);
+                    requestListeners = new ArrayList<FrameworkListener[]>(m_requestListeners);
+                }
+                else
+                {
+                    bundles = m_requests.get(0);
+                    listeners = m_requestListeners.get(0);
+                }
+                executor = m_executor;
+            }
+
+            int count = 1;
+            if (requests != null)
+            {
+                count = requests.size();
+                bundles = mergeRequests(requests);
+                listeners = mergeListeners(requestListeners);
             }
 
             // Perform refresh.
             // NOTE: We don't catch any exceptions here, because
             // the invoked method shields us from exceptions by
             // catching Throwables when its invokes callbacks.
-            m_felix.refreshPackages(bundles, listeners);
+            m_felix.refreshPackages(bundles, listeners, executor);
 
-            // Remove the first request since it is now completed.
+            // Remove the performed requests since they are now completed.
             synchronized (m_requests)
             {
-                m_requests.remove(0);
-                m_requestListeners.remove(0);
+                m_requests.subList(0, count).clear();
+                m_requestListeners.subList(0, count).clear();
+            }
+        }
+    }
+
+    private Collection<Bundle> mergeRequests(List<Collection<Bundle>> requests)
+    {
+        // A null request refreshes all updated and uninstalled bundles,
+        // which must then be added to the bundles of the other requests.
+        Set<Bundle> bundles = new LinkedHashSet<Bundle>();
+        boolean pending = false;
+        for (Collection<Bundle> request : requests)
+        {
+            if (request == null)
+            {
+                pending = true;
+            }
+            else
+            {
+                bundles.addAll(request);
+            }
+        }
+        if (pending)
+        {
+            if (bundles.isEmpty())
+            {
+                return null;
+            }
+            bundles.addAll(m_felix.getRemovalPendingBundles());
+        }
+        return bundles;
+    }
+
+    private static FrameworkListener[] mergeListeners(List<FrameworkListener[]> requestListeners)
+    {
+        List<FrameworkListener> listeners = new ArrayList<FrameworkListener>();
+        for (FrameworkListener[] ls : requestListeners)
+        {
+            for (int i = 0; (ls != null) && (i < ls.length); i++)
+            {
+                listeners.add(ls[i]);
             }
         }
+        return listeners.toArray(new FrameworkListener[listeners.size()]);
     }
 }
\ No newline at end of file
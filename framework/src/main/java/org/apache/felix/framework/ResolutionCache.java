@@ -0,0 +1,576 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.resolver.ResolverWireImpl;
+import org.apache.felix.framework.util.Util;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Persistent cache of resolver results. For every revision resolved by the
+ * resolver, the cache records its wires, with requirements and capabilities
+ * identified by their declaring revision and their position in its declared
+ * requirements or capabilities. The cache is saved together with a
+ * fingerprint of all installed revisions, their contents, and the
+ * framework environment, and it is only reused after a restart if the
+ * fingerprint is unchanged. Results recorded before the set of installed
+ * revisions changed are never saved, since resolving again could produce
+ * different wires. Only closed sets of results are saved, where the
+ * result of every provider was recorded together with or before the result
+ * of the revisions wired to it, and cached results are only reused on top
+ * of providers whose wiring was itself reused from the cache. Otherwise
+ * the cached wires could have been computed against a different wiring of
+ * a provider than the current one, without its uses constraints being
+ * checked again.
+**/
+class ResolutionCache
+{
+    private static final int CACHE_VERSION = 1;
+    // The identifier of the system bundle revision, which is not resolved
+    // by the resolver and whose capabilities are part of the fingerprint.
+    private static final String SYSTEM_BUNDLE_REVISION_ID = "0";
+
+    private final Logger m_logger;
+    private final File m_file;
+    private final Map<String, CachedRevision> m_revisions =
+        new HashMap<String, CachedRevision>();
+    // Identifiers of the revisions resolved from the cache.
+    private final Set<String> m_reused = new HashSet<String>();
+    // Incremented whenever the set of installed revisions changes.
+    private int m_state = 0;
+    // Incremented for every recorded resolve operation; loaded results
+    // have sequence 0, since they were saved as a closed set.
+    private int m_sequence = 0;
+
+    ResolutionCache(Logger logger, File file)
+    {
+        m_logger = logger;
+        m_file = file;
+    }
+
+    /**
+     * Notifies the cache that a revision was added or removed, which
+     * invalidates all results recorded so far for the purpose of saving.
+    **/
+    synchronized void stateChanged()
+    {
+        m_state++;
+    }
+
+    synchronized void remove(BundleRevision br)
+    {
+        m_revisions.remove(getId(br));
+        m_reused.remove(getId(br));
+    }
+
+    /**
+     * Notifies the cache that the result returned by <tt>getWireMap()</tt>
+     * was used to resolve the revisions, so they may serve as providers of
+     * other cached results.
+     * @param wireMap the wires of the revisions resolved from the cache.
+    **/
+    synchronized void reused(Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        for (BundleRevision br : wireMap.keySet())
+        {
+            m_reused.add(getId(br));
+        }
+    }
+
+    /**
+     * Records the result of a resolve operation.
+     * @param wireMap the wires of the resolved revisions.
+    **/
+    synchronized void record(Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        m_sequence++;
+
+        // Map hosts to the fragments attached to them by this operation.
+        Map<BundleRevision, List<String>> hosts =
+            new HashMap<BundleRevision, List<String>>();
+        for (Entry<BundleRevision, List<ResolverWire>> entry : wireMap.entrySet())
+        {
+            if (Util.isFragment(entry.getKey()))
+            {
+                for (ResolverWire rw : entry.getValue())
+                {
+                    List<String> fragments = hosts.get(rw.getProvider());
+                    if (fragments == null)
+                    {
+                        fragments = new ArrayList<String>();
+                        hosts.put(rw.getProvider(), fragments);
+                    }
+                    fragments.add(getId(entry.getKey()));
+                }
+            }
+        }
+
+        for (Entry<BundleRevision, List<ResolverWire>> entry : wireMap.entrySet())
+        {
+            if (Util.isFragment(entry.getKey()))
+            {
+                continue;
+            }
+            String id = getId(entry.getKey());
+            List<CachedWire> wires = new ArrayList<CachedWire>(entry.getValue().size());
+            for (ResolverWire rw : entry.getValue())
+            {
+                int reqIdx = rw.getRequirement().getRevision()
+                    .getDeclaredRequirements(null).indexOf(rw.getRequirement());
+                int capIdx = rw.getCapability().getRevision()
+                    .getDeclaredCapabilities(null).indexOf(rw.getCapability());
+                if ((reqIdx < 0) || (capIdx < 0))
+                {
+                    wires = null;
+                    break;
+                }
+                wires.add(new CachedWire(
+                    getId(rw.getRequirement().getRevision()), reqIdx,
+                    getId(rw.getProvider()),
+                    getId(rw.getCapability().getRevision()), capIdx));
+            }
+            if (wires == null)
+            {
+                m_revisions.remove(id);
+            }
+            else
+            {
+                List<String> fragments = hosts.get(entry.getKey());
+                m_revisions.put(id, new CachedRevision(m_state, m_sequence, wires,
+                    (fragments == null) ? Collections.EMPTY_LIST : fragments));
+            }
+        }
+    }
+
+    /**
+     * Discards any results for revisions that were resolved without
+     * recording the result.
+     * @param wireMap the wires of the resolved revisions.
+    **/
+    synchronized void discard(Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        for (BundleRevision br : wireMap.keySet())
+        {
+            m_revisions.remove(getId(br));
+        }
+    }
+
+    /**
+     * Recreates the result of resolving the specified revisions from the
+     * cache, including any unresolved revisions they depend on and any
+     * fragments that were attached to them. Resolved providers are only
+     * accepted if they were resolved from the cache as well.
+     * @param roots the revisions to resolve.
+     * @param revisions all installed revisions by identifier.
+     * @return the wires of the resolved revisions or <tt>null</tt> if
+     *         the result is not completely cached.
+    **/
+    synchronized Map<BundleRevision, List<ResolverWire>> getWireMap(
+        Collection<BundleRevision> roots, Map<String, BundleRevision> revisions)
+    {
+        Map<BundleRevision, List<ResolverWire>> wireMap =
+            new HashMap<BundleRevision, List<ResolverWire>>();
+        LinkedList<BundleRevision> queue = new LinkedList<BundleRevision>(roots);
+        while (!queue.isEmpty())
+        {
+            BundleRevision br = queue.removeFirst();
+            if (wireMap.containsKey(br))
+            {
+                continue;
+            }
+            CachedRevision cached = m_revisions.get(getId(br));
+            if ((cached == null) || (cached.m_state != m_state) || Util.isFragment(br))
+            {
+                return null;
+            }
+
+            List<ResolverWire> wires = new ArrayList<ResolverWire>(cached.m_wires.size());
+            for (CachedWire cw : cached.m_wires)
+            {
+                BundleRequirement req = (BundleRequirement)
+                    getDeclared(revisions.get(cw.m_reqRevId), cw.m_reqIdx, true);
+                BundleRevision provider = revisions.get(cw.m_providerId);
+                BundleCapability cap = (BundleCapability)
+                    getDeclared(revisions.get(cw.m_capRevId), cw.m_capIdx, false);
+                if ((req == null) || (provider == null) || (cap == null))
+                {
+                    return null;
+                }
+                wires.add(new ResolverWireImpl(br, req, provider, cap));
+                if (provider.getWiring() == null)
+                {
+                    queue.add(provider);
+                }
+                else if (!cw.m_providerId.equals(SYSTEM_BUNDLE_REVISION_ID)
+                    && !m_reused.contains(cw.m_providerId))
+                {
+                    // The provider was resolved without the cache, so its
+                    // wiring may differ from the one the result was
+                    // recorded against.
+                    return null;
+                }
+            }
+            wireMap.put(br, wires);
+
+            // Add host wires for any fragments.
+            for (String fragmentId : cached.m_fragments)
+            {
+                BundleRevision fragment = revisions.get(fragmentId);
+                if ((fragment == null)
+                    || fragment.getDeclaredRequirements(BundleRevision.HOST_NAMESPACE).isEmpty()
+                    || br.getDeclaredCapabilities(BundleRevision.HOST_NAMESPACE).isEmpty())
+                {
+                    return null;
+                }
+                List<ResolverWire> hostWires = wireMap.get(fragment);
+                if (hostWires == null)
+                {
+                    hostWires = new ArrayList<ResolverWire>();
+                    wireMap.put(fragment, hostWires);
+                }
+                hostWires.add(new ResolverWireImpl(
+                    fragment,
+                    fragment.getDeclaredRequirements(BundleRevision.HOST_NAMESPACE).get(0),
+                    br,
+                    br.getDeclaredCapabilities(BundleRevision.HOST_NAMESPACE).get(0)));
+            }
+        }
+        return wireMap;
+    }
+
+    /**
+     * Loads the cache if its fingerprint matches the specified revisions.
+     * @param revisions all installed revisions.
+     * @param environment a description of the framework environment.
+    **/
+    synchronized void load(Collection<BundleRevision> revisions, String environment)
+    {
+        m_revisions.clear();
+        if (!Felix.m_secureAction.fileExists(m_file))
+        {
+            return;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                Felix.m_secureAction.getFileInputStream(m_file)));
+            if ((in.readInt() != CACHE_VERSION)
+                || !in.readUTF().equals(calculateFingerprint(revisions, environment)))
+            {
+                m_logger.log(Logger.LOG_DEBUG,
+                    "Installed bundles changed, ignoring resolution cache.");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String id = in.readUTF();
+                List<CachedWire> wires = new ArrayList<CachedWire>();
+                for (int wireCount = in.readInt(); wireCount > 0; wireCount--)
+                {
+                    wires.add(new CachedWire(
+                        in.readUTF(), in.readInt(), in.readUTF(), in.readUTF(), in.readInt()));
+                }
+                List<String> fragments = new ArrayList<String>();
+                for (int fragmentCount = in.readInt(); fragmentCount > 0; fragmentCount--)
+                {
+                    fragments.add(in.readUTF());
+                }
+                m_revisions.put(id, new CachedRevision(m_state, 0, wires, fragments));
+            }
+        }
+        catch (Exception ex)
+        {
+            m_revisions.clear();
+            m_logger.log(Logger.LOG_WARNING, "Unable to load resolution cache.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    /**
+     * Saves all results that were recorded since the installed revisions
+     * last changed and that form a closed set with their providers.
+     * @param revisions all installed revisions.
+     * @param environment a description of the framework environment.
+    **/
+    synchronized void save(Collection<BundleRevision> revisions, String environment)
+    {
+        File tmpFile = new File(m_file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                Felix.m_secureAction.getFileOutputStream(tmpFile)));
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(calculateFingerprint(revisions, environment));
+
+            Map<String, CachedRevision> entries = getClosedResults();
+            out.writeInt(entries.size());
+            for (Entry<String, CachedRevision> entry : entries.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().m_wires.size());
+                for (CachedWire cw : entry.getValue().m_wires)
+                {
+                    out.writeUTF(cw.m_reqRevId);
+                    out.writeInt(cw.m_reqIdx);
+                    out.writeUTF(cw.m_providerId);
+                    out.writeUTF(cw.m_capRevId);
+                    out.writeInt(cw.m_capIdx);
+                }
+                out.writeInt(entry.getValue().m_fragments.size());
+                for (String fragmentId : entry.getValue().m_fragments)
+                {
+                    out.writeUTF(fragmentId);
+                }
+            }
+            out.close();
+            out = null;
+
+            Felix.m_secureAction.deleteFile(m_file);
+            if (!Felix.m_secureAction.renameFile(tmpFile, m_file))
+            {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        }
+        catch (Exception ex)
+        {
+            Felix.m_secureAction.deleteFile(tmpFile);
+            m_logger.log(Logger.LOG_WARNING, "Unable to save resolution cache.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (out != null) out.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    /**
+     * Returns the results recorded since the installed revisions last
+     * changed whose providers, transitively, also have such a result that
+     * was recorded together with or before their own.
+    **/
+    private Map<String, CachedRevision> getClosedResults()
+    {
+        Map<String, CachedRevision> closed = new HashMap<String, CachedRevision>();
+        for (Entry<String, CachedRevision> entry : m_revisions.entrySet())
+        {
+            if (entry.getValue().m_state == m_state)
+            {
+                closed.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Remove results with a missing or later provider result until
+        // no more results are removed.
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (Iterator<CachedRevision> it = closed.values().iterator(); it.hasNext(); )
+            {
+                CachedRevision cached = it.next();
+                for (CachedWire cw : cached.m_wires)
+                {
+                    if (cw.m_providerId.equals(SYSTEM_BUNDLE_REVISION_ID))
+                    {
+                        continue;
+                    }
+                    CachedRevision provider = closed.get(cw.m_providerId);
+                    if ((provider == null) || (provider.m_sequence > cached.m_sequence))
+                    {
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Calculates a digest over the identity, location, modification time,
+     * and headers of all installed revisions, the capabilities of the system
+     * bundle, and the framework environment.
+    **/
+    static String calculateFingerprint(
+        Collection<BundleRevision> revisions, String environment)
+        throws Exception
+    {
+        List<BundleRevision> sorted = new ArrayList<BundleRevision>(revisions);
+        Collections.sort(sorted, new Comparator<BundleRevision>()
+        {
+            public int compare(BundleRevision br1, BundleRevision br2)
+            {
+                return getId(br1).compareTo(getId(br2));
+            }
+        });
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        StringBuffer sb = new StringBuffer(environment);
+        for (BundleRevision br : sorted)
+        {
+            BundleImpl bundle = (BundleImpl) br.getBundle();
+            sb.append('\n').append(getId(br))
+                .append('|').append(bundle._getLocation())
+                .append('|').append(bundle.getLastModified())
+                .append('|').append(((BundleRevisionImpl) br).getHeaders());
+            if (bundle.getBundleId() == 0)
+            {
+                for (BundleCapability cap : br.getDeclaredCapabilities(null))
+                {
+                    sb.append('|').append(cap.getNamespace());
+                    appendMap(sb, cap.getAttributes());
+                    appendMap(sb, cap.getDirectives());
+                }
+            }
+            digest.update(sb.toString().getBytes("UTF-8"));
+            sb.setLength(0);
+        }
+        digest.update(sb.toString().getBytes("UTF-8"));
+
+        byte[] bytes = digest.digest();
+        sb.setLength(0);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            String hex = Integer.toHexString(bytes[i] & 0xff);
+            if (hex.length() == 1)
+            {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    private static void appendMap(StringBuffer sb, Map<String, ?> map)
+    {
+        sb.append('{');
+        for (Entry<String, ?> entry : map.entrySet())
+        {
+            sb.append(entry.getKey()).append('=');
+            // Multiple values are stored in arrays.
+            if (entry.getValue() instanceof Object[])
+            {
+                sb.append(Arrays.asList((Object[]) entry.getValue()));
+            }
+            else
+            {
+                sb.append(entry.getValue());
+            }
+            sb.append(',');
+        }
+        sb.append('}');
+    }
+
+    private static String getId(BundleRevision br)
+    {
+        return ((BundleRevisionImpl) br).getId();
+    }
+
+    private static Object getDeclared(BundleRevision br, int idx, boolean isRequirement)
+    {
+        if (br == null)
+        {
+            return null;
+        }
+        List declared = (isRequirement)
+            ? br.getDeclaredRequirements(null)
+            : br.getDeclaredCapabilities(null);
+        return (idx < declared.size()) ? declared.get(idx) : null;
+    }
+
+    private static class CachedRevision
+    {
+        private final int m_state;
+        private final int m_sequence;
+        private final List<CachedWire> m_wires;
+        private final List<String> m_fragments;
+
+        CachedRevision(int state, int sequence, List<CachedWire> wires,
+            List<String> fragments)
+        {
+            m_state = state;
+            m_sequence = sequence;
+            m_wires = wires;
+            m_fragments = fragments;
+        }
+    }
+
+    private static class CachedWire
+    {
+        private final String m_reqRevId;
+        private final int m_reqIdx;
+        private final String m_providerId;
+        private final String m_capRevId;
+        private final int m_capIdx;
+
+        CachedWire(String reqRevId, int reqIdx, String providerId,
+            String capRevId, int capIdx)
+        {
+            m_reqRevId = reqRevId;
+            m_reqIdx = reqIdx;
+            m_providerId = providerId;
+            m_capRevId = capRevId;
+            m_capIdx = capIdx;
+        }
+    }
+}
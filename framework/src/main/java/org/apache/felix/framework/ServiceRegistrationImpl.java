@@ -24,6 +24,7 @@ import java.security.PrivilegedExceptionAction;
 import java.util.*;
 
 import org.apache.felix.framework.util.MapToDictionary;
+import org.apache.felix.framework.util.PropertySnapshot;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
@@ -47,7 +48,7 @@ class ServiceRegistrationImpl implements ServiceRegistration
     // Service factory interface.
     private volatile ServiceFactory m_factory;
     // Associated property dictionary.
-    private volatile Map m_propMap = new StringMap();
+    private volatile PropertySnapshot m_propMap;
     // Re-usable service reference.
     private final ServiceReferenceImpl m_ref;
     // Flag indicating that we are unregistering.
@@ -73,11 +74,16 @@ class ServiceRegistrationImpl implements ServiceRegistration
         m_ref = new ServiceReferenceImpl();
     }
 
-    protected synchronized boolean isValid()
+    protected boolean isValid()
     {
         return (m_svcObj != null);
     }
 
+    boolean isServiceFactory()
+    {
+        return (m_factory != null);
+    }
+
     protected synchronized void invalidate()
     {
         m_svcObj = null;
@@ -296,8 +302,9 @@ class ServiceRegistrationImpl implements ServiceRegistration
         props.put(Constants.OBJECTCLASS, m_classes);
         props.put(Constants.SERVICE_ID, m_serviceId);
 
-        // Update the service property map.
-        m_propMap = props;
+        // Update the service property map with an immutable snapshot,
+        // which is also used to match filters.
+        m_propMap = new PropertySnapshot(props);
     }
 
     private Object getFactoryUnchecked(Bundle bundle)
@@ -385,12 +392,9 @@ class ServiceRegistrationImpl implements ServiceRegistration
 
     class ServiceReferenceImpl extends BundleCapabilityImpl implements ServiceReference
     {
-        private final ServiceReferenceMap m_map;
-
         private ServiceReferenceImpl()
         {
             super(null, null, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
-            m_map = new ServiceReferenceMap();
         }
 
         ServiceRegistrationImpl getRegistration()
@@ -423,7 +427,7 @@ class ServiceRegistrationImpl implements ServiceRegistration
         @Override
         public Map<String, Object> getAttributes()
         {
-            return m_map;
+            return m_propMap;
         }
 
         @Override
@@ -653,67 +657,4 @@ class ServiceRegistrationImpl implements ServiceRegistration
             return (id.compareTo(otherId) < 0) ? 1 : -1;
         }
     }
-
-    private class ServiceReferenceMap implements Map
-    {
-        public int size()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public boolean isEmpty()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public boolean containsKey(Object o)
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public boolean containsValue(Object o)
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public Object get(Object o)
-        {
-            return ServiceRegistrationImpl.this.getProperty((String) o);
-        }
-
-        public Object put(Object k, Object v)
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public Object remove(Object o)
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public void putAll(Map map)
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public void clear()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public Set<Object> keySet()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public Collection<Object> values()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        public Set<Entry<Object, Object>> entrySet()
-        {
-            return Collections.EMPTY_SET;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -19,6 +19,9 @@
 package org.apache.felix.framework;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
@@ -40,13 +43,20 @@ public class ServiceRegistry
     private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
     // Capability set for all service registrations.
     private final CapabilitySet m_regCapSet;
+    // Flag indicating whether service lookups are answered from an
+    // immutable snapshot instead of under the registry lock.
+    private final boolean m_concurrentLookups;
+    // Immutable snapshot of registered services by object class; only
+    // maintained for concurrent lookups and replaced as a whole on change.
+    private volatile ServiceSnapshot m_snapshot = ServiceSnapshot.EMPTY;
 
     // Maps registration to thread to keep track when a
     // registration is in use, which will cause other
-    // threads to wait.
+    // threads to wait; only used for service factories.
     private final Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private final Map m_inUseMap = new HashMap();
+    // Maps bundle to its usage counts by service reference.
+    private final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>>
+        m_inUseMap = new ConcurrentHashMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>>();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -69,9 +79,16 @@ public class ServiceRegistry
         new HashMap<Class<?>, Set<ServiceReference<?>>>();
 
     public ServiceRegistry(Logger logger, ServiceRegistryCallbacks callbacks)
+    {
+        this(logger, callbacks, false);
+    }
+
+    public ServiceRegistry(
+        Logger logger, ServiceRegistryCallbacks callbacks, boolean concurrentLookups)
     {
         m_logger = logger;
         m_callbacks = callbacks;
+        m_concurrentLookups = concurrentLookups;
 
         List indices = new ArrayList();
         indices.add(Constants.OBJECTCLASS);
@@ -121,6 +138,10 @@ public class ServiceRegistry
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
             m_regsMap.put(bundle, addServiceRegistration(regs, reg));
             m_regCapSet.addCapability((BundleCapabilityImpl) reg.getReference());
+            if (m_concurrentLookups)
+            {
+                m_snapshot = m_snapshot.add(classNames, reg.getReference());
+            }
         }
 
         return reg;
@@ -143,6 +164,10 @@ public class ServiceRegistry
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
             m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
             m_regCapSet.removeCapability((BundleCapabilityImpl) reg.getReference());
+            if (m_concurrentLookups)
+            {
+                m_snapshot = m_snapshot.remove(reg.getReference());
+            }
         }
 
         // Notify callback objects about unregistering service.
@@ -155,13 +180,23 @@ public class ServiceRegistry
         // Now forcibly unget the service object for all stubborn clients.
         synchronized (this)
         {
-            Bundle[] clients = getUsingBundles(reg.getReference());
-            for (int i = 0; (clients != null) && (i < clients.length); i++)
-            {
-                while (ungetService(clients[i], reg.getReference()))
-                    ; // Keep removing until it is no longer possible
-            }
+            ServiceReference ref = reg.getReference();
+            ungetServiceForAllClients(ref);
             ((ServiceRegistrationImpl) reg).invalidate();
+            // Services not backed by a service factory are acquired without
+            // holding the registry lock, so clients may have acquired the
+            // service before it was invalidated; release those too.
+            ungetServiceForAllClients(ref);
+        }
+    }
+
+    private void ungetServiceForAllClients(ServiceReference ref)
+    {
+        Bundle[] clients = getUsingBundles(ref);
+        for (int i = 0; (clients != null) && (i < clients.length); i++)
+        {
+            while (ungetService(clients[i], ref))
+                ; // Keep removing until it is no longer possible
         }
     }
 
@@ -209,7 +244,20 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized List getServiceReferences(String className, SimpleFilter filter)
+    public List getServiceReferences(String className, SimpleFilter filter)
+    {
+        if (m_concurrentLookups)
+        {
+            return getServiceReferencesFromSnapshot(className, filter);
+        }
+
+        synchronized (this)
+        {
+            return getServiceReferencesFromCapSet(className, filter);
+        }
+    }
+
+    private List getServiceReferencesFromCapSet(String className, SimpleFilter filter)
     {
         if ((className == null) && (filter == null))
         {
@@ -236,17 +284,84 @@ public class ServiceRegistry
         return new ArrayList(matches);
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    private List getServiceReferencesFromSnapshot(String className, SimpleFilter filter)
+    {
+        // Read the snapshot once, since writers may replace it at any time.
+        ServiceSnapshot snapshot = m_snapshot;
+
+        // If no class name was given, try to narrow the search using an
+        // object class equality clause of the filter.
+        if ((className == null) && (filter != null))
+        {
+            className = getObjectClass(filter);
+        }
+
+        List<ServiceReference> refs = (className == null)
+            ? snapshot.m_all
+            : snapshot.m_byClass.get(className);
+        if (refs == null)
+        {
+            return new ArrayList();
+        }
+
+        List matches = new ArrayList(refs.size());
+        for (int i = 0; i < refs.size(); i++)
+        {
+            ServiceReference ref = refs.get(i);
+            if ((filter == null) || CapabilitySet.matches((BundleCapability) ref, filter))
+            {
+                matches.add(ref);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the object class name required by the specified filter, which
+     * is the case if it is an object class equality comparison or an AND
+     * filter containing one.
+     * @param filter The filter to inspect.
+     * @return The required object class name or <tt>null</tt>.
+    **/
+    private static String getObjectClass(SimpleFilter filter)
+    {
+        if ((filter.getOperation() == SimpleFilter.EQ)
+            && filter.getName().equalsIgnoreCase(Constants.OBJECTCLASS))
+        {
+            return (String) filter.getValue();
+        }
+        else if (filter.getOperation() == SimpleFilter.AND)
+        {
+            List<SimpleFilter> filters = (List<SimpleFilter>) filter.getValue();
+            for (int i = 0; i < filters.size(); i++)
+            {
+                String className = getObjectClass(filters.get(i));
+                if (className != null)
+                {
+                    return className;
+                }
+            }
+        }
+        return null;
+    }
+
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages != null)
         {
-            ServiceReference[] refs = new ServiceReference[usages.length];
-            for (int i = 0; i < refs.length; i++)
+            List<ServiceReference> refs = new ArrayList<ServiceReference>(usages.size());
+            for (UsageCount usage : usages.values())
             {
-                refs[i] = usages[i].m_ref;
+                if (usage.m_count.get() > 0)
+                {
+                    refs.add(usage.m_ref);
+                }
+            }
+            if (!refs.isEmpty())
+            {
+                return refs.toArray(new ServiceReference[refs.size()]);
             }
-            return refs;
         }
         return null;
     }
@@ -260,6 +375,13 @@ public class ServiceRegistry
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
+        // Plain service objects do not require calling out to a service
+        // factory, so their usage is tracked without the registry lock.
+        if (!reg.isServiceFactory())
+        {
+            return (S) getServiceUnlocked(bundle, ref, reg);
+        }
+
         synchronized (this)
         {
             // First make sure that no existing operation is currently
@@ -291,20 +413,12 @@ public class ServiceRegistry
             // Make sure the service registration is still valid.
             if (reg.isValid())
             {
-                // Get the usage count, if any.
-                usage = getUsageCount(bundle, ref);
+                // Get the usage count, creating one if necessary, and
+                // increment it, since the spec says we increment usage
+                // count before actually getting the service object.
+                usage = incrementUsageCount(bundle, ref);
 
-                // If we don't have a usage count, then create one and
-                // since the spec says we increment usage count before
-                // actually getting the service object.
-                if (usage == null)
-                {
-                    usage = addUsageCount(bundle, ref);
-                }
-
-                // Increment the usage count and grab the already retrieved
-                // service object, if one exists.
-                usage.m_count++;
+                // Grab the already retrieved service object, if one exists.
                 svcObj = usage.m_svcObj;
             }
         }
@@ -331,11 +445,11 @@ public class ServiceRegistry
                 // Before caching the service object, double check to see if
                 // the registration is still valid, since it may have been
                 // unregistered while we didn't hold the lock.
-                if (!reg.isValid() || (svcObj == null))
+                if ((usage != null) && (!reg.isValid() || (svcObj == null)))
                 {
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(bundle, ref, usage);
                 }
-                else
+                else if (usage != null)
                 {
                     usage.m_svcObj = svcObj;
                 }
@@ -347,12 +461,46 @@ public class ServiceRegistry
         return (S) svcObj;
     }
 
+    /**
+     * Gets the service object of a registration not backed by a service
+     * factory without acquiring the registry lock. The usage count is
+     * incremented first; if the registration turns out to be invalid
+     * afterwards, the usage is released again.
+    **/
+    private Object getServiceUnlocked(
+        Bundle bundle, ServiceReference ref, ServiceRegistrationImpl reg)
+    {
+        if (!reg.isValid())
+        {
+            return null;
+        }
+
+        UsageCount usage = incrementUsageCount(bundle, ref);
+        Object svcObj = reg.getService(bundle);
+        if (!reg.isValid() || (svcObj == null))
+        {
+            decrementUsageCount(bundle, ref, usage, true);
+            return null;
+        }
+        usage.m_svcObj = svcObj;
+        return svcObj;
+    }
+
     public boolean ungetService(Bundle bundle, ServiceReference ref)
     {
         UsageCount usage = null;
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
+        // There is nothing to call out to for plain service objects, so
+        // just decrement the usage count.
+        if (!reg.isServiceFactory())
+        {
+            usage = getUsageCount(bundle, ref);
+            return (usage != null)
+                && decrementUsageCount(bundle, ref, usage, !reg.isValid());
+        }
+
         synchronized (this)
         {
             // First make sure that no existing operation is currently
@@ -379,7 +527,7 @@ public class ServiceRegistry
             // Get the usage count.
             usage = getUsageCount(bundle, ref);
             // If there is no cached services, then just return immediately.
-            if (usage == null)
+            if ((usage == null) || (usage.m_count.get() <= 0))
             {
                 return false;
             }
@@ -393,7 +541,7 @@ public class ServiceRegistry
         // since this might call out to the service factory.
         try
         {
-            if (usage.m_count == 1)
+            if (usage.m_count.get() == 1)
             {
                 // Remove reference from usages array.
                 ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
@@ -409,16 +557,9 @@ public class ServiceRegistry
             synchronized (this)
             {
                 // Decrement usage count, which spec says should happen after
-                // ungetting the service object.
-                usage.m_count--;
-
-                // If the registration is invalid or the usage count has reached
-                // zero, then flush it.
-                if (!reg.isValid() || (usage.m_count <= 0))
-                {
-                    usage.m_svcObj = null;
-                    flushUsageCount(bundle, ref);
-                }
+                // ungetting the service object. If the registration is invalid
+                // or the usage count has reached zero, then it is flushed.
+                decrementUsageCount(bundle, ref, usage, !reg.isValid());
 
                 // Release the registration lock so any waiting threads can
                 // continue.
@@ -438,16 +579,12 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = (UsageCount[]) m_inUseMap.get(bundle);
-        }
-
-        if (usages == null)
+        Map<ServiceReference, UsageCount> usageMap = m_inUseMap.get(bundle);
+        if (usageMap == null)
         {
             return;
         }
+        UsageCount[] usages = usageMap.values().toArray(new UsageCount[0]);
 
         // Note, there is no race condition here with respect to the
         // bundle using more services, because its bundle context
@@ -464,32 +601,40 @@ public class ServiceRegistry
                 // Empty loop body.
             }
         }
+
+        // Now remove the bundle itself if it is no longer using services.
+        // This must happen under the usage map's lock so that it cannot
+        // race with an increment adding a new usage count to it.
+        synchronized (usageMap)
+        {
+            if (usageMap.isEmpty())
+            {
+                m_inUseMap.remove(bundle, usageMap);
+            }
+        }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
+    public Bundle[] getUsingBundles(ServiceReference ref)
     {
         Bundle[] bundles = null;
-        for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        for (Map.Entry<Bundle, ConcurrentMap<ServiceReference, UsageCount>> entry
+            : m_inUseMap.entrySet())
         {
-            Map.Entry entry = (Map.Entry) iter.next();
-            Bundle bundle = (Bundle) entry.getKey();
-            UsageCount[] usages = (UsageCount[]) entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            Bundle bundle = entry.getKey();
+            UsageCount usage = entry.getValue().get(ref);
+            if ((usage != null) && (usage.m_count.get() > 0))
             {
-                if (usages[useIdx].m_ref.equals(ref))
+                // Add the bundle to the array to be returned.
+                if (bundles == null)
                 {
-                    // Add the bundle to the array to be returned.
-                    if (bundles == null)
-                    {
-                        bundles = new Bundle[] { bundle };
-                    }
-                    else
-                    {
-                        Bundle[] nbs = new Bundle[bundles.length + 1];
-                        System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-                        nbs[bundles.length] = bundle;
-                        bundles = nbs;
-                    }
+                    bundles = new Bundle[] { bundle };
+                }
+                else
+                {
+                    Bundle[] nbs = new Bundle[bundles.length + 1];
+                    System.arraycopy(bundles, 0, nbs, 0, bundles.length);
+                    nbs[bundles.length] = bundle;
+                    bundles = nbs;
                 }
             }
         }
@@ -566,97 +711,114 @@ public class ServiceRegistry
     **/
     private UsageCount getUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
-        {
-            if (usages[i].m_ref.equals(ref))
-            {
-                return usages[i];
-            }
-        }
-        return null;
+        Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+        return (usages != null) ? usages.get(ref) : null;
     }
 
     /**
-     * Utility method to update the specified bundle's usage count array to
-     * include the specified service. This method should only be called
-     * to add a usage count for a previously unreferenced service. If the
-     * service already has a usage count, then the existing usage count
-     * counter simply needs to be incremented.
+     * Utility method to increment the specified bundle's usage count for
+     * the specified service, creating the usage count if the service was
+     * previously unreferenced. If a concurrent release flushes the existing
+     * usage count first, a new one is created in its place. An existing usage
+     * count is incremented without locking: a usage count that is not flushed
+     * is still in its map, and a map is only removed once it is empty. Usage
+     * counts are only added under the lock of the bundle's usage map, which is
+     * the lock <tt>ungetServices()</tt> holds when removing an empty map, so
+     * an increment can never end up in a map that was already removed.
      * @param bundle The bundle acquiring the service.
      * @param ref The service reference of the acquired service.
-     * @param svcObj The service object of the acquired service.
+     * @return The incremented usage count.
     **/
-    private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
+    private UsageCount incrementUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        for (;;)
+        {
+            ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+            if (usages == null)
+            {
+                usages = new ConcurrentHashMap<ServiceReference, UsageCount>();
+                ConcurrentMap<ServiceReference, UsageCount> existing =
+                    m_inUseMap.putIfAbsent(bundle, usages);
+                usages = (existing != null) ? existing : usages;
+            }
 
-        UsageCount usage = new UsageCount();
-        usage.m_ref = ref;
+            UsageCount usage = usages.get(ref);
+            if ((usage != null) && usage.increment())
+            {
+                return usage;
+            }
 
-        if (usages == null)
+            synchronized (usages)
+            {
+                // The map may have been removed since we looked it up, in
+                // which case we must start over with a fresh one.
+                if (m_inUseMap.get(bundle) != usages)
+                {
+                    continue;
+                }
+                usage = usages.get(ref);
+                if ((usage != null) && usage.increment())
+                {
+                    return usage;
+                }
+                // There was no usage count or it was flushed concurrently,
+                // so replace it with a new one.
+                if (usage != null)
+                {
+                    usages.remove(ref, usage);
+                }
+                usage = new UsageCount(ref);
+                usage.increment();
+                usages.put(ref, usage);
+                return usage;
+            }
+        }
+    }
+
+    /**
+     * Utility method to decrement the specified bundle's usage count for
+     * the specified service reference. The usage count is flushed if it
+     * reaches zero or if a flush is requested, which should be the case if
+     * the service registration is no longer valid.
+     * @param bundle The bundle whose usage count should be decremented.
+     * @param ref The service reference whose usage count should be decremented.
+     * @param usage The usage count to decrement.
+     * @param flush Whether to flush the usage count regardless of its value.
+     * @return <tt>true</tt> if the usage count was decremented, <tt>false</tt>
+     *         if it was already flushed.
+    **/
+    private boolean decrementUsageCount(
+        Bundle bundle, ServiceReference ref, UsageCount usage, boolean flush)
+    {
+        int count = usage.decrement();
+        if (count < 0)
         {
-            usages = new UsageCount[] { usage };
+            return false;
         }
-        else
+        if (flush || (count == 0))
         {
-            UsageCount[] newUsages = new UsageCount[usages.length + 1];
-            System.arraycopy(usages, 0, newUsages, 0, usages.length);
-            newUsages[usages.length] = usage;
-            usages = newUsages;
+            flushUsageCount(bundle, ref, usage);
         }
-
-        m_inUseMap.put(bundle, usages);
-
-        return usage;
+        return true;
     }
 
     /**
      * Utility method to flush the specified bundle's usage count for the
      * specified service reference. This should be called to completely
      * remove the associated usage count object for the specified service
-     * reference. If the goal is to simply decrement the usage, then get
-     * the usage count and decrement its counter. This method will also
-     * remove the specified bundle from the "in use" map if it has no more
-     * usage counts after removing the usage count for the specified service
-     * reference.
+     * reference. If the goal is to simply decrement the usage, then use
+     * <tt>decrementUsageCount()</tt> instead.
      * @param bundle The bundle whose usage count should be removed.
      * @param ref The service reference whose usage count should be removed.
+     * @param usage The usage count to remove.
     **/
-    private void flushUsageCount(Bundle bundle, ServiceReference ref)
+    private void flushUsageCount(Bundle bundle, ServiceReference ref, UsageCount usage)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
-        {
-            if (usages[i].m_ref.equals(ref))
-            {
-                // If this is the only usage, then point to empty list.
-                if ((usages.length - 1) == 0)
-                {
-                    usages = null;
-                }
-                // Otherwise, we need to do some array copying.
-                else
-                {
-                    UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                    System.arraycopy(usages, 0, newUsages, 0, i);
-                    if (i < newUsages.length)
-                    {
-                        System.arraycopy(
-                            usages, i + 1, newUsages, i, newUsages.length - i);
-                    }
-                    usages = newUsages;
-                }
-            }
-        }
-
+        usage.flush();
+        ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
         if (usages != null)
         {
-            m_inUseMap.put(bundle, usages);
-        }
-        else
-        {
-            m_inUseMap.remove(bundle);
+            usages.remove(ref, usage);
         }
     }
 
@@ -797,11 +959,141 @@ public class ServiceRegistry
         return (SortedSet<ServiceReference<S>>) (SortedSet) ss;
     }
 
+    /**
+     * Immutable snapshot of the registered service references, both in
+     * registration order and grouped by object class. Modifications return
+     * a new snapshot that shares all unaffected lists with this one.
+    **/
+    private static class ServiceSnapshot
+    {
+        static final ServiceSnapshot EMPTY = new ServiceSnapshot(
+            Collections.EMPTY_LIST, Collections.EMPTY_MAP);
+
+        final List<ServiceReference> m_all;
+        final Map<String, List<ServiceReference>> m_byClass;
+
+        private ServiceSnapshot(
+            List<ServiceReference> all, Map<String, List<ServiceReference>> byClass)
+        {
+            m_all = all;
+            m_byClass = byClass;
+        }
+
+        ServiceSnapshot add(String[] classNames, ServiceReference ref)
+        {
+            Map<String, List<ServiceReference>> byClass =
+                new HashMap<String, List<ServiceReference>>(m_byClass);
+            for (int i = 0; i < classNames.length; i++)
+            {
+                byClass.put(classNames[i], append(byClass.get(classNames[i]), ref));
+            }
+            return new ServiceSnapshot(append(m_all, ref), byClass);
+        }
+
+        ServiceSnapshot remove(ServiceReference ref)
+        {
+            Map<String, List<ServiceReference>> byClass =
+                new HashMap<String, List<ServiceReference>>(m_byClass);
+            String[] classNames = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+            for (int i = 0; i < classNames.length; i++)
+            {
+                List<ServiceReference> refs = remove(byClass.get(classNames[i]), ref);
+                if (refs.isEmpty())
+                {
+                    byClass.remove(classNames[i]);
+                }
+                else
+                {
+                    byClass.put(classNames[i], refs);
+                }
+            }
+            return new ServiceSnapshot(remove(m_all, ref), byClass);
+        }
+
+        private static List<ServiceReference> append(
+            List<ServiceReference> refs, ServiceReference ref)
+        {
+            List<ServiceReference> copy = (refs == null)
+                ? new ArrayList<ServiceReference>(1)
+                : new ArrayList<ServiceReference>(refs.size() + 1);
+            if (refs != null)
+            {
+                copy.addAll(refs);
+            }
+            copy.add(ref);
+            return Collections.unmodifiableList(copy);
+        }
+
+        private static List<ServiceReference> remove(
+            List<ServiceReference> refs, ServiceReference ref)
+        {
+            if (refs == null)
+            {
+                return Collections.EMPTY_LIST;
+            }
+            List<ServiceReference> copy = new ArrayList<ServiceReference>(refs);
+            copy.remove(ref);
+            return Collections.unmodifiableList(copy);
+        }
+    }
+
     private static class UsageCount
     {
-        public int m_count = 0;
-        public ServiceReference m_ref = null;
-        public Object m_svcObj = null;
+        // Flushed usage counts can no longer be incremented.
+        private static final int FLUSHED = -1;
+
+        public final AtomicInteger m_count = new AtomicInteger();
+        public final ServiceReference m_ref;
+        public volatile Object m_svcObj = null;
+
+        UsageCount(ServiceReference ref)
+        {
+            m_ref = ref;
+        }
+
+        boolean increment()
+        {
+            for (;;)
+            {
+                int count = m_count.get();
+                if (count == FLUSHED)
+                {
+                    return false;
+                }
+                if (m_count.compareAndSet(count, count + 1))
+                {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Decrements the count, flushing it when it reaches zero so it
+         * cannot be revived by a concurrent increment.
+         * @return The decremented count or <tt>-1</tt> if there was no
+         *         usage to release.
+        **/
+        int decrement()
+        {
+            for (;;)
+            {
+                int count = m_count.get();
+                if (count <= 0)
+                {
+                    return -1;
+                }
+                if (m_count.compareAndSet(count, (count == 1) ? FLUSHED : count - 1))
+                {
+                    return count - 1;
+                }
+            }
+        }
+
+        void flush()
+        {
+            m_count.set(FLUSHED);
+            m_svcObj = null;
+        }
     }
 
     public interface ServiceRegistryCallbacks
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.framework;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,9 +34,9 @@ import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
-import org.apache.felix.framework.resolver.Resolver;
 import org.apache.felix.framework.resolver.ResolverImpl;
 import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.R4Library;
@@ -62,7 +63,7 @@ class StatefulResolver
 {
     private final Logger m_logger;
     private final Felix m_felix;
-    private final Resolver m_resolver;
+    private final ResolverImpl m_resolver;
     private boolean m_isResolving = false;
 
     // Set of all revisions.
@@ -79,12 +80,15 @@ class StatefulResolver
     private final String m_fwkExecEnvStr;
     // Parsed framework environments
     private final Set<String> m_fwkExecEnvSet;
+    // Persistent cache of resolve results, if enabled.
+    private volatile ResolutionCache m_resolutionCache;
 
     StatefulResolver(Felix felix)
     {
         m_felix = felix;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        m_resolver = new ResolverImpl(m_logger,
+            m_felix.getThreadCount(FelixConstants.RESOLVER_PARALLELISM_PROP));
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
@@ -99,23 +103,50 @@ class StatefulResolver
 
         List<String> indices = new ArrayList<String>();
         indices.add(BundleRevision.BUNDLE_NAMESPACE);
-        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true));
+        List<String> versionIndices = new ArrayList<String>();
+        versionIndices.add(Constants.BUNDLE_VERSION_ATTRIBUTE);
+        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE,
+            new CapabilitySet(indices, versionIndices, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.PACKAGE_NAMESPACE);
-        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
+        versionIndices = new ArrayList<String>();
+        versionIndices.add(Constants.VERSION_ATTRIBUTE);
+        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE,
+            new CapabilitySet(indices, versionIndices, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.HOST_NAMESPACE);
-        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
+        versionIndices = new ArrayList<String>();
+        versionIndices.add(Constants.BUNDLE_VERSION_ATTRIBUTE);
+        m_capSets.put(BundleRevision.HOST_NAMESPACE,
+            new CapabilitySet(indices, versionIndices, true));
     }
 
     synchronized void addRevision(BundleRevision br)
+    {
+        indexRevision(br);
+        if (m_resolutionCache != null)
+        {
+            m_resolutionCache.stateChanged();
+        }
+    }
+
+    synchronized void removeRevision(BundleRevision br)
+    {
+        if (deindexRevision(br) && (m_resolutionCache != null))
+        {
+            m_resolutionCache.stateChanged();
+            m_resolutionCache.remove(br);
+        }
+    }
+
+    private synchronized void indexRevision(BundleRevision br)
     {
         // Always attempt to remove the revision, since
         // this method can be used for re-indexing a revision
         // after it has been resolved.
-        removeRevision(br);
+        deindexRevision(br);
 
         m_revisions.add(br);
 
@@ -141,7 +172,7 @@ class StatefulResolver
         }
     }
 
-    synchronized void removeRevision(BundleRevision br)
+    private synchronized boolean deindexRevision(BundleRevision br)
     {
         if (m_revisions.remove(br))
         {
@@ -159,7 +190,9 @@ class StatefulResolver
                     m_singletons.remove(br.getSymbolicName());
                 }
             }
+            return true;
         }
+        return false;
     }
 
     boolean isEffective(BundleRequirement req)
@@ -399,15 +432,21 @@ class StatefulResolver
             ResolveException rethrow = null;
             try
             {
-                // Resolve the revision.
-                wireMap = m_resolver.resolve(
-                    new ResolveContextImpl(
-                        this,
-                        getWirings(),
-                        record,
-                        mandatory,
-                        optional,
-                        getFragments()));
+                // Try to reuse a previous result from the resolution cache.
+                wireMap = getCachedWireMap(record, mandatory, optional);
+                if (wireMap == null)
+                {
+                    // Resolve the revision.
+                    wireMap = m_resolver.resolve(
+                        new ResolveContextImpl(
+                            this,
+                            getWirings(),
+                            record,
+                            mandatory,
+                            optional,
+                            getFragments()));
+                    recordResolution(record, wireMap);
+                }
             }
             catch (ResolveException ex)
             {
@@ -519,6 +558,8 @@ class StatefulResolver
                         List<ResolverWire> dynamicWires = wireMap.remove(revision);
                         ResolverWire dynamicWire = dynamicWires.get(0);
 
+                        recordResolution(record, wireMap);
+
                         // Mark all revisions as resolved.
                         markResolvedRevisions(wireMap);
 
@@ -559,6 +600,122 @@ class StatefulResolver
         return provider;
     }
 
+    /**
+     * Loads the persistent resolution cache from the specified file if the
+     * resolution cache is enabled. This must be called after all cached
+     * bundles have been reloaded.
+     * @param file the file of the resolution cache.
+    **/
+    synchronized void loadResolutionCache(File file)
+    {
+        m_resolutionCache = null;
+        if (Boolean.valueOf((String) m_felix.getConfig().get(
+            FelixConstants.RESOLVER_CACHE_PROP)).booleanValue())
+        {
+            ResolutionCache cache = new ResolutionCache(m_logger, file);
+            cache.load(m_revisions, getEnvironment());
+            m_resolutionCache = cache;
+        }
+    }
+
+    /**
+     * Saves the persistent resolution cache, if enabled.
+    **/
+    synchronized void saveResolutionCache()
+    {
+        if (m_resolutionCache != null)
+        {
+            m_resolutionCache.save(m_revisions, getEnvironment());
+        }
+    }
+
+    /**
+     * Releases the resources held by the resolver when the framework stops.
+    **/
+    void stop()
+    {
+        m_resolver.shutdown();
+    }
+
+    private String getEnvironment()
+    {
+        return m_fwkExecEnvStr
+            + "|" + m_felix.getProperty(Constants.FRAMEWORK_OS_NAME)
+            + "|" + m_felix.getProperty(Constants.FRAMEWORK_OS_VERSION)
+            + "|" + m_felix.getProperty(Constants.FRAMEWORK_PROCESSOR);
+    }
+
+    private void recordResolution(
+        ResolverHookRecord record, Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        if (m_resolutionCache != null)
+        {
+            // Resolver hooks may influence the result in ways that cannot be
+            // captured, but earlier results for these revisions are stale.
+            if (record.m_resolverHooks.isEmpty())
+            {
+                m_resolutionCache.record(wireMap);
+            }
+            else
+            {
+                m_resolutionCache.discard(wireMap);
+            }
+        }
+    }
+
+    private Map<BundleRevision, List<ResolverWire>> getCachedWireMap(
+        ResolverHookRecord record,
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        // Resolver hooks and permissions may influence the result in
+        // ways that cannot be captured, so do not use the cache then.
+        if ((m_resolutionCache == null)
+            || !record.m_resolverHooks.isEmpty()
+            || (System.getSecurityManager() != null))
+        {
+            return null;
+        }
+
+        Map<String, BundleRevision> revisions = new HashMap<String, BundleRevision>();
+        synchronized (this)
+        {
+            for (BundleRevision br : m_revisions)
+            {
+                revisions.put(((BundleRevisionImpl) br).getId(), br);
+            }
+        }
+        List<BundleRevision> roots = new ArrayList<BundleRevision>();
+        for (BundleRevision br : mandatory)
+        {
+            if (br.getWiring() == null)
+            {
+                roots.add(br);
+            }
+        }
+        for (BundleRevision br : optional)
+        {
+            if (br.getWiring() == null)
+            {
+                roots.add(br);
+            }
+        }
+
+        Map<BundleRevision, List<ResolverWire>> wireMap =
+            m_resolutionCache.getWireMap(roots, revisions);
+        if (wireMap != null)
+        {
+            for (BundleRevision br : wireMap.keySet())
+            {
+                if (Util.isSingleton(br) && !isSelectedSingleton(br))
+                {
+                    return null;
+                }
+            }
+            m_resolutionCache.reused(wireMap);
+        }
+        return wireMap;
+    }
+
     private ResolverHookRecord prepareResolverHooks(
         Set<BundleRevision> mandatory, Set<BundleRevision> optional)
         throws BundleException
@@ -1001,7 +1158,7 @@ class StatefulResolver
                 // Reindex the revision's capabilities since its resolved
                 // capabilities could be different than its declared ones
                 // (e.g., due to substitutable exports).
-                addRevision(revision);
+                indexRevision(revision);
 
                 // Update the state of the revision's bundle to resolved as well.
                 markBundleResolved(revision);
@@ -1163,7 +1320,14 @@ class StatefulResolver
                     CapabilitySet capSet = m_capSets.get(cap.getNamespace());
                     if (capSet == null)
                     {
-                        capSet = new CapabilitySet(null, true);
+                        // Generic capabilities conventionally use an attribute
+                        // named after their namespace and a version attribute,
+                        // so index those.
+                        List<String> indices = new ArrayList<String>();
+                        indices.add(cap.getNamespace());
+                        List<String> versionIndices = new ArrayList<String>();
+                        versionIndices.add(Constants.VERSION_ATTRIBUTE);
+                        capSet = new CapabilitySet(indices, versionIndices, true);
                         m_capSets.put(cap.getNamespace(), capSet);
                     }
                     capSet.addCapability(cap);
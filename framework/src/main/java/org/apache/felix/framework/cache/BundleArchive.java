@@ -81,6 +81,7 @@ public class BundleArchive
     private final WeakZipFileFactory m_zipFactory;
     private final File m_archiveRootDir;
     private final boolean m_isSingleBundleFile;
+    private final BundleInfoJournal m_journal;
 
     private long m_id = -1;
     private String m_originalLocation = null;
@@ -126,6 +127,14 @@ public class BundleArchive
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         File archiveRootDir, long id, int startLevel, String location, InputStream is)
         throws Exception
+    {
+        this(logger, configMap, zipFactory, archiveRootDir, id, startLevel, location, is, null);
+    }
+
+    BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        File archiveRootDir, long id, int startLevel, String location, InputStream is,
+        BundleInfoJournal journal)
+        throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
@@ -145,6 +154,7 @@ public class BundleArchive
 
         String s = (String) m_configMap.get(BundleCache.CACHE_SINGLEBUNDLEFILE_PROP);
         m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")) ? true : false;
+        m_journal = journal;
 
         // Save state.
         initialize();
@@ -168,6 +178,13 @@ public class BundleArchive
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         File archiveRootDir)
         throws Exception
+    {
+        this(logger, configMap, zipFactory, archiveRootDir, null);
+    }
+
+    BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        File archiveRootDir, BundleInfoJournal journal)
+        throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
@@ -176,8 +193,31 @@ public class BundleArchive
 
         String s = (String) m_configMap.get(BundleCache.CACHE_SINGLEBUNDLEFILE_PROP);
         m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")) ? true : false;
-
-        if (m_isSingleBundleFile)
+        m_journal = BundleCache.isJournalEnabled(m_configMap) ? journal : null;
+
+        BundleInfoJournal.BundleInfo info =
+            (journal == null) ? null : journal.get(m_archiveRootDir.getName());
+        if (info != null)
+        {
+            m_id = info.m_id;
+            m_originalLocation = info.m_location;
+            m_persistentState = info.m_state;
+            m_startLevel = info.m_startLevel;
+            m_lastModified = info.m_lastModified;
+            m_refreshCount = info.m_refreshCount;
+            // The journal is no longer used, so move the info back to files.
+            if (m_journal == null)
+            {
+                saveBundleInfo();
+            }
+        }
+        else if (m_journal != null)
+        {
+            // Move the info of archives created without the journal into it.
+            readBundleInfo();
+            writeBundleInfo();
+        }
+        else if (m_isSingleBundleFile)
         {
             readBundleInfo();
         }
@@ -290,7 +330,7 @@ public class BundleArchive
         if (m_persistentState != state)
         {
             m_persistentState = state;
-            if (m_isSingleBundleFile)
+            if (m_isSingleBundleFile || (m_journal != null))
             {
                 writeBundleInfo();
             }
@@ -329,7 +369,7 @@ public class BundleArchive
         if (m_startLevel != level)
         {
             m_startLevel = level;
-            if (m_isSingleBundleFile)
+            if (m_isSingleBundleFile || (m_journal != null))
             {
                 writeBundleInfo();
             }
@@ -371,7 +411,7 @@ public class BundleArchive
         if (m_lastModified != lastModified)
         {
             m_lastModified = lastModified;
-            if (m_isSingleBundleFile)
+            if (m_isSingleBundleFile || (m_journal != null))
             {
                 writeBundleInfo();
             }
@@ -427,7 +467,7 @@ public class BundleArchive
         if (m_refreshCount != count)
         {
             m_refreshCount = count;
-            if (m_isSingleBundleFile)
+            if (m_isSingleBundleFile || (m_journal != null))
             {
                 writeBundleInfo();
             }
@@ -690,6 +730,17 @@ public class BundleArchive
                 Logger.LOG_ERROR,
                 "Unable to delete archive directory - " + m_archiveRootDir);
         }
+        else if (m_journal != null)
+        {
+            try
+            {
+                m_journal.put(m_archiveRootDir.getName(), null);
+            }
+            catch (IOException ex)
+            {
+                // A stale entry is ignored since its directory is gone.
+            }
+        }
     }
 
     /**
@@ -786,18 +837,7 @@ public class BundleArchive
                 throw new IOException("Unable to create archive directory.");
             }
 
-            if (m_isSingleBundleFile)
-            {
-                writeBundleInfo();
-            }
-            else
-            {
-                writeId();
-                writeLocation();
-                writePersistentState();
-                writeStartLevel();
-                writeLastModified();
-            }
+            saveBundleInfo();
         }
         finally
         {
@@ -806,6 +846,22 @@ public class BundleArchive
         }
     }
 
+    private void saveBundleInfo() throws Exception
+    {
+        if (m_isSingleBundleFile || (m_journal != null))
+        {
+            writeBundleInfo();
+        }
+        else
+        {
+            writeId();
+            writeLocation();
+            writePersistentState();
+            writeStartLevel();
+            writeLastModified();
+        }
+    }
+
     /**
      * <p>
      * Creates a revision based on the location string and/or input stream.
@@ -985,6 +1041,14 @@ public class BundleArchive
 
     private void writeBundleInfo() throws Exception
     {
+        if (m_journal != null)
+        {
+            m_journal.put(m_archiveRootDir.getName(), new BundleInfoJournal.BundleInfo(
+                m_id, m_originalLocation, m_persistentState, m_startLevel,
+                m_lastModified, m_refreshCount));
+            return;
+        }
+
         // Write the bundle start level.
         OutputStream os = null;
         BufferedWriter bw = null;
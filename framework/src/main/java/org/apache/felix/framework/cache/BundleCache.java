@@ -68,6 +68,24 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.jarindex</tt> - Enables or disables serving the
+ *       entries of bundle JAR files using an entry index that is persisted
+ *       in the revision directory. This avoids reopening JAR files as zip
+ *       files when a file limit is set. This is disabled by
+ *       default; set this property to <tt>true</tt> to enable it.
+ *   </li>
+ *   <li><tt>felix.cache.manifestsnapshot</tt> - Enables or disables keeping
+ *       a snapshot of the manifest headers of bundle JAR files in the
+ *       revision directory, so that restarting the framework does not need
+ *       to open the JAR files to read their manifests. This is disabled by
+ *       default; set this property to <tt>true</tt> to enable it.
+ *   </li>
+ *   <li><tt>felix.cache.bundlejournal</tt> - Enables or disables keeping
+ *       the bundle info of all bundle archives in a single journal file in
+ *       the cache directory instead of a bundle info file per archive. This
+ *       is disabled by default; set this property to <tt>true</tt> to enable
+ *       it.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +98,9 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_JARINDEX_PROP = "felix.cache.jarindex";
+    public static final String CACHE_MANIFESTSNAPSHOT_PROP = "felix.cache.manifestsnapshot";
+    public static final String CACHE_BUNDLEJOURNAL_PROP = "felix.cache.bundlejournal";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -97,6 +118,7 @@ public class BundleCache
     private final Map m_configMap;
     private final WeakZipFileFactory m_zipFactory;
     private final Object m_lock;
+    private BundleInfoJournal m_journal;
 
     public BundleCache(Logger logger, Map configMap)
         throws Exception
@@ -184,6 +206,11 @@ public class BundleCache
 
     public synchronized void release()
     {
+        if (m_journal != null)
+        {
+            m_journal.close();
+            m_journal = null;
+        }
         if (m_lock != null)
         {
             try
@@ -201,6 +228,25 @@ public class BundleCache
         }
     }
 
+    /* package */ static boolean isJournalEnabled(Map configMap)
+    {
+        String s = (String) configMap.get(CACHE_BUNDLEJOURNAL_PROP);
+        return (s != null) && s.equalsIgnoreCase("true");
+    }
+
+    /**
+     * Returns the bundle info journal, opening it if necessary, or
+     * <tt>null</tt> if the journal is not enabled.
+    **/
+    private synchronized BundleInfoJournal getJournal() throws IOException
+    {
+        if ((m_journal == null) && isJournalEnabled(m_configMap))
+        {
+            m_journal = new BundleInfoJournal(m_logger, determineCacheDir(m_configMap));
+        }
+        return m_journal;
+    }
+
     /* package */ static SecureAction getSecureAction()
     {
         return m_secureAction;
@@ -208,6 +254,12 @@ public class BundleCache
 
     public synchronized void delete() throws Exception
     {
+        if (m_journal != null)
+        {
+            m_journal.close();
+            m_journal = null;
+        }
+
         // Delete the cache directory.
         File cacheDir = determineCacheDir(m_configMap);
         deleteDirectoryTree(cacheDir);
@@ -232,6 +284,15 @@ public class BundleCache
 
         // Create the existing bundle archives in the directory, if any exist.
         File cacheDir = determineCacheDir(m_configMap);
+        BundleInfoJournal journal = getJournal();
+        // If the journal was used before but is disabled now, the archives
+        // move their bundle info from it back into their own files.
+        BundleInfoJournal oldJournal = null;
+        if ((journal == null) && BundleInfoJournal.exists(cacheDir))
+        {
+            oldJournal = new BundleInfoJournal(m_logger, cacheDir);
+            journal = oldJournal;
+        }
         List archiveList = new ArrayList();
         File[] children = getSecureAction().listDirectory(cacheDir);
         for (int i = 0; (children != null) && (i < children.length); i++)
@@ -246,7 +307,7 @@ public class BundleCache
                 {
                     archiveList.add(
                         new BundleArchive(
-                            m_logger, m_configMap, m_zipFactory, children[i]));
+                            m_logger, m_configMap, m_zipFactory, children[i], journal));
                 }
                 catch (Exception ex)
                 {
@@ -258,6 +319,11 @@ public class BundleCache
             }
         }
 
+        if (oldJournal != null)
+        {
+            oldJournal.delete();
+        }
+
         return (BundleArchive[])
             archiveList.toArray(new BundleArchive[archiveList.size()]);
     }
@@ -277,7 +343,7 @@ public class BundleCache
             BundleArchive ba =
                 new BundleArchive(
                     m_logger, m_configMap, m_zipFactory, archiveRootDir,
-                    id, startLevel, location, is);
+                    id, startLevel, location, is, getJournal());
             return ba;
         }
         catch (Exception ex)
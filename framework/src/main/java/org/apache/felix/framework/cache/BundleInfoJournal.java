@@ -0,0 +1,403 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * Stores the bundle info of all bundle archives of the cache in a single
+ * append-only file instead of one bundle info file per archive. Every change
+ * appends a checksummed record, so a record that was only partially written
+ * when the process died is detected and ignored when the journal is read
+ * again. Records of concurrent changes are written and synced together, and
+ * superseded records are dropped when the journal is opened.
+**/
+class BundleInfoJournal
+{
+    static final String JOURNAL_FILE = "cache.journal";
+
+    private static final int JOURNAL_MAGIC = 0x464a524e;
+    private static final int JOURNAL_VERSION = 1;
+    // Upper bound for the length of a record, anything larger is corrupt.
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    private final Logger m_logger;
+    private final File m_file;
+    // Maps archive directory names to their current bundle info.
+    private final Map<String, BundleInfo> m_infos = new HashMap<String, BundleInfo>();
+
+    private RandomAccessFile m_raf;
+    // Records that were added but not written yet.
+    private List<byte[]> m_pending = new ArrayList<byte[]>();
+    // Sequence numbers of the last added and the last written record.
+    private long m_added = 0;
+    private long m_written = 0;
+    private boolean m_isWriting = false;
+
+    BundleInfoJournal(Logger logger, File cacheDir) throws IOException
+    {
+        m_logger = logger;
+        m_file = new File(cacheDir, JOURNAL_FILE);
+
+        int records = 0;
+        if (BundleCache.getSecureAction().fileExists(m_file))
+        {
+            records = read();
+        }
+        // Rewrite the journal if it is new or mostly holds superseded records.
+        if ((records == 0) || (records > (2 * m_infos.size()) + 16))
+        {
+            compact();
+        }
+        m_raf = new RandomAccessFile(m_file, "rw");
+        m_raf.seek(m_raf.length());
+    }
+
+    static boolean exists(File cacheDir)
+    {
+        return BundleCache.getSecureAction().fileExists(new File(cacheDir, JOURNAL_FILE));
+    }
+
+    synchronized BundleInfo get(String name)
+    {
+        return m_infos.get(name);
+    }
+
+    /**
+     * Records the bundle info of the specified archive directory and returns
+     * once it is written to disk.
+     * @param name the name of the archive directory.
+     * @param info the bundle info or <tt>null</tt> to remove it.
+     * @throws IOException if the journal could not be written.
+    **/
+    void put(String name, BundleInfo info) throws IOException
+    {
+        byte[] record = encode(name, info);
+
+        List<byte[]> batch;
+        long batchEnd;
+        synchronized (this)
+        {
+            if (m_raf == null)
+            {
+                throw new IOException("Bundle info journal is closed.");
+            }
+            if (info == null)
+            {
+                m_infos.remove(name);
+            }
+            else
+            {
+                m_infos.put(name, info);
+            }
+            m_pending.add(record);
+            long seq = ++m_added;
+
+            // Wait while another thread writes, it might write our record too.
+            boolean interrupted = false;
+            while ((m_written < seq) && m_isWriting)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (m_written >= seq)
+            {
+                return;
+            }
+
+            // Write all pending records, including those of waiting threads.
+            m_isWriting = true;
+            batch = m_pending;
+            batchEnd = m_added;
+            m_pending = new ArrayList<byte[]>();
+        }
+
+        boolean success = false;
+        try
+        {
+            append(batch);
+            success = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                m_isWriting = false;
+                if (success)
+                {
+                    m_written = batchEnd;
+                }
+                else
+                {
+                    // Leave the records for the next writer to retry.
+                    batch.addAll(m_pending);
+                    m_pending = batch;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    synchronized void close()
+    {
+        if (m_raf != null)
+        {
+            try
+            {
+                m_raf.close();
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(Logger.LOG_DEBUG, "Unable to close bundle info journal.", ex);
+            }
+            m_raf = null;
+        }
+    }
+
+    void delete()
+    {
+        close();
+        BundleCache.getSecureAction().deleteFile(m_file);
+    }
+
+    private void append(List<byte[]> records) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (byte[] record : records)
+        {
+            baos.write(record);
+        }
+        // Only one thread writes at a time, but the file may be closed concurrently.
+        RandomAccessFile raf;
+        synchronized (this)
+        {
+            raf = m_raf;
+        }
+        if (raf == null)
+        {
+            throw new IOException("Bundle info journal is closed.");
+        }
+        long pos = raf.getFilePointer();
+        try
+        {
+            raf.write(baos.toByteArray());
+            raf.getChannel().force(false);
+        }
+        catch (IOException ex)
+        {
+            // Drop a partially written batch, so it does not hide the
+            // records that are written after it.
+            try
+            {
+                raf.setLength(pos);
+                raf.seek(pos);
+            }
+            catch (IOException ignore)
+            {
+            }
+            m_logger.log(Logger.LOG_ERROR, "Unable to write bundle info journal.", ex);
+            throw ex;
+        }
+    }
+
+    private int read() throws IOException
+    {
+        int records = 0;
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(m_file), BundleCache.BUFSIZE));
+            if ((in.readInt() != JOURNAL_MAGIC) || (in.readInt() != JOURNAL_VERSION))
+            {
+                m_logger.log(Logger.LOG_WARNING, "Ignoring unknown bundle info journal: " + m_file);
+                return 0;
+            }
+            CRC32 crc = new CRC32();
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+                long checksum = in.readLong();
+                if ((length <= 0) || (length > MAX_RECORD_LENGTH))
+                {
+                    throw new IOException("Invalid record length " + length);
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if (crc.getValue() != checksum)
+                {
+                    throw new IOException("Record checksum mismatch");
+                }
+                decode(bytes);
+                records++;
+            }
+        }
+        catch (IOException ex)
+        {
+            // The tail of the journal was not completely written, so the
+            // records read so far are the last consistent state.
+            m_logger.log(
+                Logger.LOG_WARNING,
+                "Ignoring incomplete bundle info journal record after "
+                    + records + " records: " + ex);
+            // Force the journal to be rewritten without the broken tail.
+            records = 0;
+        }
+        finally
+        {
+            if (in != null) in.close();
+        }
+        return records;
+    }
+
+    private void compact() throws IOException
+    {
+        File tmp = new File(m_file.getParentFile(), JOURNAL_FILE + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = BundleCache.getSecureAction().getFileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, BundleCache.BUFSIZE));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            for (Map.Entry<String, BundleInfo> entry : m_infos.entrySet())
+            {
+                out.write(encode(entry.getKey(), entry.getValue()));
+            }
+            out.flush();
+            ((FileOutputStream) os).getFD().sync();
+        }
+        finally
+        {
+            if (os != null) os.close();
+        }
+        BundleCache.getSecureAction().deleteFile(m_file);
+        if (!BundleCache.getSecureAction().renameFile(tmp, m_file))
+        {
+            throw new IOException("Unable to rename bundle info journal: " + tmp);
+        }
+    }
+
+    private static byte[] encode(String name, BundleInfo info) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(name);
+        out.writeBoolean(info != null);
+        if (info != null)
+        {
+            out.writeLong(info.m_id);
+            writeString(out, info.m_location);
+            out.writeInt(info.m_state);
+            out.writeInt(info.m_startLevel);
+            out.writeLong(info.m_lastModified);
+            out.writeLong(info.m_refreshCount);
+        }
+        out.flush();
+        byte[] bytes = baos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        baos = new ByteArrayOutputStream(bytes.length + 12);
+        out = new DataOutputStream(baos);
+        out.writeInt(bytes.length);
+        out.writeLong(crc.getValue());
+        out.write(bytes);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private void decode(byte[] bytes) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String name = in.readUTF();
+        if (in.readBoolean())
+        {
+            m_infos.put(name, new BundleInfo(
+                in.readLong(), readString(in), in.readInt(), in.readInt(),
+                in.readLong(), in.readLong()));
+        }
+        else
+        {
+            m_infos.remove(name);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = ((s == null) ? "" : s).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static class BundleInfo
+    {
+        final long m_id;
+        final String m_location;
+        final int m_state;
+        final int m_startLevel;
+        final long m_lastModified;
+        final long m_refreshCount;
+
+        BundleInfo(long id, String location, int state, int startLevel,
+            long lastModified, long refreshCount)
+        {
+            m_id = id;
+            m_location = location;
+            m_state = state;
+            m_startLevel = startLevel;
+            m_lastModified = lastModified;
+            m_refreshCount = refreshCount;
+        }
+    }
+}
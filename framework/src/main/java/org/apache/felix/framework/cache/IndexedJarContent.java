@@ -0,0 +1,563 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+
+/**
+ * <p>
+ * This class implements a JAR file content that serves its entries using
+ * an index of the JAR file. The names, offsets, and sizes of all entries
+ * are kept in the index, which is persisted next to the extracted content
+ * of the revision so that the central directory of the JAR file only needs
+ * to be parsed once. Entry lookups do not touch the JAR file at all, and
+ * reads only open it for the duration of the read instead of going through
+ * the zip file, which makes this content well suited for use with a file
+ * limit. Since no file handle is kept open, the JAR file can be deleted or
+ * replaced at any time; reads fail if it no longer matches the index.
+ * Embedded JAR files and native libraries are still extracted through the
+ * underlying zip file.
+ * </p>
+ * <p>
+ * If the JAR file cannot be indexed (e.g., it uses ZIP64 extensions or an
+ * unsupported compression method), then this content behaves exactly
+ * like a <tt>JarContent</tt>.
+ * </p>
+**/
+public class IndexedJarContent extends JarContent
+{
+    private static final transient String INDEX_FILE_SUFFIX = ".index";
+    private static final int INDEX_MAGIC = 0x464a4958;
+    private static final int INDEX_VERSION = 2;
+
+    private static final int END_HEADER_SIG = 0x06054b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final JarIndex m_index;
+
+    public IndexedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile)
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile, null, null);
+    }
+
+    private IndexedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile,
+        JarContent zipFileSource, JarIndex index)
+    {
+        super(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile,
+            zipFileSource);
+        m_index = (index != null) ? index : openIndex(logger, rootDir, file);
+    }
+
+    public boolean hasEntry(String name) throws IllegalStateException
+    {
+        if (m_index == null)
+        {
+            return super.hasEntry(name);
+        }
+        return m_index.getEntry(name) != null;
+    }
+
+    public Enumeration<String> getEntries()
+    {
+        if (m_index == null)
+        {
+            return super.getEntries();
+        }
+        // Spec says to return null if there are no entries.
+        return (m_index.m_names.length > 0) ? new NamesEnumeration(m_index.m_names) : null;
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        if (m_index == null)
+        {
+            return super.getEntryAsBytes(name);
+        }
+        IndexEntry entry = m_index.getEntry(name);
+        if (entry == null)
+        {
+            return null;
+        }
+        try
+        {
+            return m_index.read(entry);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "IndexedJarContent: Unable to read bytes.", ex);
+            return null;
+        }
+    }
+
+    public InputStream getEntryAsStream(String name)
+        throws IllegalStateException, IOException
+    {
+        if (m_index == null)
+        {
+            return super.getEntryAsStream(name);
+        }
+        byte[] bytes = getEntryAsBytes(name);
+        return (bytes == null) ? null : new ByteArrayInputStream(bytes);
+    }
+
+    JarContent createContent(File rootDir, File file, JarContent zipFileSource)
+    {
+        // The content for the JAR file itself shares our index.
+        return new IndexedJarContent(m_logger, m_configMap, m_zipFactory,
+            m_revisionLock, rootDir, file, null, zipFileSource,
+            file.equals(getFile()) ? m_index : null);
+    }
+
+    public String toString()
+    {
+        return "Indexed JAR " + getFile().getPath();
+    }
+
+    private static JarIndex openIndex(Logger logger, File rootDir, File file)
+    {
+        try
+        {
+            File indexFile = new File(rootDir, file.getName() + INDEX_FILE_SUFFIX);
+            IndexEntry[] entries = readIndexFile(indexFile, file);
+            if (entries == null)
+            {
+                entries = parseCentralDirectory(file);
+                if (entries == null)
+                {
+                    logger.log(
+                        Logger.LOG_DEBUG,
+                        "IndexedJarContent: Unable to index " + file
+                        + ", falling back to zip file access.");
+                    return null;
+                }
+                writeIndexFile(logger, indexFile, file, entries);
+            }
+            return new JarIndex(file, file.length(), entries);
+        }
+        catch (Exception ex)
+        {
+            logger.log(
+                Logger.LOG_WARNING,
+                "IndexedJarContent: Unable to index " + file
+                + ", falling back to zip file access.", ex);
+            return null;
+        }
+    }
+
+    private static IndexEntry[] readIndexFile(File indexFile, File file)
+    {
+        if (!BundleCache.getSecureAction().fileExists(indexFile))
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(indexFile),
+                BundleCache.BUFSIZE));
+            // Ignore stale index files.
+            if ((in.readInt() != INDEX_MAGIC)
+                || (in.readInt() != INDEX_VERSION)
+                || (in.readLong() != file.length())
+                || (in.readLong() != file.lastModified()))
+            {
+                return null;
+            }
+            IndexEntry[] entries = new IndexEntry[in.readInt()];
+            for (int i = 0; i < entries.length; i++)
+            {
+                entries[i] = new IndexEntry(
+                    in.readUTF(), in.readByte(), in.readInt(), in.readInt(), in.readInt());
+            }
+            return entries;
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    private static void writeIndexFile(
+        Logger logger, File indexFile, File file, IndexEntry[] entries)
+    {
+        // Write to a temporary file first, so that a partially written
+        // index is never picked up.
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                BundleCache.getSecureAction().getFileOutputStream(tmpFile),
+                BundleCache.BUFSIZE));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeInt(entries.length);
+            for (int i = 0; i < entries.length; i++)
+            {
+                out.writeUTF(entries[i].m_name);
+                out.writeByte(entries[i].m_method);
+                out.writeInt(entries[i].m_offset);
+                out.writeInt(entries[i].m_compressedSize);
+                out.writeInt(entries[i].m_size);
+            }
+            out.close();
+            out = null;
+            BundleCache.getSecureAction().deleteFile(indexFile);
+            if (!BundleCache.getSecureAction().renameFile(tmpFile, indexFile))
+            {
+                BundleCache.getSecureAction().deleteFile(tmpFile);
+            }
+        }
+        catch (IOException ex)
+        {
+            // The index is only an optimization, so just recalculate it
+            // the next time.
+            logger.log(
+                Logger.LOG_DEBUG,
+                "IndexedJarContent: Unable to write index file " + indexFile, ex);
+        }
+        finally
+        {
+            try
+            {
+                if (out != null)
+                {
+                    out.close();
+                    BundleCache.getSecureAction().deleteFile(tmpFile);
+                }
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    /**
+     * Parses the central directory of the JAR file. Only the end of the
+     * JAR file and the central directory itself are read into memory.
+     * @param file the JAR file.
+     * @return the entries of the JAR file or <tt>null</tt> if the JAR file
+     *         uses features that are not supported by the index.
+    **/
+    private static IndexEntry[] parseCentralDirectory(File file)
+        throws IOException
+    {
+        FileInputStream fis = BundleCache.getSecureAction().getFileInputStream(file);
+        try
+        {
+            FileChannel channel = fis.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE)
+            {
+                return null;
+            }
+
+            // Find the end of central directory record, which is followed
+            // by a variable length comment.
+            int tailLength = (int) Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = read(channel, length - tailLength, tailLength);
+            int end = -1;
+            for (int pos = tailLength - END_HEADER_SIZE; pos >= 0; pos--)
+            {
+                if (tail.getInt(pos) == END_HEADER_SIG)
+                {
+                    end = pos;
+                    break;
+                }
+            }
+            if (end < 0)
+            {
+                throw new IOException("No end of central directory record found.");
+            }
+
+            int count = tail.getShort(end + 10) & 0xffff;
+            long dirSize = tail.getInt(end + 12) & 0xffffffffL;
+            long dirOffset = tail.getInt(end + 16) & 0xffffffffL;
+            // ZIP64 archives are not supported.
+            if ((count == 0xffff) || (dirOffset == 0xffffffffL)
+                || (dirOffset + dirSize > length))
+            {
+                return null;
+            }
+
+            ByteBuffer dir = read(channel, dirOffset, (int) dirSize);
+            IndexEntry[] entries = new IndexEntry[count];
+            int pos = 0;
+            for (int i = 0; i < count; i++)
+            {
+                if (dir.getInt(pos) != CENTRAL_HEADER_SIG)
+                {
+                    throw new IOException("Invalid central directory header.");
+                }
+                int flags = dir.getShort(pos + 8) & 0xffff;
+                int method = dir.getShort(pos + 10) & 0xffff;
+                long compressedSize = dir.getInt(pos + 20) & 0xffffffffL;
+                long size = dir.getInt(pos + 24) & 0xffffffffL;
+                int nameLength = dir.getShort(pos + 28) & 0xffff;
+                int extraLength = dir.getShort(pos + 30) & 0xffff;
+                int commentLength = dir.getShort(pos + 32) & 0xffff;
+                long localOffset = dir.getInt(pos + 42) & 0xffffffffL;
+
+                // Encrypted entries, unknown compression methods, and ZIP64
+                // sizes are not supported.
+                if (((flags & 1) != 0)
+                    || ((method != STORED) && (method != DEFLATED))
+                    || (compressedSize >= Integer.MAX_VALUE)
+                    || (size >= Integer.MAX_VALUE)
+                    || (localOffset >= Integer.MAX_VALUE))
+                {
+                    return null;
+                }
+
+                String name = new String(
+                    dir.array(), pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+
+                // The entry data starts after the local header, whose extra
+                // field may differ from the one in the central directory,
+                // so its offset is only calculated when reading the entry.
+                entries[i] = new IndexEntry(
+                    name, method, (int) localOffset, (int) compressedSize, (int) size);
+                pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+            return entries;
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    /**
+     * Reads the specified region of the channel into a heap buffer.
+     * @param channel the channel to read from.
+     * @param position the position of the region in the channel.
+     * @param length the length of the region.
+     * @return a little endian buffer containing the region.
+    **/
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of JAR file.");
+            }
+        }
+        buffer.flip();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static class JarIndex
+    {
+        private final File m_file;
+        private final long m_length;
+        private final String[] m_names;
+        private final Map<String, IndexEntry> m_entries;
+
+        JarIndex(File file, long length, IndexEntry[] entries)
+        {
+            m_file = file;
+            m_length = length;
+            m_names = new String[entries.length];
+            m_entries = new HashMap<String, IndexEntry>(entries.length * 4 / 3 + 1);
+            for (int i = 0; i < entries.length; i++)
+            {
+                m_names[i] = entries[i].m_name;
+                // Like ZipFile, the first entry wins for duplicate names.
+                if (!m_entries.containsKey(entries[i].m_name))
+                {
+                    m_entries.put(entries[i].m_name, entries[i]);
+                }
+            }
+        }
+
+        IndexEntry getEntry(String name)
+        {
+            // Like ZipFile, also find directory entries without the
+            // trailing slash.
+            IndexEntry entry = m_entries.get(name);
+            return (entry == null) ? m_entries.get(name + "/") : entry;
+        }
+
+        byte[] read(IndexEntry entry) throws IOException
+        {
+            // Only keep the JAR file open while reading, so that it can
+            // be deleted or replaced while this content is in use.
+            FileInputStream fis = BundleCache.getSecureAction().getFileInputStream(m_file);
+            try
+            {
+                FileChannel channel = fis.getChannel();
+                // A JAR file that was modified in place, which can happen
+                // for referenced bundles, no longer matches the index.
+                if (channel.size() != m_length)
+                {
+                    throw new IOException("JAR file changed: " + m_file);
+                }
+                ByteBuffer header = IndexedJarContent.read(
+                    channel, entry.m_offset, LOCAL_HEADER_SIZE);
+                if (header.getInt(0) != LOCAL_HEADER_SIG)
+                {
+                    throw new IOException("Invalid local header: " + entry.m_name);
+                }
+                long offset = entry.m_offset + LOCAL_HEADER_SIZE
+                    + (header.getShort(26) & 0xffff)
+                    + (header.getShort(28) & 0xffff);
+                if (offset + entry.m_compressedSize > m_length)
+                {
+                    throw new IOException("Truncated entry: " + entry.m_name);
+                }
+
+                if (entry.m_method == STORED)
+                {
+                    return IndexedJarContent.read(
+                        channel, offset, entry.m_size).array();
+                }
+
+                // An extra dummy byte is required by the inflater when
+                // inflating raw deflate data.
+                byte[] compressed = new byte[entry.m_compressedSize + 1];
+                IndexedJarContent.read(channel, offset, entry.m_compressedSize)
+                    .get(compressed, 0, entry.m_compressedSize);
+                return inflate(entry, compressed);
+            }
+            finally
+            {
+                fis.close();
+            }
+        }
+
+        private static byte[] inflate(IndexEntry entry, byte[] compressed)
+            throws IOException
+        {
+            byte[] bytes = new byte[entry.m_size];
+            Inflater inflater = new Inflater(true);
+            try
+            {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < bytes.length)
+                {
+                    int count = inflater.inflate(bytes, n, bytes.length - n);
+                    if ((count == 0) && (inflater.finished() || inflater.needsInput()))
+                    {
+                        throw new IOException("Truncated entry: " + entry.m_name);
+                    }
+                    n += count;
+                }
+            }
+            catch (DataFormatException ex)
+            {
+                throw new IOException("Corrupt entry: " + entry.m_name);
+            }
+            finally
+            {
+                inflater.end();
+            }
+            return bytes;
+        }
+    }
+
+    private static class IndexEntry
+    {
+        private final String m_name;
+        private final int m_method;
+        private final int m_offset;
+        private final int m_compressedSize;
+        private final int m_size;
+
+        IndexEntry(String name, int method, int offset, int compressedSize, int size)
+        {
+            m_name = name;
+            m_method = method;
+            m_offset = offset;
+            m_compressedSize = compressedSize;
+            m_size = size;
+        }
+    }
+
+    private static class NamesEnumeration implements Enumeration<String>
+    {
+        private final String[] m_names;
+        private int m_idx = 0;
+
+        NamesEnumeration(String[] names)
+        {
+            m_names = names;
+        }
+
+        public boolean hasMoreElements()
+        {
+            return m_idx < m_names.length;
+        }
+
+        public String nextElement()
+        {
+            return m_names[m_idx++];
+        }
+    }
+}
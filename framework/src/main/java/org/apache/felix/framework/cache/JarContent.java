@@ -43,18 +43,35 @@ public class JarContent implements Content
     private static final transient String EMBEDDED_DIRECTORY = "-embedded";
     private static final transient String LIBRARY_DIRECTORY = "-lib";
 
-    private final Logger m_logger;
-    private final Map m_configMap;
-    private final WeakZipFileFactory m_zipFactory;
-    private final Object m_revisionLock;
+    protected final Logger m_logger;
+    protected final Map m_configMap;
+    protected final WeakZipFileFactory m_zipFactory;
+    protected final Object m_revisionLock;
     private final File m_rootDir;
     private final File m_file;
-    private final WeakZipFile m_zipFile;
+    // Opened on first use, unless it was passed in.
+    private volatile WeakZipFile m_zipFile;
+    // The content whose zip file is shared, if it was not passed in.
+    private final JarContent m_zipFileSource;
     private final boolean m_isZipFileOwner;
     private Map m_nativeLibMap;
 
     public JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         Object revisionLock, File rootDir, File file, WeakZipFile zipFile)
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile, null);
+    }
+
+    /**
+     * Creates a JAR content whose zip file is only opened when it is
+     * first needed.
+     * @param zipFile the already opened JAR file or <tt>null</tt>.
+     * @param zipFileSource the content whose zip file to share instead of
+     *        opening one or <tt>null</tt>.
+    **/
+    JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile,
+        JarContent zipFileSource)
     {
         m_logger = logger;
         m_configMap = configMap;
@@ -62,23 +79,9 @@ public class JarContent implements Content
         m_revisionLock = revisionLock;
         m_rootDir = rootDir;
         m_file = file;
-        if (zipFile == null)
-        {
-            try
-            {
-                m_zipFile = m_zipFactory.create(m_file);
-            }
-            catch (IOException ex)
-            {
-                throw new RuntimeException(
-                    "Unable to open JAR file, probably deleted: " + ex.getMessage());
-            }
-        }
-        else
-        {
-            m_zipFile = zipFile;
-        }
-        m_isZipFileOwner = (zipFile == null);
+        m_zipFile = zipFile;
+        m_zipFileSource = zipFileSource;
+        m_isZipFileOwner = (zipFile == null) && (zipFileSource == null);
     }
 
     protected void finalize()
@@ -90,9 +93,10 @@ public class JarContent implements Content
     {
         try
         {
-            if (m_isZipFileOwner)
+            WeakZipFile zipFile = m_zipFile;
+            if (m_isZipFileOwner && (zipFile != null))
             {
-                m_zipFile.close();
+                zipFile.close();
             }
         }
         catch (Exception ex)
@@ -107,7 +111,7 @@ public class JarContent implements Content
     {
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipFile().getEntry(name);
             return ze != null;
         }
         catch (Exception ex)
@@ -122,7 +126,7 @@ public class JarContent implements Content
     public Enumeration<String> getEntries()
     {
         // Wrap entries enumeration to filter non-matching entries.
-        Enumeration<String> e = new EntriesEnumeration(m_zipFile.entries());
+        Enumeration<String> e = new EntriesEnumeration(getZipFile().entries());
 
         // Spec says to return null if there are no entries.
         return (e.hasMoreElements()) ? e : null;
@@ -136,12 +140,12 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipFile().getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            is = getZipFile().getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -190,12 +194,12 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipFile().getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            is = getZipFile().getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -227,8 +231,7 @@ public class JarContent implements Content
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                m_rootDir, m_file, m_zipFile);
+            return createContent(m_rootDir, m_file, this);
         }
 
         // Remove any leading slash.
@@ -245,7 +248,7 @@ public class JarContent implements Content
         // Determine if the entry is an emdedded JAR file or
         // directory in the bundle JAR file. Ignore any entries
         // that do not exist per the spec.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getZipFile().getEntry(entryName);
         if ((ze != null) && ze.isDirectory())
         {
             File extractDir = new File(embedDir, entryName);
@@ -289,9 +292,7 @@ public class JarContent implements Content
                         "Unable to extract embedded JAR file.", ex);
                 }
             }
-            return new JarContent(
-                m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                extractJar.getParentFile(), extractJar, null);
+            return createContent(extractJar.getParentFile(), extractJar, null);
         }
 
         // The entry could not be found, so return null.
@@ -314,7 +315,7 @@ public class JarContent implements Content
 
         // The entry name must refer to a file type, since it is
         // a native library, not a directory.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getZipFile().getEntry(entryName);
         if ((ze != null) && !ze.isDirectory())
         {
             // Extracting the embedded native library file impacts all other
@@ -353,7 +354,7 @@ public class JarContent implements Content
                         try
                         {
                             is = new BufferedInputStream(
-                                m_zipFile.getInputStream(ze),
+                                getZipFile().getInputStream(ze),
                                 BundleCache.BUFSIZE);
                             if (is == null)
                             {
@@ -432,6 +433,59 @@ public class JarContent implements Content
         return m_file;
     }
 
+    /**
+     * Creates the content for this JAR file itself or for a JAR file
+     * embedded in it; subclasses override this to return their own type.
+     * @param rootDir the root directory for extracted entries.
+     * @param file the JAR file of the new content.
+     * @param zipFileSource the content whose zip file to share or <tt>null</tt>.
+     * @return the new content.
+    **/
+    JarContent createContent(File rootDir, File file, JarContent zipFileSource)
+    {
+        return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
+            rootDir, file, null, zipFileSource);
+    }
+
+    /**
+     * Returns the zip file of this content, opening it if it is not yet
+     * opened.
+     * @return the zip file.
+    **/
+    WeakZipFile getZipFile()
+    {
+        WeakZipFile zipFile = m_zipFile;
+        if (zipFile == null)
+        {
+            synchronized (this)
+            {
+                zipFile = m_zipFile;
+                if (zipFile == null)
+                {
+                    if (m_zipFileSource != null)
+                    {
+                        zipFile = m_zipFileSource.getZipFile();
+                    }
+                    else
+                    {
+                        try
+                        {
+                            zipFile = m_zipFactory.create(m_file);
+                        }
+                        catch (IOException ex)
+                        {
+                            throw new RuntimeException(
+                                "Unable to open JAR file, probably deleted: "
+                                + ex.getMessage());
+                        }
+                    }
+                    m_zipFile = zipFile;
+                }
+            }
+        }
+        return zipFile;
+    }
+
     /**
      * This method extracts an embedded JAR file from the bundle's
      * JAR file.
@@ -457,7 +511,7 @@ public class JarContent implements Content
             try
             {
                 // Make sure class path entry is a JAR file.
-                ZipEntry ze = m_zipFile.getEntry(jarPath);
+                ZipEntry ze = getZipFile().getEntry(jarPath);
                 if (ze == null)
                 {
                     return;
@@ -479,7 +533,7 @@ public class JarContent implements Content
                     }
 
                     // Extract embedded JAR into its directory.
-                    is = new BufferedInputStream(m_zipFile.getInputStream(ze), BundleCache.BUFSIZE);
+                    is = new BufferedInputStream(getZipFile().getInputStream(ze), BundleCache.BUFSIZE);
                     if (is == null)
                     {
                         throw new IOException("No input stream: " + jarPath);
@@ -18,6 +18,10 @@
  */
 package org.apache.felix.framework.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -25,7 +29,9 @@ import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.zip.ZipEntry;
 
 import org.apache.felix.framework.Logger;
@@ -48,10 +54,15 @@ import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
 class JarRevision extends BundleArchiveRevision
 {
     private static final transient String BUNDLE_JAR_FILE = "bundle.jar";
+    private static final transient String MANIFEST_SNAPSHOT_FILE = "bundle.manifest";
+    private static final int SNAPSHOT_MAGIC = 0x464d4e46;
+    private static final int SNAPSHOT_VERSION = 1;
 
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
-    private final WeakZipFile m_zipFile;
+    // Only opened when needed if the manifest was read from a snapshot.
+    private WeakZipFile m_zipFile;
+    private final Map m_manifestSnapshot;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -76,23 +87,13 @@ class JarRevision extends BundleArchiveRevision
         // Save and process the bundle JAR.
         initialize(byReference, is);
 
-        // Open shared copy of the JAR file.
-        WeakZipFile zipFile = null;
-        try
-        {
-            // Open bundle JAR file.
-            zipFile = m_zipFactory.create(m_bundleFile);
-            // Error if no jar file.
-            if (zipFile == null)
-            {
-                throw new IOException("No JAR file found.");
-            }
-            m_zipFile = zipFile;
-        }
-        catch (Exception ex)
+        // If the manifest can be read from a snapshot, then there is no
+        // need to open the JAR file until its content is needed.
+        m_manifestSnapshot = (isManifestSnapshotEnabled())
+            ? readManifestSnapshot() : null;
+        if (m_manifestSnapshot == null)
         {
-            if (zipFile != null) zipFile.close();
-            throw ex;
+            getZipFile();
         }
     }
 
@@ -100,26 +101,194 @@ class JarRevision extends BundleArchiveRevision
     {
         // Create a case insensitive map of manifest attributes.
         Map headers = new StringMap();
+        if (m_manifestSnapshot != null)
+        {
+            headers.putAll(m_manifestSnapshot);
+            return headers;
+        }
         // Read and parse headers.
-        getMainAttributes(headers, m_zipFile);
+        getMainAttributes(headers, getZipFile());
+        if (isManifestSnapshotEnabled())
+        {
+            writeManifestSnapshot(headers);
+        }
         return headers;
     }
 
     public synchronized Content getContent() throws Exception
     {
+        // Share the JAR file if it was opened to read the manifest,
+        // otherwise the content opens it once it is first used.
+        if (Boolean.valueOf((String) getConfig().get(
+            BundleCache.CACHE_JARINDEX_PROP)).booleanValue())
+        {
+            return new IndexedJarContent(getLogger(), getConfig(), m_zipFactory,
+                this, getRevisionRootDir(), m_bundleFile, m_zipFile);
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
 
-    protected void close() throws Exception
+    protected synchronized void close() throws Exception
     {
-        m_zipFile.close();
+        if (m_zipFile != null)
+        {
+            m_zipFile.close();
+        }
     }
 
     //
     // Private methods.
     //
 
+    private synchronized WeakZipFile getZipFile() throws Exception
+    {
+        if (m_zipFile == null)
+        {
+            // Open shared copy of the JAR file.
+            WeakZipFile zipFile = null;
+            try
+            {
+                // Open bundle JAR file.
+                zipFile = m_zipFactory.create(m_bundleFile);
+                // Error if no jar file.
+                if (zipFile == null)
+                {
+                    throw new IOException("No JAR file found.");
+                }
+                m_zipFile = zipFile;
+            }
+            catch (Exception ex)
+            {
+                if (zipFile != null) zipFile.close();
+                throw ex;
+            }
+        }
+        return m_zipFile;
+    }
+
+    private boolean isManifestSnapshotEnabled()
+    {
+        return Boolean.valueOf((String) getConfig().get(
+            BundleCache.CACHE_MANIFESTSNAPSHOT_PROP)).booleanValue();
+    }
+
+    private Map readManifestSnapshot()
+    {
+        File snapshotFile = new File(getRevisionRootDir(), MANIFEST_SNAPSHOT_FILE);
+        if (!BundleCache.getSecureAction().fileExists(snapshotFile))
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(snapshotFile),
+                BundleCache.BUFSIZE));
+            // Ignore snapshots of a different or modified JAR file.
+            if ((in.readInt() != SNAPSHOT_MAGIC)
+                || (in.readInt() != SNAPSHOT_VERSION)
+                || (in.readLong() != m_bundleFile.length())
+                || (in.readLong() != m_bundleFile.lastModified()))
+            {
+                return null;
+            }
+            Map headers = new StringMap();
+            for (int count = in.readInt(); count > 0; count--)
+            {
+                headers.put(readString(in), readString(in));
+            }
+            return headers;
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    private void writeManifestSnapshot(Map headers)
+    {
+        // Write to a temporary file first, so that a partially written
+        // snapshot is never picked up.
+        File snapshotFile = new File(getRevisionRootDir(), MANIFEST_SNAPSHOT_FILE);
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                BundleCache.getSecureAction().getFileOutputStream(tmpFile),
+                BundleCache.BUFSIZE));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(m_bundleFile.length());
+            out.writeLong(m_bundleFile.lastModified());
+            out.writeInt(headers.size());
+            for (Iterator it = headers.entrySet().iterator(); it.hasNext(); )
+            {
+                Entry entry = (Entry) it.next();
+                writeString(out, (String) entry.getKey());
+                writeString(out, (String) entry.getValue());
+            }
+            out.close();
+            out = null;
+            BundleCache.getSecureAction().deleteFile(snapshotFile);
+            if (!BundleCache.getSecureAction().renameFile(tmpFile, snapshotFile))
+            {
+                BundleCache.getSecureAction().deleteFile(tmpFile);
+            }
+        }
+        catch (IOException ex)
+        {
+            // The snapshot is only an optimization, so just read the
+            // manifest from the JAR file again the next time.
+            getLogger().log(
+                Logger.LOG_DEBUG,
+                "JarRevision: Unable to write manifest snapshot " + snapshotFile, ex);
+        }
+        finally
+        {
+            try
+            {
+                if (out != null)
+                {
+                    out.close();
+                    BundleCache.getSecureAction().deleteFile(tmpFile);
+                }
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    // Manifest values may exceed the length supported by writeUTF().
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
     private void initialize(boolean byReference, InputStream is)
         throws Exception
     {
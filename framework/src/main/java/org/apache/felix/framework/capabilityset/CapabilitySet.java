@@ -22,6 +22,7 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,15 +30,25 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import org.apache.felix.framework.util.PropertySnapshot;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 
 public class CapabilitySet
 {
     private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
+    // Capabilities whose value for an indexed attribute is not a String,
+    // such as foo:Long=5, cannot be looked up by the raw filter value and
+    // must always be considered as candidates and compared with coercion.
+    private final Map<String, Set<BundleCapability>> m_unindexed;
+    // Sorted indices for version-typed attributes, used to answer range
+    // (>=, <=) as well as equality lookups.
+    private final Map<String, VersionIndex> m_versionIndices;
     private final Set<BundleCapability> m_capSet = new HashSet<BundleCapability>();
     private final static SecureAction m_secureAction = new SecureAction();
 
@@ -71,6 +82,12 @@ public void dump()
 }
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
+    {
+        this(indexProps, null, caseSensitive);
+    }
+
+    public CapabilitySet(
+        List<String> indexProps, List<String> versionIndexProps, boolean caseSensitive)
     {
         m_indices = (caseSensitive)
             ? new TreeMap<String, Map<Object, Set<BundleCapability>>>()
@@ -81,6 +98,20 @@ public void dump()
             m_indices.put(
                 indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
         }
+        m_unindexed = (caseSensitive)
+            ? new TreeMap<String, Set<BundleCapability>>()
+            : new TreeMap<String, Set<BundleCapability>>(new StringComparator(false));
+        for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
+        {
+            m_unindexed.put(indexProps.get(i), new HashSet<BundleCapability>());
+        }
+        m_versionIndices = (caseSensitive)
+            ? new TreeMap<String, VersionIndex>()
+            : new TreeMap<String, VersionIndex>(new StringComparator(false));
+        for (int i = 0; (versionIndexProps != null) && (i < versionIndexProps.size()); i++)
+        {
+            m_versionIndices.put(versionIndexProps.get(i), new VersionIndex());
+        }
     }
 
     public void addCapability(BundleCapability cap)
@@ -99,26 +130,43 @@ public void dump()
                 }
 
                 Map<Object, Set<BundleCapability>> index = entry.getValue();
+                Set<BundleCapability> unindexed = m_unindexed.get(entry.getKey());
 
                 if (value instanceof Collection)
                 {
                     Collection c = (Collection) value;
                     for (Object o : c)
                     {
-                        indexCapability(index, cap, o);
+                        indexCapability(index, unindexed, cap, o);
                     }
                 }
                 else
                 {
-                    indexCapability(index, cap, value);
+                    indexCapability(index, unindexed, cap, value);
                 }
             }
         }
+
+        // Index capability by version.
+        for (Entry<String, VersionIndex> entry : m_versionIndices.entrySet())
+        {
+            Object value = cap.getAttributes().get(entry.getKey());
+            if (value != null)
+            {
+                entry.getValue().add(cap, value);
+            }
+        }
     }
 
     private void indexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
+        Map<Object, Set<BundleCapability>> index, Set<BundleCapability> unindexed,
+        BundleCapability cap, Object capValue)
     {
+        if (!(capValue instanceof String))
+        {
+            unindexed.add(cap);
+            return;
+        }
         Set<BundleCapability> caps = index.get(capValue);
         if (caps == null)
         {
@@ -143,27 +191,43 @@ public void dump()
                     }
 
                     Map<Object, Set<BundleCapability>> index = entry.getValue();
+                    Set<BundleCapability> unindexed = m_unindexed.get(entry.getKey());
 
                     if (value instanceof Collection)
                     {
                         Collection c = (Collection) value;
                         for (Object o : c)
                         {
-                            deindexCapability(index, cap, o);
+                            deindexCapability(index, unindexed, cap, o);
                         }
                     }
                     else
                     {
-                        deindexCapability(index, cap, value);
+                        deindexCapability(index, unindexed, cap, value);
                     }
                 }
             }
+
+            for (Entry<String, VersionIndex> entry : m_versionIndices.entrySet())
+            {
+                Object value = cap.getAttributes().get(entry.getKey());
+                if (value != null)
+                {
+                    entry.getValue().remove(cap, value);
+                }
+            }
         }
     }
 
     private void deindexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
+        Map<Object, Set<BundleCapability>> index, Set<BundleCapability> unindexed,
+        BundleCapability cap, Object value)
     {
+        if (!(value instanceof String))
+        {
+            unindexed.remove(cap);
+            return;
+        }
         Set<BundleCapability> caps = index.get(value);
         if (caps != null)
         {
@@ -177,12 +241,139 @@ public void dump()
 
     public Set<BundleCapability> match(SimpleFilter sf, boolean obeyMandatory)
     {
-        Set<BundleCapability> matches = match(m_capSet, sf);
+        Set<BundleCapability> matches;
+
+        // Ask the planner for a reduced set of candidates from the indices;
+        // if the filter cannot be answered from any index, then fall back to
+        // evaluating it against all capabilities.
+        Set<BundleCapability> candidates = plan(sf);
+        if (candidates == null)
+        {
+            matches = match(m_capSet, sf);
+        }
+        else
+        {
+            // The planned candidates are a superset of the matching
+            // capabilities, so verify each one against the whole filter.
+            matches = new HashSet<BundleCapability>();
+            for (BundleCapability cap : candidates)
+            {
+                if (matchesInternal(cap, sf))
+                {
+                    matches.add(cap);
+                }
+            }
+        }
+
         return (obeyMandatory)
             ? matchMandatory(matches, sf)
             : matches;
     }
 
+    /**
+     * Calculates a superset of the capabilities matching the specified
+     * filter using only the available indices. For an AND filter the most
+     * selective indexed subfilter is chosen, preferring equality lookups over
+     * version range lookups, while an OR filter can only be planned if all
+     * of its subfilters can be planned.
+     * @param sf The filter to plan.
+     * @return A superset of the matching capabilities or <tt>null</tt> if
+     *         the filter cannot be answered from the indices.
+    **/
+    private Set<BundleCapability> plan(SimpleFilter sf)
+    {
+        if (sf.getOperation() == SimpleFilter.AND)
+        {
+            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+
+            // Equality lookups are cheap and typically the most selective,
+            // so look for the smallest one first.
+            Set<BundleCapability> best = null;
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                Set<BundleCapability> caps = planEquality(sfs.get(i));
+                if ((caps != null) && ((best == null) || (caps.size() < best.size())))
+                {
+                    best = caps;
+                    if (best.isEmpty())
+                    {
+                        return best;
+                    }
+                }
+            }
+
+            // Otherwise, consider all other subfilters, including ranges.
+            if (best == null)
+            {
+                for (int i = 0; i < sfs.size(); i++)
+                {
+                    Set<BundleCapability> caps = plan(sfs.get(i));
+                    if ((caps != null) && ((best == null) || (caps.size() < best.size())))
+                    {
+                        best = caps;
+                        if (best.isEmpty())
+                        {
+                            return best;
+                        }
+                    }
+                }
+            }
+            return best;
+        }
+        else if (sf.getOperation() == SimpleFilter.OR)
+        {
+            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+            Set<BundleCapability> union = new HashSet<BundleCapability>();
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                Set<BundleCapability> caps = plan(sfs.get(i));
+                if (caps == null)
+                {
+                    return null;
+                }
+                union.addAll(caps);
+            }
+            return union;
+        }
+
+        Set<BundleCapability> caps = planEquality(sf);
+        if ((caps == null) && (sf.getName() != null))
+        {
+            VersionIndex index = m_versionIndices.get(sf.getName());
+            if (index != null)
+            {
+                caps = index.lookup(sf);
+            }
+        }
+        return caps;
+    }
+
+    private Set<BundleCapability> planEquality(SimpleFilter sf)
+    {
+        if (sf.getOperation() == SimpleFilter.EQ)
+        {
+            Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
+            if (index != null)
+            {
+                Set<BundleCapability> caps = index.get(sf.getValue());
+                Set<BundleCapability> unindexed = m_unindexed.get(sf.getName());
+                if (unindexed.isEmpty())
+                {
+                    return (caps == null) ? Collections.EMPTY_SET : caps;
+                }
+                // Non-String values may still match after coercion, so
+                // they remain candidates to be verified by the caller.
+                Set<BundleCapability> result = new HashSet<BundleCapability>(unindexed);
+                if (caps != null)
+                {
+                    result.addAll(caps);
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
     private Set<BundleCapability> match(Set<BundleCapability> caps, SimpleFilter sf)
     {
         Set<BundleCapability> matches = new HashSet<BundleCapability>();
@@ -236,16 +427,23 @@ public void dump()
                     matches.addAll(existingCaps);
                     matches.retainAll(caps);
                 }
+                for (BundleCapability cap : m_unindexed.get(sf.getName()))
+                {
+                    if (caps.contains(cap) && compare(getAttribute(cap, sf), sf))
+                    {
+                        matches.add(cap);
+                    }
+                }
             }
             else
             {
                 for (Iterator<BundleCapability> it = caps.iterator(); it.hasNext(); )
                 {
                     BundleCapability cap = it.next();
-                    Object lhs = cap.getAttributes().get(sf.getName());
+                    Object lhs = getAttribute(cap, sf);
                     if (lhs != null)
                     {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
+                        if (compare(lhs, sf))
                         {
                             matches.add(cap);
                         }
@@ -306,16 +504,25 @@ public void dump()
         else
         {
             matched = false;
-            Object lhs = cap.getAttributes().get(sf.getName());
+            Object lhs = getAttribute(cap, sf);
             if (lhs != null)
             {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                matched = compare(lhs, sf);
             }
         }
 
         return matched;
     }
 
+    private static Object getAttribute(BundleCapability cap, SimpleFilter sf)
+    {
+        Map<String, Object> attrs = cap.getAttributes();
+        // Service properties are already normalized for matching.
+        return (attrs instanceof PropertySnapshot)
+            ? ((PropertySnapshot) attrs).getMatchValue(sf.getNormalizedName())
+            : attrs.get(sf.getName());
+    }
+
     private static Set<BundleCapability> matchMandatory(
         Set<BundleCapability> caps, SimpleFilter sf)
     {
@@ -333,6 +540,11 @@ public void dump()
     private static boolean matchMandatory(BundleCapability cap, SimpleFilter sf)
     {
         Map<String, Object> attrs = cap.getAttributes();
+        // Service properties cannot be mandatory.
+        if (attrs instanceof PropertySnapshot)
+        {
+            return true;
+        }
         for (Entry<String, Object> entry : attrs.entrySet())
         {
             if (((BundleCapabilityImpl) cap).isAttributeMandatory(entry.getKey())
@@ -368,12 +580,15 @@ public void dump()
 
     private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
 
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    private static boolean compare(Object lhs, SimpleFilter sf)
     {
         if (lhs == null)
         {
             return false;
         }
+
+        Object rhsUnknown = sf.getValue();
+        int op = sf.getOperation();
         
         // If this is a PRESENT operation, then just return true immediately
         // since we wouldn't be here if the attribute wasn't present.
@@ -401,7 +616,7 @@ public void dump()
             {
                 try
                 {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
+                    rhs = coerceType(lhs, sf);
                 }
                 catch (Exception ex)
                 {
@@ -453,7 +668,7 @@ public void dump()
             Object rhs;
             try
             {
-                rhs = coerceType(lhs, (String) rhsUnknown);
+                rhs = coerceType(lhs, sf);
             }
             catch (Exception ex)
             {
@@ -487,7 +702,7 @@ public void dump()
         {
             for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                if (compare(iter.next(), sf))
                 {
                     return true;
                 }
@@ -506,7 +721,7 @@ public void dump()
         // equality comparison.
         try
         {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
+            return lhs.equals(coerceType(lhs, sf));
         }
         catch (Exception ex)
         {
@@ -542,6 +757,17 @@ public void dump()
         return sb.toString();
     }
 
+    private static Object coerceType(Object lhs, SimpleFilter sf) throws Exception
+    {
+        Object rhs = sf.getCoercedValue(lhs.getClass());
+        if (rhs == null)
+        {
+            rhs = coerceType(lhs, (String) sf.getValue());
+            sf.setCoercedValue(rhs);
+        }
+        return rhs;
+    }
+
     private static Object coerceType(Object lhs, String rhsString) throws Exception
     {
         // If the LHS expects a string, then we can just return
@@ -562,6 +788,11 @@ public void dump()
             {
                 rhs = new Character(rhsString.charAt(0));
             }
+            // Versions are compared most often, so avoid reflection.
+            else if (lhs.getClass() == Version.class)
+            {
+                rhs = new Version(rhsString);
+            }
             else
             {
                 // Spec says we should trim number types.
@@ -604,4 +835,102 @@ public void dump()
         }
         return list;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sorted index of capabilities by a version-typed attribute. Capabilities
+     * whose attribute value is not a <tt>Version</tt> cannot be ordered, so
+     * they are tracked separately and always returned as candidates.
+    **/
+    private static class VersionIndex
+    {
+        private final SortedMap<Version, Set<BundleCapability>> m_sorted =
+            new TreeMap<Version, Set<BundleCapability>>();
+        private final Set<BundleCapability> m_unsorted = new HashSet<BundleCapability>();
+
+        void add(BundleCapability cap, Object value)
+        {
+            if (value instanceof Version)
+            {
+                Set<BundleCapability> caps = m_sorted.get((Version) value);
+                if (caps == null)
+                {
+                    caps = new HashSet<BundleCapability>();
+                    m_sorted.put((Version) value, caps);
+                }
+                caps.add(cap);
+            }
+            else
+            {
+                m_unsorted.add(cap);
+            }
+        }
+
+        void remove(BundleCapability cap, Object value)
+        {
+            if (value instanceof Version)
+            {
+                Set<BundleCapability> caps = m_sorted.get((Version) value);
+                if (caps != null)
+                {
+                    caps.remove(cap);
+                    if (caps.isEmpty())
+                    {
+                        m_sorted.remove((Version) value);
+                    }
+                }
+            }
+            else
+            {
+                m_unsorted.remove(cap);
+            }
+        }
+
+        Set<BundleCapability> lookup(SimpleFilter sf)
+        {
+            int op = sf.getOperation();
+            if ((op != SimpleFilter.EQ) && (op != SimpleFilter.GTE)
+                && (op != SimpleFilter.LTE))
+            {
+                return null;
+            }
+
+            // Coerce the value the same way compare() does, so the
+            // result is consistent with evaluating the filter directly.
+            Version v;
+            try
+            {
+                v = new Version((String) sf.getValue());
+            }
+            catch (Exception ex)
+            {
+                // No version-typed attribute can match an invalid version.
+                return new HashSet<BundleCapability>(m_unsorted);
+            }
+
+            Set<BundleCapability> caps = new HashSet<BundleCapability>(m_unsorted);
+            if (op == SimpleFilter.GTE)
+            {
+                for (Set<BundleCapability> s : m_sorted.tailMap(v).values())
+                {
+                    caps.addAll(s);
+                }
+            }
+            else
+            {
+                if (op == SimpleFilter.LTE)
+                {
+                    for (Set<BundleCapability> s : m_sorted.headMap(v).values())
+                    {
+                        caps.addAll(s);
+                    }
+                }
+                Set<BundleCapability> s = m_sorted.get(v);
+                if (s != null)
+                {
+                    caps.addAll(s);
+                }
+            }
+            return caps;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import org.apache.felix.framework.util.PropertySnapshot;
 import org.apache.felix.framework.util.VersionRange;
 
 public class SimpleFilter
@@ -38,12 +39,17 @@ public class SimpleFilter
     public static final int APPROX = 9;
 
     private final String m_name;
+    private final String m_normalizedName;
     private final Object m_value;
     private final int m_op;
+    // The value converted to the type of the attribute it was last compared
+    // to, since a filter is mostly compared to attributes of the same type.
+    private volatile Object m_coercedValue;
 
     public SimpleFilter(String attr, Object value, int op)
     {
         m_name = attr;
+        m_normalizedName = (attr == null) ? null : PropertySnapshot.normalize(attr);
         m_value = value;
         m_op = op;
     }
@@ -53,11 +59,27 @@ public class SimpleFilter
         return m_name;
     }
 
+    String getNormalizedName()
+    {
+        return m_normalizedName;
+    }
+
     public Object getValue()
     {
         return m_value;
     }
 
+    Object getCoercedValue(Class type)
+    {
+        Object value = m_coercedValue;
+        return ((value != null) && (value.getClass() == type)) ? value : null;
+    }
+
+    void setCoercedValue(Object value)
+    {
+        m_coercedValue = value;
+    }
+
     public int getOperation()
     {
         return m_op;
@@ -48,10 +48,10 @@ class Candidates
     public static final int ON_DEMAND = 2;
 
     private final Set<BundleRevision> m_mandatoryRevisions;
-    // Maps a capability to requirements that match it.
-    private final Map<BundleCapability, Set<BundleRequirement>> m_dependentMap;
-    // Maps a requirement to the capability it matches.
-    private final Map<BundleRequirement, List<BundleCapability>> m_candidateMap;
+    // Maps a capability to requirements that match it; shared with copies.
+    private final LayeredMap<BundleCapability, Set<BundleRequirement>> m_dependentMap;
+    // Maps a requirement to the capability it matches; shared with copies.
+    private final LayeredMap<BundleRequirement, List<BundleCapability>> m_candidateMap;
     // Maps a bundle revision to its associated wrapped revision; this only happens
     // when a revision being resolved has fragments to attach to it.
     private final Map<BundleRevision, WrappedRevision> m_allWrappedHosts;
@@ -70,8 +70,8 @@ class Candidates
     **/
     private Candidates(
         Set<BundleRevision> mandatoryRevisions,
-        Map<BundleCapability, Set<BundleRequirement>> dependentMap,
-        Map<BundleRequirement, List<BundleCapability>> candidateMap,
+        LayeredMap<BundleCapability, Set<BundleRequirement>> dependentMap,
+        LayeredMap<BundleRequirement, List<BundleCapability>> candidateMap,
         Map<BundleRevision, WrappedRevision> wrappedHosts, Map<BundleRevision, Object> populateResultCache,
         boolean fragmentsPresent)
     {
@@ -89,8 +89,8 @@ class Candidates
     public Candidates()
     {
         m_mandatoryRevisions = new HashSet<BundleRevision>();
-        m_dependentMap = new HashMap<BundleCapability, Set<BundleRequirement>>();
-        m_candidateMap = new HashMap<BundleRequirement, List<BundleCapability>>();
+        m_dependentMap = new LayeredMap<BundleCapability, Set<BundleRequirement>>();
+        m_candidateMap = new LayeredMap<BundleRequirement, List<BundleCapability>>();
         m_allWrappedHosts = new HashMap<BundleRevision, WrappedRevision>();
         m_populateResultCache = new HashMap<BundleRevision, Object>();
     }
@@ -593,6 +593,39 @@ class Candidates
         return m_candidateMap.get(req);
     }
 
+    /**
+     * Removes the first, i.e., highest priority, candidate of a given
+     * requirement. The candidate lists returned by getCandidates() may be
+     * shared with other permutations, so they must be changed this way.
+     * @param req the requirement whose first candidate should be removed.
+    **/
+    public void removeFirstCandidate(BundleRequirement req)
+    {
+        getCandidatesForUpdate(req).remove(0);
+    }
+
+    private List<BundleCapability> getCandidatesForUpdate(BundleRequirement req)
+    {
+        List<BundleCapability> candidates = m_candidateMap.get(req);
+        if ((candidates != null) && !m_candidateMap.isOwned(req))
+        {
+            candidates = new ArrayList<BundleCapability>(candidates);
+            m_candidateMap.put(req, candidates);
+        }
+        return candidates;
+    }
+
+    private Set<BundleRequirement> getDependentsForUpdate(BundleCapability cap)
+    {
+        Set<BundleRequirement> dependents = m_dependentMap.get(cap);
+        if ((dependents != null) && !m_dependentMap.isOwned(cap))
+        {
+            dependents = new HashSet<BundleRequirement>(dependents);
+            m_dependentMap.put(cap, dependents);
+        }
+        return dependents;
+    }
+
     /**
      * Merges fragments into their hosts. It does this by wrapping all host
      * modules and attaching their selected fragments, removing all unselected
@@ -671,8 +704,8 @@ class Candidates
                         // unselected for later removal.
                         else
                         {
-                            m_dependentMap.get(hostCap).remove(hostReq);
-                            List<BundleCapability> hosts = m_candidateMap.get(hostReq);
+                            getDependentsForUpdate(hostCap).remove(hostReq);
+                            List<BundleCapability> hosts = getCandidatesForUpdate(hostReq);
                             hosts.remove(hostCap);
                             if (hosts.isEmpty())
                             {
@@ -794,7 +827,7 @@ class Candidates
                     m_candidateMap.put(r, new ArrayList<BundleCapability>(cands));
                     for (BundleCapability cand : cands)
                     {
-                        Set<BundleRequirement> dependents = m_dependentMap.get(cand);
+                        Set<BundleRequirement> dependents = getDependentsForUpdate(cand);
                         dependents.remove(origReq);
                         dependents.add(r);
                     }
@@ -824,14 +857,15 @@ class Candidates
         Map<BundleCapability, Map<String, Map<Version, List<BundleRequirement>>>>
             hostFragments = new HashMap<BundleCapability,
                 Map<String, Map<Version, List<BundleRequirement>>>>();
-        for (Entry<BundleRequirement, List<BundleCapability>> entry : m_candidateMap.entrySet())
+        for (Entry<BundleRequirement, List<BundleCapability>> entry
+            : m_candidateMap.toMap().entrySet())
         {
             BundleRequirement req = entry.getKey();
             List<BundleCapability> caps = entry.getValue();
             for (BundleCapability cap : caps)
             {
                 // Record the requirement as dependent on the capability.
-                Set<BundleRequirement> dependents = m_dependentMap.get(cap);
+                Set<BundleRequirement> dependents = getDependentsForUpdate(cap);
                 if (dependents == null)
                 {
                     dependents = new HashSet<BundleRequirement>();
@@ -933,7 +967,7 @@ class Candidates
         {
             for (BundleCapability cap : candidates)
             {
-                Set<BundleRequirement> dependents = m_dependentMap.get(cap);
+                Set<BundleRequirement> dependents = getDependentsForUpdate(cap);
                 if (dependents != null)
                 {
                     dependents.remove(req);
@@ -959,7 +993,7 @@ class Candidates
         {
             for (BundleRequirement r : dependents)
             {
-                List<BundleCapability> candidates = m_candidateMap.get(r);
+                List<BundleCapability> candidates = getCandidatesForUpdate(r);
                 candidates.remove(c);
                 if (candidates.isEmpty())
                 {
@@ -984,26 +1018,10 @@ class Candidates
     **/
     public Candidates copy()
     {
-        Map<BundleCapability, Set<BundleRequirement>> dependentMap =
-            new HashMap<BundleCapability, Set<BundleRequirement>>();
-        for (Entry<BundleCapability, Set<BundleRequirement>> entry : m_dependentMap.entrySet())
-        {
-            Set<BundleRequirement> dependents = new HashSet<BundleRequirement>(entry.getValue());
-            dependentMap.put(entry.getKey(), dependents);
-        }
-
-        Map<BundleRequirement, List<BundleCapability>> candidateMap =
-            new HashMap<BundleRequirement, List<BundleCapability>>();
-        for (Entry<BundleRequirement, List<BundleCapability>> entry
-            : m_candidateMap.entrySet())
-        {
-            List<BundleCapability> candidates =
-                new ArrayList<BundleCapability>(entry.getValue());
-            candidateMap.put(entry.getKey(), candidates);
-        }
-
+        // The copy shares the current entries and only records its own
+        // changes, so copying does not depend on the size of the resolve.
         return new Candidates(
-            m_mandatoryRevisions, dependentMap, candidateMap,
+            m_mandatoryRevisions, m_dependentMap.copy(), m_candidateMap.copy(),
             m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent);
     }
 
@@ -1012,7 +1030,7 @@ class Candidates
         // Create set of all revisions from requirements.
         Set<BundleRevision> revisions = new HashSet<BundleRevision>();
         for (Entry<BundleRequirement, List<BundleCapability>> entry
-            : m_candidateMap.entrySet())
+            : m_candidateMap.toMap().entrySet())
         {
             revisions.add(entry.getKey().getRevision());
         }
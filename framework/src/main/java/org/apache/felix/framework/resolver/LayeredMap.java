@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.resolver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A map that can be copied in constant time. A copy shares the entries of
+ * the original as an immutable layer and only records the entries that are
+ * changed afterwards, so each candidate permutation only holds what differs
+ * from the permutation it was created from. Values may only be modified in
+ * place if they are owned by the map, see {@link #isOwned(Object)}.
+**/
+class LayeredMap<K, V>
+{
+    // Marks an entry removed from the map while still present in a layer.
+    private static final Object REMOVED = new Object();
+    // Number of layers after which a copy merges them into a single layer.
+    private static final int MAX_DEPTH = 16;
+
+    private Layer<K> m_layer;
+    private Map<K, Object> m_owned;
+    // Whether the owned entries are shared with a copy of the map.
+    private boolean m_isShared = false;
+
+    public LayeredMap()
+    {
+        this(null);
+    }
+
+    private LayeredMap(Layer<K> layer)
+    {
+        m_layer = layer;
+        m_owned = new HashMap<K, Object>();
+    }
+
+    public V get(K key)
+    {
+        Object value = m_owned.get(key);
+        for (Layer<K> layer = m_layer; (value == null) && (layer != null); layer = layer.m_parent)
+        {
+            value = layer.m_entries.get(key);
+        }
+        return (value == REMOVED) ? null : (V) value;
+    }
+
+    /**
+     * Returns whether the value of the specified key was put into this map
+     * since it was last copied and may therefore be modified in place.
+     * @param key the key whose value should be checked.
+     * @return <tt>true</tt> if the value is owned by this map.
+    **/
+    public boolean isOwned(K key)
+    {
+        if (m_isShared)
+        {
+            return false;
+        }
+        Object value = m_owned.get(key);
+        return (value != null) && (value != REMOVED);
+    }
+
+    public void put(K key, V value)
+    {
+        ensureOwned();
+        m_owned.put(key, value);
+    }
+
+    public V remove(K key)
+    {
+        ensureOwned();
+        V value = get(key);
+        if (m_layer == null)
+        {
+            m_owned.remove(key);
+        }
+        else if (value != null)
+        {
+            m_owned.put(key, REMOVED);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the entries of this map. The returned map must not be modified
+     * and may reflect later changes to this map.
+     * @return the entries of this map.
+    **/
+    public Map<K, V> toMap()
+    {
+        if (m_layer == null)
+        {
+            return (Map<K, V>) m_owned;
+        }
+        return (Map<K, V>) flatten();
+    }
+
+    public LayeredMap<K, V> copy()
+    {
+        Layer<K> layer = m_layer;
+        if (!m_owned.isEmpty())
+        {
+            layer = new Layer<K>(m_owned, m_layer);
+            m_isShared = true;
+        }
+        if ((layer != null) && (layer.m_depth > MAX_DEPTH))
+        {
+            layer = new Layer<K>(flatten(), null);
+        }
+        return new LayeredMap<K, V>(layer);
+    }
+
+    private void ensureOwned()
+    {
+        // Move the entries shared with a copy into a layer, so they
+        // are not changed underneath it.
+        if (m_isShared)
+        {
+            m_layer = new Layer<K>(m_owned, m_layer);
+            m_owned = new HashMap<K, Object>();
+            m_isShared = false;
+        }
+    }
+
+    private Map<K, Object> flatten()
+    {
+        Map<K, Object> result = new HashMap<K, Object>();
+        if (m_layer != null)
+        {
+            m_layer.flattenInto(result);
+        }
+        for (Entry<K, Object> entry : m_owned.entrySet())
+        {
+            if (entry.getValue() == REMOVED)
+            {
+                result.remove(entry.getKey());
+            }
+            else
+            {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static class Layer<K>
+    {
+        private final Map<K, Object> m_entries;
+        private final Layer<K> m_parent;
+        private final int m_depth;
+
+        Layer(Map<K, Object> entries, Layer<K> parent)
+        {
+            m_entries = entries;
+            m_parent = parent;
+            m_depth = (parent == null) ? 1 : parent.m_depth + 1;
+        }
+
+        void flattenInto(Map<K, Object> result)
+        {
+            if (m_parent != null)
+            {
+                m_parent.flattenInto(result);
+            }
+            for (Entry<K, Object> entry : m_entries.entrySet())
+            {
+                if (entry.getValue() == REMOVED)
+                {
+                    result.remove(entry.getKey());
+                }
+                else
+                {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+}
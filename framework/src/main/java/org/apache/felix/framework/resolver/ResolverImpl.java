@@ -29,6 +29,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.felix.framework.BundleWiringImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ResolveContextImpl;
@@ -53,10 +61,42 @@ public class ResolverImpl implements Resolver
     // Holds candidate permutations based on permutating requirement candidates.
     // These permutations represent backtracking on previous decisions.
     private final List<Candidates> m_importPermutations = new ArrayList<Candidates>();
+    // Number of permutations to check concurrently; zero disables sharing
+    // package spaces between permutations.
+    private final int m_parallelism;
+    // Whether this instance checks a permutation speculatively for another.
+    private final boolean m_isSpeculative;
+    // State shared by all permutations of the current resolve, if enabled.
+    private PermutationCache m_permutationCache;
+    // Threads for checking permutations concurrently, created on first use.
+    private ExecutorService m_executor;
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 0);
+    }
+
+    /**
+     * Creates a resolver that shares the package spaces of resolved revisions
+     * between candidate permutations and, if the parallelism is greater than
+     * one, checks that many candidate permutations concurrently.
+     * @param logger the logger.
+     * @param parallelism the number of permutations to check concurrently
+     *        or zero to use the default behavior.
+    **/
+    public ResolverImpl(Logger logger, int parallelism)
     {
         m_logger = logger;
+        m_parallelism = parallelism;
+        m_isSpeculative = false;
+    }
+
+    private ResolverImpl(ResolverImpl parent)
+    {
+        m_logger = parent.m_logger;
+        m_parallelism = 0;
+        m_isSpeculative = true;
+        m_permutationCache = parent.m_permutationCache;
     }
 
     public Map<BundleRevision, List<ResolverWire>> resolve(ResolveContext rc)
@@ -138,6 +178,11 @@ public class ResolverImpl implements Resolver
                 // Record the initial candidate permutation.
                 m_usesPermutations.add(allCandidates);
 
+                if (m_parallelism > 0)
+                {
+                    m_permutationCache = new PermutationCache();
+                }
+
                 ResolveException rethrow = null;
 
                 // If a populated revision is a fragment, then its host
@@ -155,52 +200,29 @@ public class ResolverImpl implements Resolver
                     }
                 }
 
-                do
+                if (m_parallelism > 1)
                 {
-                    rethrow = null;
-
-                    revisionPkgMap.clear();
-                    m_packageSourcesCache.clear();
-
-                    allCandidates = (m_usesPermutations.size() > 0)
-                        ? m_usesPermutations.remove(0)
-                        : m_importPermutations.remove(0);
-//allCandidates.dump();
-
-                    for (BundleRevision br : allRevisions)
+                    PermutationResult result =
+                        checkPermutationsInParallel(rc, allRevisions, hostReqs);
+                    allCandidates = result.m_candidates;
+                    revisionPkgMap = result.m_revisionPkgMap;
+                    rethrow = result.m_exception;
+                }
+                else
+                {
+                    do
                     {
-                        BundleRevision target = br;
-
-                        // If we are resolving a fragment, then get its
-                        // host candidate and verify it instead.
-                        List<BundleRequirement> hostReq = hostReqs.get(br);
-                        if (hostReq != null)
-                        {
-                            target = allCandidates.getCandidates(hostReq.get(0))
-                                .iterator().next().getRevision();
-                        }
-
-                        calculatePackageSpaces(
-                            allCandidates.getWrappedHost(target), allCandidates, revisionPkgMap,
-                            new HashMap(), new HashSet());
-//System.out.println("+++ PACKAGE SPACES START +++");
-//dumpRevisionPkgMap(revisionPkgMap);
-//System.out.println("+++ PACKAGE SPACES END +++");
+                        allCandidates = (m_usesPermutations.size() > 0)
+                            ? m_usesPermutations.remove(0)
+                            : m_importPermutations.remove(0);
+//allCandidates.dump();
 
-                        try
-                        {
-                            checkPackageSpaceConsistency(
-                                rc, false, allCandidates.getWrappedHost(target),
-                                allCandidates, revisionPkgMap, new HashMap());
-                        }
-                        catch (ResolveException ex)
-                        {
-                            rethrow = ex;
-                        }
+                        rethrow = checkPermutation(
+                            rc, allCandidates, allRevisions, hostReqs, revisionPkgMap);
                     }
+                    while ((rethrow != null)
+                        && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
                 }
-                while ((rethrow != null)
-                    && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
 
                 // If there is a resolve exception, then determine if an
                 // optionally resolved revision is to blame (typically a fragment).
@@ -261,6 +283,7 @@ public class ResolverImpl implements Resolver
                 // Always clear the state.
                 m_usesPermutations.clear();
                 m_importPermutations.clear();
+                m_permutationCache = null;
             }
         }
         while (retry);
@@ -268,6 +291,255 @@ public class ResolverImpl implements Resolver
         return wireMap;
     }
 
+    /**
+     * Calculates the package spaces of the specified revisions for a single
+     * candidate permutation and checks their consistency, adding any new
+     * permutations to try if the check fails.
+     * @return the last consistency failure or <tt>null</tt> if the package
+     *         spaces of all revisions are consistent.
+    **/
+    private ResolveException checkPermutation(
+        ResolveContext rc, Candidates allCandidates, Set<BundleRevision> allRevisions,
+        Map<BundleRevision, List<BundleRequirement>> hostReqs,
+        Map<BundleRevision, Packages> revisionPkgMap)
+    {
+        ResolveException rethrow = null;
+        boolean isComplete = true;
+        int usesCount = m_usesPermutations.size();
+        int importCount = m_importPermutations.size();
+
+        revisionPkgMap.clear();
+        m_packageSourcesCache.clear();
+
+        // Reuse package spaces that cannot differ between permutations,
+        // which are those of resolved revisions and those of unresolved
+        // revisions whose candidates are the same as in the permutation
+        // this one was derived from.
+        if (m_permutationCache != null)
+        {
+            revisionPkgMap.putAll(m_permutationCache.m_resolvedPkgs);
+            m_permutationCache.reuseParentPackages(allCandidates, revisionPkgMap);
+        }
+
+        for (BundleRevision br : allRevisions)
+        {
+            // Give up early if the speculative result is no longer needed.
+            if (m_isSpeculative && Thread.currentThread().isInterrupted())
+            {
+                isComplete = false;
+                break;
+            }
+
+            BundleRevision target = br;
+
+            // If we are resolving a fragment, then get its
+            // host candidate and verify it instead.
+            List<BundleRequirement> hostReq = hostReqs.get(br);
+            if (hostReq != null)
+            {
+                target = allCandidates.getCandidates(hostReq.get(0))
+                    .iterator().next().getRevision();
+            }
+
+            calculatePackageSpaces(
+                allCandidates.getWrappedHost(target), allCandidates, revisionPkgMap,
+                new HashMap(), new HashSet());
+//System.out.println("+++ PACKAGE SPACES START +++");
+//dumpRevisionPkgMap(revisionPkgMap);
+//System.out.println("+++ PACKAGE SPACES END +++");
+
+            try
+            {
+                checkPackageSpaceConsistency(
+                    rc, false, allCandidates.getWrappedHost(target),
+                    allCandidates, revisionPkgMap, new HashMap());
+            }
+            catch (ResolveException ex)
+            {
+                rethrow = ex;
+            }
+        }
+
+        // Remember the package spaces of this permutation for the
+        // permutations derived from it.
+        if ((m_permutationCache != null) && isComplete)
+        {
+            m_permutationCache.addParent(
+                allCandidates, revisionPkgMap,
+                m_usesPermutations.subList(usesCount, m_usesPermutations.size()),
+                m_importPermutations.subList(importCount, m_importPermutations.size()));
+        }
+
+        return rethrow;
+    }
+
+    /**
+     * Checks the pending candidate permutations concurrently until one of
+     * them is consistent or none are left. Permutations are checked
+     * speculatively in the order in which they would be checked one at a
+     * time, assuming the preceding ones fail without adding permutations
+     * that take precedence. Results are accepted in that order only while
+     * the assumption holds, so the outcome is the same as when checking the
+     * permutations one at a time.
+     * @return the result of the last permutation that was checked.
+    **/
+    private PermutationResult checkPermutationsInParallel(
+        ResolveContext rc, Set<BundleRevision> allRevisions,
+        Map<BundleRevision, List<BundleRequirement>> hostReqs)
+    {
+        ExecutorService executor = getExecutor();
+        PermutationResult result = null;
+        do
+        {
+            // Start checking the next permutations.
+            List<Candidates> usesPerms = new ArrayList<Candidates>(m_usesPermutations);
+            List<Candidates> importPerms = new ArrayList<Candidates>(m_importPermutations);
+            List<Future<PermutationResult>> futures =
+                new ArrayList<Future<PermutationResult>>();
+            while ((futures.size() < m_parallelism)
+                && (!usesPerms.isEmpty() || !importPerms.isEmpty()))
+            {
+                Candidates perm = (!usesPerms.isEmpty())
+                    ? usesPerms.remove(0)
+                    : importPerms.remove(0);
+                futures.add(executor.submit(new PermutationCheck(
+                    this, rc, perm, new ArrayList<Candidates>(importPerms),
+                    allRevisions, hostReqs)));
+            }
+
+            // Accept the results in order until one succeeds or
+            // a permutation was checked under a wrong assumption, then
+            // cancel the remaining checks. The threads are shared between
+            // resolves, so this must happen even if a check failed.
+            try
+            {
+                for (int i = 0; i < futures.size(); i++)
+                {
+                    PermutationResult next = getResult(futures.get(i));
+                    boolean isUses = !m_usesPermutations.isEmpty();
+                    Candidates expected = (isUses)
+                        ? m_usesPermutations.get(0)
+                        : m_importPermutations.get(0);
+                    List<Candidates> actualImports = (isUses)
+                        ? m_importPermutations
+                        : m_importPermutations.subList(1, m_importPermutations.size());
+                    if ((next.m_candidates != expected)
+                        || !next.m_importSnapshot.equals(actualImports))
+                    {
+                        break;
+                    }
+
+                    if (isUses)
+                    {
+                        m_usesPermutations.remove(0);
+                    }
+                    else
+                    {
+                        m_importPermutations.remove(0);
+                    }
+                    m_usesPermutations.addAll(next.m_usesPermutations);
+                    m_importPermutations.addAll(next.m_importPermutations);
+                    result = next;
+
+                    if (result.m_exception == null)
+                    {
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                cancel(futures);
+            }
+        }
+        while ((result.m_exception != null)
+            && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
+
+        return result;
+    }
+
+    /**
+     * Returns the threads for checking permutations concurrently, creating
+     * them if necessary. The threads are kept for subsequent resolves until
+     * the resolver is shut down.
+     * @return the executor for checking permutations.
+    **/
+    private synchronized ExecutorService getExecutor()
+    {
+        if (m_executor == null)
+        {
+            m_executor = Executors.newFixedThreadPool(
+                m_parallelism, new ThreadFactory() {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "FelixResolver");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return m_executor;
+    }
+
+    /**
+     * Stops the threads used for checking permutations concurrently, if
+     * any. They are recreated if the resolver is used again.
+    **/
+    public synchronized void shutdown()
+    {
+        if (m_executor != null)
+        {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+    }
+
+    private static PermutationResult getResult(Future<PermutationResult> future)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return future.get();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException ex)
+                {
+                    if (ex.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    else if (ex.getCause() instanceof Error)
+                    {
+                        throw (Error) ex.getCause();
+                    }
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void cancel(List<Future<PermutationResult>> futures)
+    {
+        for (Future<PermutationResult> future : futures)
+        {
+            future.cancel(true);
+        }
+    }
+
     public Map<BundleRevision, List<ResolverWire>> resolve(
         ResolveContext rc, BundleRevision revision, String pkgName)
     {
@@ -631,6 +903,15 @@ public class ResolverImpl implements Resolver
                 usesCycleMap, cycle);
         }
 
+        // The package space of a resolved revision only depends on its
+        // wires, so it is the same for all permutations and can be shared.
+        if ((m_permutationCache != null)
+            && (revision.getWiring() != null) && !isDynamicImporting)
+        {
+            revisionPkgs.m_isCalculated = true;
+            m_permutationCache.m_resolvedPkgs.putIfAbsent(revision, revisionPkgs);
+        }
+
         // Fourth, if the target revision is unresolved or is dynamically importing,
         // then add all the uses constraints implied by its imported and required
         // packages to its package space.
@@ -1053,7 +1334,7 @@ public class ResolverImpl implements Resolver
                         {
                             mutated.add(req);
                             // Remove the conflicting candidate.
-                            candidates.remove(0);
+                            permutation.removeFirstCandidate(req);
                             // Continue with the next uses constraint.
                             break;
                         }
@@ -1140,7 +1421,7 @@ public class ResolverImpl implements Resolver
                             {
                                 mutated.add(req);
                                 // Remove the conflicting candidate.
-                                candidates.remove(0);
+                                permutation.removeFirstCandidate(req);
                                 // Continue with the next uses constraint.
                                 break;
                             }
@@ -1229,8 +1510,7 @@ public class ResolverImpl implements Resolver
         if (candidates.size() > 1)
         {
             Candidates perm = allCandidates.copy();
-            candidates = perm.getCandidates(req);
-            candidates.remove(0);
+            perm.removeFirstCandidate(req);
             permutations.add(perm);
         }
     }
@@ -1366,11 +1646,24 @@ public class ResolverImpl implements Resolver
         if (cap.getNamespace().equals(BundleRevision.PACKAGE_NAMESPACE))
         {
             List<BundleCapability> sources = m_packageSourcesCache.get(cap);
+            if ((sources == null) && (m_permutationCache != null))
+            {
+                sources = m_permutationCache.m_packageSources.get(cap);
+            }
             if (sources == null)
             {
+                Set<BundleCapability> visited = new HashSet<BundleCapability>();
                 sources = getPackageSourcesInternal(
-                    cap, revisionPkgMap, new ArrayList(), new HashSet());
+                    cap, revisionPkgMap, new ArrayList(), visited);
                 m_packageSourcesCache.put(cap, sources);
+
+                // Sources only found in shared package spaces are the same
+                // for all permutations.
+                if ((m_permutationCache != null)
+                    && m_permutationCache.isShared(visited, revisionPkgMap))
+                {
+                    m_permutationCache.m_packageSources.putIfAbsent(cap, sources);
+                }
             }
             return sources;
         }
@@ -1767,6 +2060,244 @@ public class ResolverImpl implements Resolver
         return cap;
     }
 
+    /**
+     * Package spaces of resolved revisions and package sources that are
+     * the same for all candidate permutations of a resolve operation, as
+     * well as the package spaces of checked permutations that may be
+     * reused by the permutations derived from them.
+    **/
+    private static class PermutationCache
+    {
+        public final ConcurrentMap<BundleRevision, Packages> m_resolvedPkgs =
+            new ConcurrentHashMap<BundleRevision, Packages>();
+        public final ConcurrentMap<BundleCapability, List<BundleCapability>> m_packageSources =
+            new ConcurrentHashMap<BundleCapability, List<BundleCapability>>();
+        // Candidates does not override equals(), so permutations are
+        // looked up by identity.
+        private final ConcurrentMap<Candidates, ParentPermutation> m_parents =
+            new ConcurrentHashMap<Candidates, ParentPermutation>();
+
+        /**
+         * Records the package spaces of unresolved revisions of a checked
+         * permutation for the permutations derived from it. The package
+         * spaces are complete and no longer modified, so they are marked
+         * as calculated to keep them from being modified when reused.
+        **/
+        public void addParent(
+            Candidates allCandidates, Map<BundleRevision, Packages> revisionPkgMap,
+            List<Candidates> usesPermutations, List<Candidates> importPermutations)
+        {
+            if (usesPermutations.isEmpty() && importPermutations.isEmpty())
+            {
+                return;
+            }
+
+            Map<BundleRevision, Packages> unresolvedPkgs =
+                new HashMap<BundleRevision, Packages>();
+            for (Entry<BundleRevision, Packages> entry : revisionPkgMap.entrySet())
+            {
+                if (entry.getKey().getWiring() == null)
+                {
+                    if (!entry.getValue().m_isCalculated)
+                    {
+                        entry.getValue().m_isCalculated = true;
+                    }
+                    unresolvedPkgs.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            ParentPermutation parent = new ParentPermutation(allCandidates, unresolvedPkgs);
+            for (Candidates perm : usesPermutations)
+            {
+                m_parents.put(perm, parent);
+            }
+            for (Candidates perm : importPermutations)
+            {
+                m_parents.put(perm, parent);
+            }
+        }
+
+        /**
+         * Adds the package spaces of the permutation the specified one was
+         * derived from for all unresolved revisions whose candidates are the
+         * same in both permutations, as are the candidates of all of the
+         * unresolved revisions providing to them, directly or indirectly.
+         * Since the package space of a revision only depends on these
+         * candidates, it is the same in both permutations.
+        **/
+        public void reuseParentPackages(
+            Candidates allCandidates, Map<BundleRevision, Packages> revisionPkgMap)
+        {
+            ParentPermutation parent = m_parents.remove(allCandidates);
+            if (parent == null)
+            {
+                return;
+            }
+
+            // Find the revisions whose own candidates are unchanged.
+            Map<BundleRevision, Set<BundleRevision>> providers =
+                new HashMap<BundleRevision, Set<BundleRevision>>();
+            for (BundleRevision br : parent.m_revisionPkgMap.keySet())
+            {
+                Set<BundleRevision> brProviders = new HashSet<BundleRevision>();
+                if (hasSameCandidates(br, allCandidates, parent.m_candidates, brProviders))
+                {
+                    providers.put(br, brProviders);
+                }
+            }
+
+            // Remove the revisions with an unresolved provider whose
+            // candidates changed until only unchanged ones are left.
+            boolean removed;
+            do
+            {
+                removed = false;
+                for (Iterator<Set<BundleRevision>> it = providers.values().iterator();
+                    it.hasNext(); )
+                {
+                    for (BundleRevision provider : it.next())
+                    {
+                        if ((provider.getWiring() == null)
+                            && !providers.containsKey(provider))
+                        {
+                            it.remove();
+                            removed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            while (removed);
+
+            for (BundleRevision br : providers.keySet())
+            {
+                revisionPkgMap.put(br, parent.m_revisionPkgMap.get(br));
+            }
+        }
+
+        private static boolean hasSameCandidates(
+            BundleRevision br, Candidates allCandidates, Candidates parentCandidates,
+            Set<BundleRevision> providers)
+        {
+            for (BundleRequirement req : br.getDeclaredRequirements(null))
+            {
+                BundleCapability cap = getFirstCandidate(allCandidates, req);
+                if (cap != getFirstCandidate(parentCandidates, req))
+                {
+                    return false;
+                }
+                if (cap != null)
+                {
+                    providers.add(cap.getRevision());
+                }
+            }
+            return true;
+        }
+
+        private static BundleCapability getFirstCandidate(
+            Candidates allCandidates, BundleRequirement req)
+        {
+            List<BundleCapability> cands = allCandidates.getCandidates(req);
+            return ((cands == null) || cands.isEmpty()) ? null : cands.get(0);
+        }
+
+        public boolean isShared(
+            Set<BundleCapability> caps, Map<BundleRevision, Packages> revisionPkgMap)
+        {
+            for (BundleCapability cap : caps)
+            {
+                Packages pkgs = m_resolvedPkgs.get(cap.getRevision());
+                if ((pkgs == null) || (pkgs != revisionPkgMap.get(cap.getRevision())))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The package spaces of the unresolved revisions of a checked permutation.
+    **/
+    private static class ParentPermutation
+    {
+        public final Candidates m_candidates;
+        public final Map<BundleRevision, Packages> m_revisionPkgMap;
+
+        public ParentPermutation(
+            Candidates candidates, Map<BundleRevision, Packages> revisionPkgMap)
+        {
+            m_candidates = candidates;
+            m_revisionPkgMap = revisionPkgMap;
+        }
+    }
+
+    /**
+     * Checks a single candidate permutation on behalf of another resolver.
+    **/
+    private static class PermutationCheck implements Callable<PermutationResult>
+    {
+        private final ResolverImpl m_parent;
+        private final ResolveContext m_rc;
+        private final Candidates m_candidates;
+        private final List<Candidates> m_importSnapshot;
+        private final Set<BundleRevision> m_allRevisions;
+        private final Map<BundleRevision, List<BundleRequirement>> m_hostReqs;
+
+        public PermutationCheck(
+            ResolverImpl parent, ResolveContext rc, Candidates candidates,
+            List<Candidates> importSnapshot, Set<BundleRevision> allRevisions,
+            Map<BundleRevision, List<BundleRequirement>> hostReqs)
+        {
+            m_parent = parent;
+            m_rc = rc;
+            m_candidates = candidates;
+            m_importSnapshot = importSnapshot;
+            m_allRevisions = allRevisions;
+            m_hostReqs = hostReqs;
+        }
+
+        public PermutationResult call()
+        {
+            // The resolver checking the permutation starts with the import
+            // permutations the parent would have at this point, since new
+            // import permutations are only added if not already present.
+            ResolverImpl resolver = new ResolverImpl(m_parent);
+            resolver.m_importPermutations.addAll(m_importSnapshot);
+            Map<BundleRevision, Packages> revisionPkgMap = new HashMap<BundleRevision, Packages>();
+            ResolveException ex = resolver.checkPermutation(
+                m_rc, m_candidates, m_allRevisions, m_hostReqs, revisionPkgMap);
+            return new PermutationResult(
+                m_candidates, m_importSnapshot, revisionPkgMap, ex,
+                resolver.m_usesPermutations,
+                resolver.m_importPermutations.subList(
+                    m_importSnapshot.size(), resolver.m_importPermutations.size()));
+        }
+    }
+
+    private static class PermutationResult
+    {
+        public final Candidates m_candidates;
+        public final List<Candidates> m_importSnapshot;
+        public final Map<BundleRevision, Packages> m_revisionPkgMap;
+        public final ResolveException m_exception;
+        public final List<Candidates> m_usesPermutations;
+        public final List<Candidates> m_importPermutations;
+
+        public PermutationResult(
+            Candidates candidates, List<Candidates> importSnapshot,
+            Map<BundleRevision, Packages> revisionPkgMap, ResolveException exception,
+            List<Candidates> usesPermutations, List<Candidates> importPermutations)
+        {
+            m_candidates = candidates;
+            m_importSnapshot = importSnapshot;
+            m_revisionPkgMap = revisionPkgMap;
+            m_exception = exception;
+            m_usesPermutations = usesPermutations;
+            m_importPermutations = importPermutations;
+        }
+    }
+
     private static class Packages
     {
         private final BundleRevision m_revision;
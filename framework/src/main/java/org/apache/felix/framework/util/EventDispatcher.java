@@ -31,15 +31,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
@@ -64,6 +71,13 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Service listeners indexed by the object classes their filters
+    // require, so events only need to be checked against listeners that
+    // could possibly match; listeners whose filters do not require specific
+    // object classes are kept separately.
+    private Map<String, List<ListenerInfo>>
+        m_svcListenerIndex = Collections.EMPTY_MAP;
+    private List<ListenerInfo> m_unindexedSvcListeners = Collections.EMPTY_LIST;
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -74,18 +88,75 @@ public class EventDispatcher
     // List of requests.
     private static final List<Request> m_requestList = new ArrayList<Request>();
     // Pooled requests to avoid memory allocation.
-    private static final List<Request> m_requestPool = new ArrayList<Request>();
+    private static final Queue<Request> m_requestPool = new ConcurrentLinkedQueue<Request>();
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // Number of worker threads for parallel asynchronous dispatching; if
+    // zero, the single shared dispatch thread is used instead.
+    private final int m_workerCount;
+    // Worker queues for parallel asynchronous dispatching; each bundle's
+    // listeners are always served by the same worker to preserve ordering.
+    private volatile DispatchQueue[] m_workers = null;
+    // Number of asynchronous requests queued but not yet delivered.
+    private final AtomicInteger m_queueDepth = new AtomicInteger();
+    // Highest observed number of queued asynchronous requests.
+    private final AtomicInteger m_maxQueueDepth = new AtomicInteger();
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, 0);
+    }
+
+    public EventDispatcher(Logger logger, ServiceRegistry registry, int workerCount)
     {
         m_logger = logger;
         m_registry = registry;
+        m_workerCount = Math.max(0, workerCount);
+    }
+
+    /**
+     * Returns the number of asynchronous event requests of this dispatcher
+     * that are queued but not yet delivered.
+     * @return The current queue depth.
+    **/
+    public int getQueueDepth()
+    {
+        return m_queueDepth.get();
+    }
+
+    /**
+     * Returns the highest number of asynchronous event requests of this
+     * dispatcher that were queued at the same time.
+     * @return The maximum queue depth.
+    **/
+    public int getMaxQueueDepth()
+    {
+        return m_maxQueueDepth.get();
     }
 
     public void startDispatching()
     {
+        // If we dispatch in parallel, then start our own worker threads
+        // instead of using the shared dispatch thread.
+        if (m_workerCount > 0)
+        {
+            synchronized (this)
+            {
+                if (m_workers == null)
+                {
+                    DispatchQueue[] workers = new DispatchQueue[m_workerCount];
+                    for (int i = 0; i < workers.length; i++)
+                    {
+                        workers[i] = new DispatchQueue("FelixDispatchQueue-" + i);
+                        workers[i].start();
+                    }
+                    m_workers = workers;
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Start event dispatching thread if necessary.
@@ -124,6 +195,32 @@ public class EventDispatcher
 
     public void stopDispatching()
     {
+        if (m_workerCount > 0)
+        {
+            DispatchQueue[] workers;
+            synchronized (this)
+            {
+                workers = m_workers;
+                m_workers = null;
+            }
+            // Let the workers deliver their pending requests and exit.
+            for (int i = 0; (workers != null) && (i < workers.length); i++)
+            {
+                workers[i].shutdown();
+            }
+            for (int i = 0; (workers != null) && (i < workers.length); i++)
+            {
+                try
+                {
+                    workers[i].join();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -258,6 +355,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                indexServiceListener(info);
             }
         }
         return null;
@@ -325,6 +423,7 @@ public class EventDispatcher
                         if (ServiceListener.class == clazz)
                         {
                             returnInfo = new ListenerInfo(infos.get(i), true);
+                            deindexServiceListener(info);
                         }
                         idx = i;
                         break;
@@ -384,6 +483,11 @@ public class EventDispatcher
             m_syncBndlListeners = removeListenerInfos(m_syncBndlListeners, bc);
 
             // Remove all service listeners associated with the specified bundle.
+            List<ListenerInfo> infos = m_svcListeners.get(bc);
+            for (int i = 0; (infos != null) && (i < infos.size()); i++)
+            {
+                deindexServiceListener(infos.get(i));
+            }
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
         }
     }
@@ -425,6 +529,8 @@ public class EventDispatcher
                             info.getSecurityContext(),
                             info.isRemoved());
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+                        deindexServiceListener(info);
+                        indexServiceListener(newInfo);
                         return oldFilter;
                     }
                 }
@@ -531,9 +637,20 @@ public class EventDispatcher
     {
         // Take a snapshot of the listener array.
         Map<BundleContext, List<ListenerInfo>> listeners = null;
+        Map<String, List<ListenerInfo>> index = null;
+        List<ListenerInfo> unindexed = null;
         synchronized (this)
         {
             listeners = m_svcListeners;
+            index = m_svcListenerIndex;
+            unindexed = m_unindexedSvcListeners;
+        }
+
+        // Only consider listeners whose filters can match the service.
+        if (!index.isEmpty())
+        {
+            listeners = getCandidateServiceListeners(
+                event.getServiceReference(), index, unindexed);
         }
 
         // Use service registry hooks to filter target listeners.
@@ -544,6 +661,176 @@ public class EventDispatcher
             this, Request.SERVICE_EVENT, listeners, event, oldProps);
     }
 
+    private static Map<BundleContext, List<ListenerInfo>> getCandidateServiceListeners(
+        ServiceReference ref, Map<String, List<ListenerInfo>> index,
+        List<ListenerInfo> unindexed)
+    {
+        Map<BundleContext, List<ListenerInfo>> candidates =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        for (int i = 0; i < unindexed.size(); i++)
+        {
+            addCandidate(candidates, unindexed.get(i));
+        }
+
+        // A listener may be indexed under several object classes, so
+        // avoid adding it twice if the service has more than one.
+        String[] classes = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+        Set<ListenerInfo> added = ((classes != null) && (classes.length > 1))
+            ? new HashSet<ListenerInfo>() : null;
+        for (int i = 0; (classes != null) && (i < classes.length); i++)
+        {
+            List<ListenerInfo> infos = index.get(classes[i]);
+            for (int j = 0; (infos != null) && (j < infos.size()); j++)
+            {
+                if ((added == null) || added.add(infos.get(j)))
+                {
+                    addCandidate(candidates, infos.get(j));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static void addCandidate(
+        Map<BundleContext, List<ListenerInfo>> candidates, ListenerInfo info)
+    {
+        List<ListenerInfo> infos = candidates.get(info.getBundleContext());
+        if (infos == null)
+        {
+            infos = new ArrayList<ListenerInfo>();
+            candidates.put(info.getBundleContext(), infos);
+        }
+        infos.add(info);
+    }
+
+    // Caller must hold the dispatcher lock.
+    private void indexServiceListener(ListenerInfo info)
+    {
+        Set<String> classes = getObjectClasses(info.getParsedFilter());
+        if (classes == null)
+        {
+            List<ListenerInfo> infos =
+                new ArrayList<ListenerInfo>(m_unindexedSvcListeners);
+            infos.add(info);
+            m_unindexedSvcListeners = infos;
+        }
+        else
+        {
+            Map<String, List<ListenerInfo>> index =
+                new HashMap<String, List<ListenerInfo>>(m_svcListenerIndex);
+            for (String className : classes)
+            {
+                List<ListenerInfo> infos = index.get(className);
+                infos = (infos == null)
+                    ? new ArrayList<ListenerInfo>(1)
+                    : new ArrayList<ListenerInfo>(infos);
+                infos.add(info);
+                index.put(className, infos);
+            }
+            m_svcListenerIndex = index;
+        }
+    }
+
+    // Caller must hold the dispatcher lock.
+    private void deindexServiceListener(ListenerInfo info)
+    {
+        Set<String> classes = getObjectClasses(info.getParsedFilter());
+        if (classes == null)
+        {
+            List<ListenerInfo> infos =
+                new ArrayList<ListenerInfo>(m_unindexedSvcListeners);
+            infos.remove(info);
+            m_unindexedSvcListeners = infos;
+        }
+        else
+        {
+            Map<String, List<ListenerInfo>> index =
+                new HashMap<String, List<ListenerInfo>>(m_svcListenerIndex);
+            for (String className : classes)
+            {
+                List<ListenerInfo> infos = index.get(className);
+                if (infos != null)
+                {
+                    infos = new ArrayList<ListenerInfo>(infos);
+                    infos.remove(info);
+                    if (infos.isEmpty())
+                    {
+                        index.remove(className);
+                    }
+                    else
+                    {
+                        index.put(className, infos);
+                    }
+                }
+            }
+            m_svcListenerIndex = index;
+        }
+    }
+
+    /**
+     * Determines the object classes of which a service must have at least
+     * one to match the specified filter.
+     * @param filter The listener filter.
+     * @return The set of object class names or <tt>null</tt> if the filter
+     *         does not restrict the object classes.
+    **/
+    private static Set<String> getObjectClasses(Filter filter)
+    {
+        if (filter == null)
+        {
+            return null;
+        }
+        try
+        {
+            return getObjectClasses(SimpleFilter.parse(filter.toString()));
+        }
+        catch (Exception ex)
+        {
+            // If the filter cannot be parsed, then don't index it.
+            return null;
+        }
+    }
+
+    private static Set<String> getObjectClasses(SimpleFilter sf)
+    {
+        if ((sf.getOperation() == SimpleFilter.EQ)
+            && sf.getName().equalsIgnoreCase(Constants.OBJECTCLASS))
+        {
+            return Collections.singleton((String) sf.getValue());
+        }
+        else if (sf.getOperation() == SimpleFilter.AND)
+        {
+            // Any subfilter restricting the object classes restricts the
+            // whole filter.
+            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                Set<String> classes = getObjectClasses(sfs.get(i));
+                if (classes != null)
+                {
+                    return classes;
+                }
+            }
+        }
+        else if (sf.getOperation() == SimpleFilter.OR)
+        {
+            // All subfilters must restrict the object classes.
+            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+            Set<String> classes = new HashSet<String>();
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                Set<String> subClasses = getObjectClasses(sfs.get(i));
+                if (subClasses == null)
+                {
+                    return null;
+                }
+                classes.addAll(subClasses);
+            }
+            return classes;
+        }
+        return null;
+    }
+
 // TODO: OSGi R4.3 - This is ugly and inefficient.
     private Map<BundleContext, List<ListenerInfo>> filterListenersUsingHooks(
         ServiceEvent event, Framework felix, Map<BundleContext, List<ListenerInfo>> listeners)
@@ -724,6 +1011,12 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        if (dispatcher.m_workerCount > 0)
+        {
+            dispatcher.fireEventInParallel(type, listeners, event);
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -732,18 +1025,76 @@ public class EventDispatcher
         }
 
         // First get a request from the pool or create one if necessary.
-        Request req = null;
-        synchronized (m_requestPool)
+        Request req = createRequest(dispatcher, type, listeners, event);
+
+        // Lock the request list.
+        synchronized (m_requestList)
+        {
+            // Add our request to the list.
+            m_requestList.add(req);
+            // Notify the dispatch thread that there is work to do.
+            m_requestList.notify();
+        }
+    }
+
+    private void fireEventInParallel(
+        int type, Map<BundleContext, List<ListenerInfo>> listeners, EventObject event)
+    {
+        if (listeners.isEmpty())
+        {
+            return;
+        }
+
+        // Partition the listeners by the worker responsible for their bundle.
+        // Since every bundle is always served by the same worker, listeners
+        // receive events in the order in which they were queued.
+        synchronized (this)
         {
-            if (m_requestPool.size() > 0)
+            // If dispatching is stopped, then ignore dispatch request.
+            DispatchQueue[] workers = m_workers;
+            if (workers == null)
             {
-                req = m_requestPool.remove(0);
+                return;
             }
-            else
+
+            Map<BundleContext, List<ListenerInfo>>[] partitions = new Map[workers.length];
+            for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
             {
-                req = new Request();
+                if (entry.getValue().isEmpty())
+                {
+                    continue;
+                }
+                int idx = (int) (entry.getValue().get(0).getBundle().getBundleId()
+                    % workers.length);
+                if (partitions[idx] == null)
+                {
+                    partitions[idx] = new HashMap<BundleContext, List<ListenerInfo>>();
+                }
+                partitions[idx].put(entry.getKey(), entry.getValue());
+            }
+
+            // Queueing is done while holding the lock, so all workers see
+            // events in the same order.
+            for (int i = 0; i < partitions.length; i++)
+            {
+                if (partitions[i] != null)
+                {
+                    workers[i].add(createRequest(this, type, partitions[i], event));
+                }
             }
         }
+    }
+
+    private static Request createRequest(
+        EventDispatcher dispatcher, int type,
+        Map<BundleContext, List<ListenerInfo>> listeners, EventObject event)
+    {
+        // Get a request from the pool or create one if necessary.
+        Request req = m_requestPool.poll();
+        if (req == null)
+        {
+            req = new Request();
+        }
 
         // Initialize dispatch request.
         req.m_dispatcher = dispatcher;
@@ -751,14 +1102,35 @@ public class EventDispatcher
         req.m_listeners = listeners;
         req.m_event = event;
 
-        // Lock the request list.
-        synchronized (m_requestList)
+        // Keep track of the queue depth.
+        int depth = dispatcher.m_queueDepth.incrementAndGet();
+        for (int max = dispatcher.m_maxQueueDepth.get();
+            (depth > max) && !dispatcher.m_maxQueueDepth.compareAndSet(max, depth);
+            max = dispatcher.m_maxQueueDepth.get())
         {
-            // Add our request to the list.
-            m_requestList.add(req);
-            // Notify the dispatch thread that there is work to do.
-            m_requestList.notify();
+            // Retry until the maximum is updated or no longer exceeded.
         }
+
+        return req;
+    }
+
+    private static void deliverRequest(Request req)
+    {
+        // NOTE: We don't catch any exceptions here, because
+        // the invoked method shields us from exceptions by
+        // catching Throwables when it invokes callbacks.
+        fireEventImmediately(
+            req.m_dispatcher, req.m_type, req.m_listeners,
+            req.m_event, null);
+
+        req.m_dispatcher.m_queueDepth.decrementAndGet();
+
+        // Put dispatch request in cache.
+        req.m_dispatcher = null;
+        req.m_type = -1;
+        req.m_listeners = null;
+        req.m_event = null;
+        m_requestPool.offer(req);
     }
 
     private static void fireEventImmediately(
@@ -1082,21 +1454,71 @@ public class EventDispatcher
             // Deliver event outside of synchronized block
             // so that we don't block other requests from being
             // queued during event processing.
-            // NOTE: We don't catch any exceptions here, because
-            // the invoked method shields us from exceptions by
-            // catching Throwables when it invokes callbacks.
-            fireEventImmediately(
-                req.m_dispatcher, req.m_type, req.m_listeners,
-                req.m_event, null);
-
-            // Put dispatch request in cache.
-            synchronized (m_requestPool)
+            deliverRequest(req);
+        }
+    }
+
+    /**
+     * A worker thread with its own request queue used for parallel
+     * asynchronous dispatching.
+     * <p>
+     * The queue is intentionally unbounded, just like the request list of
+     * the shared dispatch thread. Asynchronous events must be delivered,
+     * so a full queue could neither drop nor reject requests, and it could
+     * not block the producer either: events are fired while holding bundle
+     * and framework locks, and also from the workers themselves when a
+     * listener causes another event, so waiting for a worker to make room
+     * may wait on a listener that needs one of those locks. Memory is still
+     * bounded in practice because producers are the framework's own state
+     * changes; <tt>getQueueDepth()</tt> and <tt>getMaxQueueDepth()</tt>
+     * report how far a dispatch storm has grown, and the framework provides
+     * them as the <tt>felix:eventqueue</tt> shell command if the
+     * <tt>felix.event.dispatch.metrics</tt> property is enabled.
+    **/
+    private static class DispatchQueue extends Thread
+    {
+        // Marker request used to tell the worker to exit.
+        private static final Request STOP = new Request();
+
+        // Unbounded on purpose, see above.
+        private final BlockingQueue<Request> m_queue = new LinkedBlockingQueue<Request>();
+
+        DispatchQueue(String name)
+        {
+            super(name);
+        }
+
+        void add(Request req)
+        {
+            m_queue.add(req);
+        }
+
+        void shutdown()
+        {
+            m_queue.add(STOP);
+        }
+
+        public void run()
+        {
+            while (true)
             {
-                req.m_dispatcher = null;
-                req.m_type = -1;
-                req.m_listeners = null;
-                req.m_event = null;
-                m_requestPool.add(req);
+                Request req;
+                try
+                {
+                    req = m_queue.take();
+                }
+                catch (InterruptedException ex)
+                {
+                    // Not much we can do here except for keep waiting.
+                    continue;
+                }
+
+                if (req == STOP)
+                {
+                    return;
+                }
+
+                deliverRequest(req);
             }
         }
     }
@@ -51,6 +51,15 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
     String USE_LOCALURLS_PROP = "felix.jarurls";
+    String SERVICE_REGISTRY_CONCURRENT_PROP = "felix.service.registry.concurrent";
+    String EVENT_DISPATCH_THREADS_PROP = "felix.event.dispatch.threads";
+    String EVENT_DISPATCH_METRICS_PROP = "felix.event.dispatch.metrics";
+    String STARTLEVEL_PARALLEL_THREADS_PROP = "felix.startlevel.parallel.threads";
+    String RESOLVER_CACHE_PROP = "felix.resolver.cache";
+    String RESOLVER_PARALLELISM_PROP = "felix.resolver.parallelism";
+    String REFRESH_COALESCE_WINDOW_PROP = "felix.refresh.coalesce.window";
+    String REFRESH_PARALLEL_THREADS_PROP = "felix.refresh.parallel.threads";
+    String CLASSLOADING_METRICS_PROP = "felix.classloading.metrics";
 
     // Missing OSGi constant for resolution directive.
     String RESOLUTION_DYNAMIC = "dynamic";
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Framework-wide table of canonical instances for immutable values that
+ * repeat across bundle metadata, such as package names, attribute names,
+ * and versions. Values are only weakly held, so they can be collected once
+ * no bundle revision refers to them anymore.
+**/
+public class Interner
+{
+    private static final Map<Object, WeakReference<Object>> m_values =
+        new WeakHashMap<Object, WeakReference<Object>>();
+
+    /**
+     * Returns the canonical instance of the specified value; values must be
+     * immutable and implement <tt>equals()</tt> and <tt>hashCode()</tt>.
+     * @param value the value to intern, may be <tt>null</tt>.
+     * @return the canonical instance equal to the value.
+    **/
+    public static <T> T intern(T value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        synchronized (m_values)
+        {
+            WeakReference<Object> ref = m_values.get(value);
+            Object canonical = (ref == null) ? null : ref.get();
+            if (canonical == null)
+            {
+                m_values.put(value, new WeakReference<Object>(value));
+                canonical = value;
+            }
+            return (T) canonical;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, case-insensitive snapshot of a property map, such as the
+ * properties of a service registration. Keys are normalized once when the
+ * snapshot is created, so lookups by a name that is already normalized
+ * (see {@link #normalize(String)}) need neither case folding nor
+ * allocation. For filter matching, the snapshot also keeps array values
+ * converted to lists.
+**/
+public class PropertySnapshot extends AbstractMap<String, Object>
+{
+    // Properties with their original keys in the order of the source map.
+    private final Map<String, Object> m_props;
+    // Properties by normalized key.
+    private final Map<String, Object> m_values;
+    // Properties by normalized key, with arrays converted to lists.
+    private final Map<String, Object> m_matchValues;
+
+    /**
+     * Creates a snapshot of the specified properties, which must not
+     * contain keys that only differ in case.
+     * @param props the properties to copy.
+    **/
+    public PropertySnapshot(Map<String, Object> props)
+    {
+        m_props = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(props));
+        m_values = new HashMap<String, Object>(props.size() * 2);
+        m_matchValues = new HashMap<String, Object>(props.size() * 2);
+        for (Entry<String, Object> entry : props.entrySet())
+        {
+            String key = normalize(entry.getKey());
+            Object value = entry.getValue();
+            m_values.put(key, value);
+            m_matchValues.put(key, ((value != null) && value.getClass().isArray())
+                ? convertArrayToList(value) : value);
+        }
+    }
+
+    /**
+     * Returns the normalized form of a property name, which folds case the
+     * same way as {@link StringMap}.
+     * @param name the property name.
+     * @return the normalized property name.
+    **/
+    public static String normalize(String name)
+    {
+        char[] ch = null;
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            char u = (c < 128)
+                ? ((('a' <= c) && (c <= 'z')) ? (char) (c - ('a' - 'A')) : c)
+                : Character.toUpperCase(c);
+            if ((u != c) && (ch == null))
+            {
+                ch = name.toCharArray();
+            }
+            if (ch != null)
+            {
+                ch[i] = u;
+            }
+        }
+        return (ch == null) ? name : new String(ch);
+    }
+
+    /**
+     * Returns the value of a property for filter matching, where array
+     * values are returned as lists.
+     * @param normalizedName the normalized property name.
+     * @return the value of the property or <tt>null</tt>.
+    **/
+    public Object getMatchValue(String normalizedName)
+    {
+        return m_matchValues.get(normalizedName);
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        return m_values.get(normalize(key.toString()));
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return m_values.containsKey(normalize(key.toString()));
+    }
+
+    @Override
+    public int size()
+    {
+        return m_props.size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return m_props.entrySet();
+    }
+
+    private static List convertArrayToList(Object array)
+    {
+        int len = Array.getLength(array);
+        List list = new ArrayList(len);
+        for (int i = 0; i < len; i++)
+        {
+            list.add(Array.get(array, i));
+        }
+        return Collections.unmodifiableList(list);
+    }
+}
@@ -25,13 +25,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
  * This class implements a factory for creating weak zip files, which behave
  * mostly like a ZipFile, but can be weakly closed to limit the number of
- * open files.
+ * open files. When the limit is reached, the least recently used zip file
+ * is weakly closed. Each weak zip file is guarded by a read-write lock, so
+ * concurrent reads from the same or different zip files do not block each
+ * other; only opening and closing the underlying zip files is serialized.
  */
 public class WeakZipFileFactory
 {
@@ -43,7 +48,7 @@ public class WeakZipFileFactory
 
     private final List<WeakZipFile> m_zipFiles = new ArrayList<WeakZipFile>();
     private final List<WeakZipFile> m_openFiles = new ArrayList<WeakZipFile>();
-    private final Mutex m_globalMutex = new Mutex();
+    private final Object m_globalLock = new Object();
     private final int m_limit;
 
     /**
@@ -72,36 +77,11 @@ public class WeakZipFileFactory
 
         if (m_limit > 0)
         {
-            try
-            {
-                m_globalMutex.down();
-            }
-            catch (InterruptedException ex)
-            {
-                Thread.currentThread().interrupt();
-                throw new IOException("Interrupted while acquiring global zip file mutex.");
-            }
-
-            try
+            synchronized (m_globalLock)
             {
                 m_zipFiles.add(wzf);
                 m_openFiles.add(wzf);
-                if (m_openFiles.size() > m_limit)
-                {
-                    WeakZipFile candidate = m_openFiles.get(0);
-                    for (WeakZipFile tmp : m_openFiles)
-                    {
-                        if (candidate.m_timestamp > tmp.m_timestamp)
-                        {
-                            candidate = tmp;
-                        }
-                    }
-                    candidate._closeWeakly();
-                }
-            }
-            finally
-            {
-                m_globalMutex.up();
+                closeLeastRecentlyUsed(wzf);
             }
         }
 
@@ -114,23 +94,9 @@ public class WeakZipFileFactory
      **/
     List<WeakZipFile> getZipZiles()
     {
-        try
-        {
-            m_globalMutex.down();
-        }
-        catch (InterruptedException ex)
-        {
-            Thread.currentThread().interrupt();
-            return Collections.EMPTY_LIST;
-        }
-
-        try
-        {
-            return m_zipFiles;
-        }
-        finally
+        synchronized (m_globalLock)
         {
-            m_globalMutex.up();
+            return new ArrayList<WeakZipFile>(m_zipFiles);
         }
     }
 
@@ -140,23 +106,35 @@ public class WeakZipFileFactory
      **/
     List<WeakZipFile> getOpenZipZiles()
     {
-        try
+        synchronized (m_globalLock)
         {
-            m_globalMutex.down();
-        }
-        catch (InterruptedException ex)
-        {
-            Thread.currentThread().interrupt();
-            return Collections.EMPTY_LIST;
+            return new ArrayList<WeakZipFile>(m_openFiles);
         }
+    }
 
-        try
-        {
-            return m_openFiles;
-        }
-        finally
+    /**
+     * Weakly closes the least recently used zip file if there are more
+     * open zip files than the limit allows. It should only be called when
+     * holding the global lock.
+     * @param current the zip file being opened, which is never closed.
+     */
+    private void closeLeastRecentlyUsed(WeakZipFile current)
+    {
+        if (m_openFiles.size() > m_limit)
         {
-            m_globalMutex.up();
+            WeakZipFile candidate = null;
+            for (WeakZipFile tmp : m_openFiles)
+            {
+                if ((tmp != current)
+                    && ((candidate == null) || (candidate.m_timestamp > tmp.m_timestamp)))
+                {
+                    candidate = tmp;
+                }
+            }
+            if (candidate != null)
+            {
+                candidate._closeWeakly();
+            }
         }
     }
 
@@ -168,10 +146,10 @@ public class WeakZipFileFactory
     public class WeakZipFile
     {
         private final File m_file;
-        private final Mutex m_localMutex = new Mutex();
-        private ZipFile m_zipFile;
-        private int m_status = OPEN;
-        private long m_timestamp;
+        private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+        private volatile ZipFile m_zipFile;
+        private volatile int m_status = OPEN;
+        private volatile long m_timestamp;
 
         /**
          * Constructor is private since instances need to be centrally
@@ -215,7 +193,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                m_localMutex.up();
+                releaseZipFile();
             }
         }
 
@@ -245,7 +223,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                m_localMutex.up();
+                releaseZipFile();
             }
         }
 
@@ -266,7 +244,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                m_localMutex.up();
+                releaseZipFile();
             }
         }
 
@@ -276,25 +254,10 @@ public class WeakZipFileFactory
          */
         void closeWeakly()
         {
-            try
-            {
-                m_globalMutex.down();
-            }
-            catch (InterruptedException ex)
-            {
-                Thread.currentThread().interrupt();
-                throw new IllegalStateException(
-                    "Interrupted while acquiring global zip file mutex.");
-            }
-
-            try
+            synchronized (m_globalLock)
             {
                 _closeWeakly();
             }
-            finally
-            {
-                m_globalMutex.up();
-            }
         }
 
         /**
@@ -304,17 +267,7 @@ public class WeakZipFileFactory
          */
         private void _closeWeakly()
         {
-            try
-            {
-                m_localMutex.down();
-            }
-            catch (InterruptedException ex)
-            {
-                Thread.currentThread().interrupt();
-                throw new IllegalStateException(
-                    "Interrupted while acquiring local zip file mutex.");
-            }
-
+            m_lock.writeLock().lock();
             try
             {
                 if (m_status == OPEN)
@@ -337,7 +290,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                m_localMutex.up();
+                m_lock.writeLock().unlock();
             }
         }
 
@@ -350,30 +303,25 @@ public class WeakZipFileFactory
         {
             if (m_limit > 0)
             {
-                try
-                {
-                    m_globalMutex.down();
-                }
-                catch (InterruptedException ex)
-                {
-                    Thread.currentThread().interrupt();
-                    throw new IllegalStateException(
-                        "Interrupted while acquiring global zip file mutex.");
-                }
-                try
-                {
-                    m_localMutex.down();
-                }
-                catch (InterruptedException ex)
+                synchronized (m_globalLock)
                 {
-                    m_globalMutex.up();
-                    Thread.currentThread().interrupt();
-                    throw new IllegalStateException(
-                        "Interrupted while acquiring local zip file mutex.");
+                    m_lock.writeLock().lock();
+                    try
+                    {
+                        ZipFile tmp = m_zipFile;
+                        __close();
+                        if (tmp != null)
+                        {
+                            tmp.close();
+                        }
+                    }
+                    finally
+                    {
+                        m_lock.writeLock().unlock();
+                    }
                 }
             }
-
-            try
+            else
             {
                 ZipFile tmp = m_zipFile;
                 __close();
@@ -382,17 +330,12 @@ public class WeakZipFileFactory
                     tmp.close();
                 }
             }
-            finally
-            {
-                m_localMutex.up();
-                m_globalMutex.up();
-            }
         }
 
         /**
          * This internal method is used to clear the zip file from the data
          * structures and reset its state. It should only be called when
-         * holding the global and local mutexes.
+         * holding the global lock and the write lock.
          */
         private void __close()
         {
@@ -405,13 +348,14 @@ public class WeakZipFileFactory
         /**
          * This method ensures that the zip file associated with this
          * weak zip file instance is actually open and acquires the
-         * local weak zip file mutex. If the underlying zip file is closed,
-         * then the local mutex is released and an IllegalStateException is
-         * thrown. If the zip file is weakly closed, then it is reopened.
-         * If the zip file is already opened, then no additional action is
-         * necessary. If this method does not throw an exception, then
-         * the end result is the zip file member field is non-null and the
-         * local mutex has been acquired.
+         * read lock of the weak zip file. If the underlying zip file is
+         * closed, then an IllegalStateException is thrown without holding
+         * the read lock. If the zip file is weakly closed, then it is
+         * reopened. If the zip file is already opened, then no additional
+         * action is necessary. If this method does not throw an exception,
+         * then the end result is the zip file member field is non-null and
+         * the read lock has been acquired, which must be released with
+         * releaseZipFile().
          */
         private void ensureZipFileIsOpen()
         {
@@ -420,92 +364,71 @@ public class WeakZipFileFactory
                 return;
             }
 
-            // Get mutex for zip file.
-            try
-            {
-                m_localMutex.down();
-            }
-            catch (InterruptedException ex)
-            {
-                Thread.currentThread().interrupt();
-                throw new IllegalStateException(
-                    "Interrupted while acquiring local zip file mutex.");
-            }
-
-            // If zip file is closed, then just return null.
-            if (m_status == CLOSED)
+            while (true)
             {
-                m_localMutex.up();
-                throw new IllegalStateException("Zip file is closed: " + m_file);
-            }
-
-            // If zip file is weakly closed, we need to reopen it,
-            // but we have to release the zip mutex to acquire the
-            // global mutex, then reacquire the zip mutex. This
-            // ensures that the global mutex is always acquired
-            // before any local mutex to avoid deadlocks.
-            IOException cause = null;
-            if (m_status == WEAKLY_CLOSED)
-            {
-                m_localMutex.up();
-
-                try
-                {
-                    m_globalMutex.down();
-                }
-                catch (InterruptedException ex)
-                {
-                    Thread.currentThread().interrupt();
-                    throw new IllegalStateException(
-                        "Interrupted while acquiring global zip file mutex.");
-                }
-                try
-                {
-                    m_localMutex.down();
-                }
-                catch (InterruptedException ex)
+                m_lock.readLock().lock();
+                if (m_status == OPEN)
                 {
-                    m_globalMutex.up();
-                    Thread.currentThread().interrupt();
-                    throw new IllegalStateException(
-                        "Interrupted while acquiring local zip file mutex.");
+                    // Record the access for the least recently used policy.
+                    m_timestamp = System.currentTimeMillis();
+                    return;
                 }
+                m_lock.readLock().unlock();
 
-                // Double check status since it may have changed.
+                // If zip file is closed, then just throw an exception.
                 if (m_status == CLOSED)
                 {
-                    m_localMutex.up();
-                    m_globalMutex.up();
                     throw new IllegalStateException("Zip file is closed: " + m_file);
                 }
-                else if (m_status == WEAKLY_CLOSED)
+
+                // If zip file is weakly closed, we need to reopen it. This
+                // requires the global lock and the write lock, which are
+                // always acquired in that order to avoid deadlocks. We then
+                // retry, since it may be weakly closed again before we get
+                // the read lock.
+                synchronized (m_globalLock)
                 {
+                    m_lock.writeLock().lock();
                     try
                     {
-                        __reopenZipFile();
+                        // Double check status since it may have changed.
+                        if (m_status == CLOSED)
+                        {
+                            throw new IllegalStateException("Zip file is closed: " + m_file);
+                        }
+                        else if (m_status == WEAKLY_CLOSED)
+                        {
+                            try
+                            {
+                                __reopenZipFile();
+                            }
+                            catch (IOException ex)
+                            {
+                                // It is possible that reopening the zip file
+                                // failed, so we throw an exception.
+                                IllegalStateException ise =
+                                    new IllegalStateException("Zip file is closed: " + m_file);
+                                ise.initCause(ex);
+                                throw ise;
+                            }
+                        }
                     }
-                    catch (IOException ex)
+                    finally
                     {
-                        cause = ex;
+                        m_lock.writeLock().unlock();
                     }
                 }
-
-                // Release the global mutex, since it should no longer be necessary.
-                m_globalMutex.up();
             }
+        }
 
-            // It is possible that reopening the zip file failed, so we check
-            // for that case and throw an exception.
-            if (m_zipFile == null)
+        /**
+         * Releases the read lock acquired by ensureZipFileIsOpen().
+         */
+        private void releaseZipFile()
+        {
+            if (m_limit > 0)
             {
-                m_localMutex.up();
-                IllegalStateException ise =
-                    new IllegalStateException("Zip file is closed: " + m_file);
-                if (cause != null)
-                {
-                    ise.initCause(cause);
-                }
-                throw ise;
+                m_lock.readLock().unlock();
             }
         }
 
@@ -514,7 +437,7 @@ public class WeakZipFileFactory
          * It makes a best effort, but may fail and leave the zip file member
          * field null. Any failure reopening a zip file results in it being
          * permanently closed. This method should only be invoked when holding
-         * the global and local mutexes.
+         * the global lock and the write lock.
          */
         private void __reopenZipFile() throws IOException
         {
@@ -535,18 +458,7 @@ public class WeakZipFileFactory
                 if (m_zipFile != null)
                 {
                     m_openFiles.add(this);
-                    if (m_openFiles.size() > m_limit)
-                    {
-                        WeakZipFile candidate = m_openFiles.get(0);
-                        for (WeakZipFile tmp : m_openFiles)
-                        {
-                            if (candidate.m_timestamp > tmp.m_timestamp)
-                            {
-                                candidate = tmp;
-                            }
-                        }
-                        candidate._closeWeakly();
-                    }
+                    closeLeastRecentlyUsed(this);
                 }
             }
         }
@@ -572,7 +484,7 @@ public class WeakZipFileFactory
             /**
              * This internal method ensures that the zip file is open and that
              * the underlying input stream is valid. Upon successful completion,
-             * the underlying input stream will be valid and the local mutex
+             * the underlying input stream will be valid and the read lock
              * will be held.
              * @throws IOException if the was an error handling the input stream.
              */
@@ -609,7 +521,7 @@ public class WeakZipFileFactory
                     }
                     catch (IOException ex)
                     {
-                        m_localMutex.up();
+                        releaseZipFile();
                         throw ex;
                     }
                 }
@@ -625,7 +537,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    m_localMutex.up();
+                    releaseZipFile();
                 }
             }
 
@@ -644,7 +556,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    m_localMutex.up();
+                    releaseZipFile();
                 }
             }
 
@@ -675,7 +587,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    m_localMutex.up();
+                    releaseZipFile();
                 }
             }
 
@@ -694,7 +606,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    m_localMutex.up();
+                    releaseZipFile();
                 }
             }
 
@@ -713,7 +625,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    m_localMutex.up();
+                    releaseZipFile();
                 }
             }
 
@@ -738,7 +650,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    m_localMutex.up();
+                    releaseZipFile();
                 }
             }
         }
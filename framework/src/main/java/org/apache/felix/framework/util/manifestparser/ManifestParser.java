@@ -26,6 +26,7 @@ import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.osgi.framework.BundleException;
@@ -298,7 +299,7 @@ public class ManifestParser
                 v = (v == null) ? sv : v;
                 clause.m_attrs.put(
                     Constants.VERSION_ATTRIBUTE,
-                    VersionRange.parse(v.toString()));
+                    Interner.intern(VersionRange.parse(v.toString())));
             }
 
             // If bundle version is specified, then convert its type to VersionRange.
@@ -491,7 +492,7 @@ public class ManifestParser
                 v = (v == null) ? sv : v;
                 clause.m_attrs.put(
                     Constants.VERSION_ATTRIBUTE,
-                    VersionRange.parse(v.toString()));
+                    Interner.intern(VersionRange.parse(v.toString())));
             }
 
             // If bundle version is specified, then convert its type to VersionRange.
@@ -775,7 +776,7 @@ public class ManifestParser
                 v = (v == null) ? sv : v;
                 clause.m_attrs.put(
                     Constants.VERSION_ATTRIBUTE,
-                    Version.parseVersion(v.toString()));
+                    Interner.intern(Version.parseVersion(v.toString())));
             }
 
             // If this is an R4 bundle, then make sure it doesn't specify
@@ -1629,7 +1630,8 @@ public class ManifestParser
                     {
                         case ':':
                         case '=':
-                            key = header.substring(startPosition, currentPosition).trim();
+                            key = Interner.intern(
+                                header.substring(startPosition, currentPosition).trim());
                             startPosition = currentPosition + 1;
                             targetMap = clause.m_attrs;
                             state = currentChar == ':' ? DIRECTIVE_OR_TYPEDATTRIBUTE : ARGUMENT;
@@ -1637,7 +1639,8 @@ public class ManifestParser
                         case EOF:
                         case ',':
                         case ';':
-                            clause.m_paths.add(header.substring(startPosition, currentPosition).trim());
+                            clause.m_paths.add(Interner.intern(
+                                header.substring(startPosition, currentPosition).trim()));
                             state = currentChar == ',' ? CLAUSE_START : PARAMETER_START;
                             break;
                         default:
@@ -1710,7 +1713,7 @@ public class ManifestParser
                                     {
                                         value = value.substring(1, value.length() - 1);
                                     }
-                                    if (targetMap.put(key, value) != null)
+                                    if (targetMap.put(key, Interner.intern(value)) != null)
                                     {
                                         throw new IllegalArgumentException(
                                                 "Duplicate '" + key + "' in: " + header);
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+
+public class ClassLoadingMetricsTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.CLASSLOADING_METRICS_PROP, "true");
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testCountersOfBundleWiring() throws Exception
+    {
+        Bundle bundle = m_felix.getBundleContext().installBundle(
+            createBundle("metrics.test").toURI().toString());
+        bundle.start();
+        try
+        {
+            bundle.loadClass("org.foo.Missing");
+            fail("Class should not be found.");
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+
+        ServiceReference ref = m_felix.getBundleContext().getServiceReference(
+            ClassLoadingMetrics.class.getName());
+        assertNotNull(ref);
+        assertEquals("felix", ref.getProperty("osgi.command.scope"));
+        ClassLoadingMetrics metrics =
+            (ClassLoadingMetrics) m_felix.getBundleContext().getService(ref);
+
+        Map<String, Long> counters = metrics.getMetrics().get(
+            bundle.getBundleId() + ".0 metrics.test");
+        assertNotNull(counters);
+        assertEquals(1, counters.get("classesDefined").longValue());
+        assertTrue(counters.get("bytesRead").longValue() > 0);
+        assertTrue(counters.get("importHits").longValue() > 0);
+        assertTrue(counters.get("localHits").longValue() > 0);
+        assertTrue(counters.get("negativeLookups").longValue() > 0);
+        assertTrue(metrics.classloading().indexOf("metrics.test") > 0);
+
+        metrics.reset();
+        counters = metrics.getMetrics().get(bundle.getBundleId() + ".0 metrics.test");
+        assertEquals(0, counters.get("classesDefined").longValue());
+    }
+
+    private static File createBundle(String bsn) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n"
+            + "Bundle-Activator: " + TestActivator.class.getName() + "\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = TestActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+        os.write(readFully(TestActivator.class.getClassLoader().getResourceAsStream(path)));
+
+        os.close();
+        return f;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int len = is.read(buf); len >= 0; len = is.read(buf))
+        {
+            baos.write(buf, 0, len);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+
+    public static class TestActivator implements BundleActivator
+    {
+        public void start(BundleContext context)
+        {
+        }
+
+        public void stop(BundleContext context)
+        {
+        }
+    }
+}
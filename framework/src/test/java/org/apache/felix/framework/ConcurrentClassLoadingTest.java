@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+public class ConcurrentClassLoadingTest extends TestCase
+{
+    private static final int THREADS = 16;
+    // Number of distinct classes in the test bundle; each one is defined
+    // by whichever thread gets to it first while the others race for it.
+    private static final int CLASSES = 512;
+    // Template class whose bytes are copied under a different name for
+    // every generated class; both names have the same length.
+    private static final String TEMPLATE = "Payload0";
+
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testConcurrentLoadClass() throws Exception
+    {
+        final Bundle bundle = m_felix.getBundleContext().installBundle(
+            createBundle().toURI().toString());
+        // Resolve up front so the threads only contend on class loading.
+        bundle.start();
+
+        final ConcurrentMap<String, Class> loaded = new ConcurrentHashMap<String, Class>();
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int offset = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        // Every thread loads every class, starting at a
+                        // different offset, so each class is contended.
+                        for (int i = 0; i < CLASSES; i++)
+                        {
+                            String name = getClassName((offset * 7 + i) % CLASSES);
+                            Class clazz = bundle.loadClass(name);
+                            Class previous = loaded.putIfAbsent(name, clazz);
+                            if ((previous != null) && (previous != clazz))
+                            {
+                                throw new IllegalStateException(
+                                    name + " was defined more than once.");
+                            }
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        failure[0] = th;
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        if (failure[0] != null)
+        {
+            fail(failure[0].toString());
+        }
+        assertEquals(CLASSES, loaded.size());
+        for (Class clazz : loaded.values())
+        {
+            assertSame(bundle.loadClass(clazz.getName()), clazz);
+            assertNotSame(getClass().getClassLoader(), clazz.getClassLoader());
+        }
+    }
+
+    private static String getClassName(int i)
+    {
+        String suffix = Integer.toString(i);
+        return Payload0.class.getName().replace(TEMPLATE,
+            "P" + "0000000".substring(suffix.length()) + suffix);
+    }
+
+    private static File createBundle() throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: concurrent.test\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        // Generate the classes by renaming the template class in its
+        // constant pool, which works since the names have the same length.
+        String path = Payload0.class.getName().replace('.', '/') + ".class";
+        byte[] template = readFully(
+            Payload0.class.getClassLoader().getResourceAsStream(path));
+        byte[] from = TEMPLATE.getBytes("utf-8");
+        for (int i = 0; i < CLASSES; i++)
+        {
+            String name = getClassName(i);
+            byte[] to = name.substring(name.length() - from.length).getBytes("utf-8");
+            byte[] bytes = template.clone();
+            for (int j = 0; j <= bytes.length - from.length; j++)
+            {
+                int k = 0;
+                while ((k < from.length) && (bytes[j + k] == from[k]))
+                {
+                    k++;
+                }
+                if (k == from.length)
+                {
+                    System.arraycopy(to, 0, bytes, j, to.length);
+                }
+            }
+            os.putNextEntry(new ZipEntry(name.replace('.', '/') + ".class"));
+            os.write(bytes);
+        }
+
+        os.close();
+        return f;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int len = is.read(buf); len >= 0; len = is.read(buf))
+        {
+            baos.write(buf, 0, len);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+
+    public static class Payload0 { }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class EntryIndexTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testIndexedQueries() throws Exception
+    {
+        Bundle bundle = m_felix.getBundleContext().installBundle(
+            createBundle().toURI().toString());
+
+        // Directories without entries of their own are synthesized.
+        assertEquals(set("a/b/", "a/d.txt", "a/e/"),
+            toSet(bundle.findEntries("a", "*", false)));
+        assertEquals(set("META-INF/", "META-INF/MANIFEST.MF",
+            "a/", "a/b/", "a/b/c.txt", "a/d.txt", "a/e/", "x.txt"),
+            toSet(bundle.findEntries("/", "*", true)));
+        assertEquals(set("a/b/c.txt", "a/d.txt"),
+            toSet(bundle.findEntries("a/", "*.txt", true)));
+        assertEquals(set("a/b/c.txt"), toSet(bundle.getEntryPaths("a/b")));
+
+        bundle.start();
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        assertEquals(set("a/b/c.txt", "a/d.txt"), new HashSet<String>(
+            wiring.listResources("a", "*.txt", BundleWiring.LISTRESOURCES_RECURSE)));
+        Collection<String> local = wiring.listResources("a", "*", 0);
+        assertEquals(set("a/d.txt", "a/e/"), new HashSet<String>(local));
+    }
+
+    private static Set<String> set(String... entries)
+    {
+        return new HashSet<String>(Arrays.asList(entries));
+    }
+
+    private static Set<String> toSet(Enumeration e)
+    {
+        Set<String> result = new HashSet<String>();
+        while ((e != null) && e.hasMoreElements())
+        {
+            Object o = e.nextElement();
+            result.add((o instanceof URL) ? ((URL) o).getPath().substring(1) : (String) o);
+        }
+        return result;
+    }
+
+    private static File createBundle() throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: index.test\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        String[] entries = { "a/b/c.txt", "a/d.txt", "a/e/", "x.txt" };
+        for (String entry : entries)
+        {
+            os.putNextEntry(new ZipEntry(entry));
+            if (!entry.endsWith("/"))
+            {
+                os.write(entry.getBytes("utf-8"));
+            }
+        }
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+
+public class EventDispatchMetricsTest extends TestCase
+{
+    private static final int BUNDLES = 3;
+
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.EVENT_DISPATCH_METRICS_PROP, "true");
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testQueueDepth() throws Exception
+    {
+        ServiceReference ref = m_felix.getBundleContext().getServiceReference(
+            EventDispatchMetrics.class.getName());
+        assertNotNull(ref);
+        assertEquals("felix", ref.getProperty("osgi.command.scope"));
+        EventDispatchMetrics metrics =
+            (EventDispatchMetrics) m_felix.getBundleContext().getService(ref);
+
+        // Hold up the delivery of the first event, so the events of all
+        // installed bundles are queued.
+        final CountDownLatch release = new CountDownLatch(1);
+        m_felix.getBundleContext().addBundleListener(new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for (int i = 0; i < BUNDLES; i++)
+        {
+            m_felix.getBundleContext().installBundle(
+                createBundle("metrics.test" + i).toURI().toString());
+        }
+        assertTrue(metrics.getMetrics().get("queueDepth").intValue() >= BUNDLES);
+
+        release.countDown();
+        for (int i = 0; (i < 100) && (metrics.getMetrics().get("queueDepth").intValue() > 0); i++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals(0, metrics.getMetrics().get("queueDepth").intValue());
+        assertTrue(metrics.getMetrics().get("maxQueueDepth").intValue() >= BUNDLES);
+        assertTrue(metrics.eventqueue().indexOf("Maximum") >= 0);
+    }
+
+    private static File createBundle(String bsn) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        new JarOutputStream(new FileOutputStream(f), mf).close();
+        return f;
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+}
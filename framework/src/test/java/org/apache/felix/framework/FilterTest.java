@@ -23,6 +23,7 @@ import java.util.Hashtable;
 import junit.framework.TestCase;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
 
 public class FilterTest extends TestCase
 {
@@ -43,4 +44,22 @@ public class FilterTest extends TestCase
         }
         assertFalse("Filter should not match: " + filter, filter.match(dict));
     }
+
+    public void testServiceReferenceProperties() throws Exception
+    {
+        Dictionary dict = new Hashtable();
+        dict.put("Mixed.Case", "value");
+        dict.put("ints", new int[] { 1, 2, 3 });
+        ServiceReference ref = new ServiceRegistrationImpl(
+            null, null, new String[] { "org.foo.Bar" }, new Long(7), new Object(), dict)
+            .getReference();
+
+        assertTrue(FrameworkUtil.createFilter("(mixed.case=value)").match(ref));
+        assertTrue(FrameworkUtil.createFilter("(OBJECTCLASS=org.foo.Bar)").match(ref));
+        assertTrue(FrameworkUtil.createFilter("(&(ints>=3)(service.id=7))").match(ref));
+        assertFalse(FrameworkUtil.createFilter("(ints>=4)").match(ref));
+        // Array properties are returned as they were registered.
+        assertTrue(ref.getProperty("INTS") instanceof int[]);
+        assertEquals(4, ref.getPropertyKeys().length);
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class ParallelStartLevelTest extends TestCase
+{
+    private static final int BUNDLES = 4;
+    private static final String FAIL_HEADER = "Test-Fail-On-Start";
+
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.STARTLEVEL_PARALLEL_THREADS_PROP, Integer.toString(BUNDLES));
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testBundlesOfStartLevelStartInParallel() throws Exception
+    {
+        List<Bundle> bundles = installBundles(-1);
+
+        // Each start only returns once all bundles are starting, so they
+        // must be started in parallel.
+        final CountDownLatch starting = new CountDownLatch(BUNDLES);
+        m_felix.getBundleContext().registerService(
+            Runnable.class.getName(), new Runnable()
+            {
+                public void run()
+                {
+                    starting.countDown();
+                    try
+                    {
+                        if (!starting.await(10, TimeUnit.SECONDS))
+                        {
+                            throw new IllegalStateException("Not started in parallel.");
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }, null);
+        List<FrameworkEvent> errors = addErrorListener(null);
+
+        setStartLevel(2);
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, starting.getCount());
+        for (Bundle bundle : bundles)
+        {
+            assertEquals(Bundle.ACTIVE, bundle.getState());
+        }
+    }
+
+    public void testFailingBundleDoesNotStopStartLevel() throws Exception
+    {
+        List<Bundle> bundles = installBundles(1);
+        Bundle failing = bundles.get(1);
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        List<FrameworkEvent> errors = addErrorListener(failed);
+
+        setStartLevel(2);
+
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+        assertEquals(failing, errors.get(0).getBundle());
+        assertEquals(Bundle.RESOLVED, failing.getState());
+        for (Bundle bundle : bundles)
+        {
+            if (bundle != failing)
+            {
+                assertEquals(Bundle.ACTIVE, bundle.getState());
+            }
+        }
+    }
+
+    private List<Bundle> installBundles(int failing) throws Exception
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < BUNDLES; i++)
+        {
+            Bundle bundle = m_felix.getBundleContext().installBundle(
+                createBundle("parallel.test" + i, i == failing).toURI().toString());
+            bundle.adapt(BundleStartLevel.class).setStartLevel(2);
+            bundle.start();
+            assertEquals(Bundle.INSTALLED, bundle.getState());
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    private List<FrameworkEvent> addErrorListener(final CountDownLatch latch)
+    {
+        final List<FrameworkEvent> errors =
+            Collections.synchronizedList(new ArrayList<FrameworkEvent>());
+        m_felix.getBundleContext().addFrameworkListener(new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                if (event.getType() == FrameworkEvent.ERROR)
+                {
+                    errors.add(event);
+                    if (latch != null)
+                    {
+                        latch.countDown();
+                    }
+                }
+            }
+        });
+        return errors;
+    }
+
+    private void setStartLevel(int level) throws InterruptedException
+    {
+        final CountDownLatch changed = new CountDownLatch(1);
+        m_felix.adapt(FrameworkStartLevel.class).setStartLevel(level, new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                changed.countDown();
+            }
+        });
+        assertTrue(changed.await(10, TimeUnit.SECONDS));
+    }
+
+    private static File createBundle(String bsn, boolean fail) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n"
+            + (fail ? FAIL_HEADER + ": true\n" : "")
+            + "Bundle-Activator: " + StartActivator.class.getName() + "\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = StartActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+        os.write(readFully(StartActivator.class.getClassLoader().getResourceAsStream(path)));
+
+        os.close();
+        return f;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int len = is.read(buf); len >= 0; len = is.read(buf))
+        {
+            baos.write(buf, 0, len);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+
+    /**
+     * Fails if the bundle has the fail header, otherwise runs the
+     * <tt>Runnable</tt> service registered by the test, if any. Each bundle
+     * loads its own copy of this class, so the service is how the bundles
+     * share state with the test.
+    **/
+    public static class StartActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            if (context.getBundle().getHeaders().get(FAIL_HEADER) != null)
+            {
+                throw new Exception("Failing on purpose.");
+            }
+            ServiceReference ref = context.getServiceReference(Runnable.class.getName());
+            if (ref != null)
+            {
+                try
+                {
+                    ((Runnable) context.getService(ref)).run();
+                }
+                finally
+                {
+                    context.ungetService(ref);
+                }
+            }
+        }
+
+        public void stop(BundleContext context)
+        {
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class RefreshBundlesTest extends TestCase
+{
+    private static final int BUNDLES = 4;
+
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.REFRESH_COALESCE_WINDOW_PROP, "500");
+        params.put(FelixConstants.REFRESH_PARALLEL_THREADS_PROP, Integer.toString(BUNDLES));
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testRequestsAreMergedAndRefreshedInParallel() throws Exception
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < BUNDLES; i++)
+        {
+            Bundle bundle = m_felix.getBundleContext().installBundle(
+                createBundle("refresh.test" + i, "").toURI().toString());
+            bundle.start();
+            bundles.add(bundle);
+        }
+
+        // The bundles do not depend on each other, so they must be stopped
+        // in parallel: each stop only returns once all of them are stopping.
+        final CountDownLatch stopping = new CountDownLatch(BUNDLES);
+        ServiceRegistration reg = m_felix.getBundleContext().registerService(
+            Runnable.class.getName(), new Runnable()
+            {
+                public void run()
+                {
+                    stopping.countDown();
+                    try
+                    {
+                        if (!stopping.await(10, TimeUnit.SECONDS))
+                        {
+                            throw new IllegalStateException("Not stopped in parallel.");
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }, null);
+
+        final AtomicInteger refreshed = new AtomicInteger();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        m_felix.getBundleContext().addFrameworkListener(new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED)
+                {
+                    refreshed.incrementAndGet();
+                }
+                else if (event.getType() == FrameworkEvent.ERROR)
+                {
+                    errors.add(event.getThrowable());
+                }
+            }
+        });
+
+        // Each request is notified, but the bundles are refreshed once.
+        final CountDownLatch done = new CountDownLatch(BUNDLES);
+        FrameworkListener listener = new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                done.countDown();
+            }
+        };
+        FrameworkWiring wiring = m_felix.adapt(FrameworkWiring.class);
+        for (Bundle bundle : bundles)
+        {
+            wiring.refreshBundles(Collections.singletonList(bundle), listener);
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        reg.unregister();
+
+        Thread.sleep(100);
+        assertEquals(1, refreshed.get());
+        assertEquals(0, stopping.getCount());
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (Bundle bundle : bundles)
+        {
+            assertEquals(Bundle.ACTIVE, bundle.getState());
+        }
+    }
+
+    public void testBundleResolvedDuringRefreshIsRefreshed() throws Exception
+    {
+        final Bundle exporter = m_felix.getBundleContext().installBundle(
+            createBundle("refresh.exporter", "Export-Package: refresh.test.p\n")
+                .toURI().toString());
+        Bundle importer = m_felix.getBundleContext().installBundle(
+            createBundle("refresh.importer", "Import-Package: refresh.test.p\n")
+                .toURI().toString());
+        exporter.start();
+        importer.start();
+        // Keep the old revision of the exporter in use by the importer.
+        exporter.update(new FileInputStream(
+            createBundle("refresh.exporter", "Export-Package: refresh.test.p\n")));
+
+        final Bundle late = m_felix.getBundleContext().installBundle(
+            createBundle("refresh.late", "Import-Package: refresh.test.p\n")
+                .toURI().toString());
+        final FrameworkWiring wiring = m_felix.adapt(FrameworkWiring.class);
+
+        // Resolve another importer while the refreshing bundles are being
+        // stopped without the global lock, so it is not part of the
+        // dependency closure that was calculated up front.
+        final AtomicReference<BundleRevision> oldProvider = new AtomicReference<BundleRevision>();
+        ServiceRegistration reg = m_felix.getBundleContext().registerService(
+            Runnable.class.getName(), new Runnable()
+            {
+                public void run()
+                {
+                    if (wiring.resolveBundles(Collections.singletonList(late)))
+                    {
+                        oldProvider.set(getProvider(late));
+                    }
+                }
+            }, null);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        wiring.refreshBundles(Collections.singletonList(exporter), new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        reg.unregister();
+
+        // The late importer was wired to the revision that was refreshed,
+        // so it must have been refreshed as well.
+        assertNotNull(oldProvider.get());
+        assertNotSame(exporter.adapt(BundleRevision.class), oldProvider.get());
+        assertTrue(wiring.resolveBundles(Collections.singletonList(late)));
+        assertSame(exporter.adapt(BundleRevision.class), getProvider(late));
+    }
+
+    private static BundleRevision getProvider(Bundle bundle)
+    {
+        for (BundleWire wire : bundle.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE))
+        {
+            if ("refresh.test.p".equals(wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                return wire.getProviderWiring().getRevision();
+            }
+        }
+        return null;
+    }
+
+    private static File createBundle(String bsn, String headers) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n"
+            + "Bundle-Activator: " + StopActivator.class.getName() + "\n";
+        if (headers.startsWith("Import-Package: "))
+        {
+            manifest = manifest.replace("Import-Package: org.osgi.framework",
+                "Import-Package: org.osgi.framework,"
+                + headers.substring("Import-Package: ".length()).trim());
+        }
+        else
+        {
+            manifest += headers;
+        }
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = StopActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+        os.write(readFully(StopActivator.class.getClassLoader().getResourceAsStream(path)));
+
+        os.close();
+        return f;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int len = is.read(buf); len >= 0; len = is.read(buf))
+        {
+            baos.write(buf, 0, len);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+
+    /**
+     * Runs the <tt>Runnable</tt> service registered by the test, if any,
+     * when the bundle is stopped. Each bundle loads its own copy of this
+     * class, so the service is how the bundles share state with the test.
+    **/
+    public static class StopActivator implements BundleActivator
+    {
+        public void start(BundleContext context)
+        {
+        }
+
+        public void stop(BundleContext context)
+        {
+            ServiceReference ref = context.getServiceReference(Runnable.class.getName());
+            if (ref != null)
+            {
+                try
+                {
+                    ((Runnable) context.getService(ref)).run();
+                }
+                finally
+                {
+                    context.ungetService(ref);
+                }
+            }
+        }
+    }
+}
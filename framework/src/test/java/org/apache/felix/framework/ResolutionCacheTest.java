@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolutionCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if (m_felix != null)
+        {
+            m_felix.stop();
+            m_felix.waitForStop(10000);
+        }
+        deleteDir(m_cacheDir);
+    }
+
+    public void testResolveFromCacheAfterRestart() throws Exception
+    {
+        startFramework();
+        Bundle exporter = m_felix.getBundleContext().installBundle(
+            createBundle("cache.exporter",
+                "Export-Package: test.cache.api; version=1.0.0\n")
+                .toURI().toString());
+        Bundle importer = m_felix.getBundleContext().installBundle(
+            createBundle("cache.importer",
+                "Import-Package: test.cache.api, org.osgi.framework\n")
+                .toURI().toString());
+        importer.start();
+        assertWiredTo(importer, exporter);
+
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        File cacheFile = new File(m_cacheDir, "bundle0" + File.separator + "resolver.cache");
+        assertTrue(cacheFile.exists());
+
+        startFramework();
+        importer = m_felix.getBundleContext().getBundle(importer.getBundleId());
+        exporter = m_felix.getBundleContext().getBundle(exporter.getBundleId());
+        assertEquals(Bundle.ACTIVE, importer.getState());
+        assertWiredTo(importer, exporter);
+    }
+
+    public void testInstallInvalidatesCache() throws Exception
+    {
+        startFramework();
+        Bundle exporter = m_felix.getBundleContext().installBundle(
+            createBundle("cache.exporter",
+                "Export-Package: test.cache.api; version=1.0.0\n")
+                .toURI().toString());
+        Bundle importer = m_felix.getBundleContext().installBundle(
+            createBundle("cache.importer",
+                "Import-Package: test.cache.api\n")
+                .toURI().toString());
+        importer.start();
+        assertWiredTo(importer, exporter);
+
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+
+        // A newer exporter must be picked up after a restart.
+        startFramework();
+        Bundle newer = m_felix.getBundleContext().installBundle(
+            createBundle("cache.exporter2",
+                "Export-Package: test.cache.api; version=2.0.0\n")
+                .toURI().toString());
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+
+        startFramework();
+        importer = m_felix.getBundleContext().getBundle(importer.getBundleId());
+        newer = m_felix.getBundleContext().getBundle(newer.getBundleId());
+        importer.start();
+        assertEquals(Bundle.ACTIVE, importer.getState());
+        assertWiredTo(importer, newer);
+    }
+
+    public void testResultsOnTopOfChangedProviderWiringAreNotReused() throws Exception
+    {
+        startFramework();
+        Bundle p1 = install("cache.p1",
+            "Export-Package: test.cache.x; version=1.0.0\n");
+        Bundle a = install("cache.a",
+            "Import-Package: test.cache.x\n"
+            + "Export-Package: test.cache.a; uses:=test.cache.x\n");
+        resolve(a);
+        assertEquals(p1, getProvider(a, "test.cache.x"));
+
+        // B would prefer the newer exporter, but its uses constraint
+        // forces the provider of A, which was resolved earlier.
+        Bundle p2 = install("cache.p2",
+            "Export-Package: test.cache.x; version=2.0.0\n");
+        Bundle b = install("cache.b",
+            "Import-Package: test.cache.x, test.cache.a\n");
+        resolve(b);
+        assertEquals(p1, getProvider(b, "test.cache.x"));
+
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+
+        // After a restart, A is resolved again from scratch and picks
+        // the newer exporter; B must then not reuse its wire to P1.
+        startFramework();
+        p1 = m_felix.getBundleContext().getBundle(p1.getBundleId());
+        p2 = m_felix.getBundleContext().getBundle(p2.getBundleId());
+        a = m_felix.getBundleContext().getBundle(a.getBundleId());
+        b = m_felix.getBundleContext().getBundle(b.getBundleId());
+        resolve(p1);
+        resolve(p2);
+        resolve(a);
+        assertEquals(p2, getProvider(a, "test.cache.x"));
+        resolve(b);
+        assertEquals(Bundle.RESOLVED, b.getState());
+        assertEquals(getProvider(a, "test.cache.x"), getProvider(b, "test.cache.x"));
+    }
+
+    private Bundle install(String bsn, String headers) throws Exception
+    {
+        return m_felix.getBundleContext().installBundle(
+            createBundle(bsn, headers).toURI().toString());
+    }
+
+    private void resolve(Bundle bundle)
+    {
+        assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(
+            Collections.singleton(bundle)));
+    }
+
+    private static Bundle getProvider(Bundle bundle, String pkg)
+    {
+        for (BundleWire wire : bundle.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE))
+        {
+            if (pkg.equals(wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                return wire.getProviderWiring().getBundle();
+            }
+        }
+        return null;
+    }
+
+    private void startFramework() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.RESOLVER_CACHE_PROP, "true");
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    private static void assertWiredTo(Bundle importer, Bundle exporter)
+    {
+        BundleWiring wiring = importer.adapt(BundleWiring.class);
+        assertNotNull(wiring);
+        List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        boolean found = false;
+        for (BundleWire wire : wires)
+        {
+            if (wire.getProviderWiring().getBundle().equals(exporter))
+            {
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    private static File createBundle(String bsn, String headers) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolverParallelismTest extends TestCase
+{
+    private static final int PACKAGES = 3;
+
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.RESOLVER_PARALLELISM_PROP, "4");
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testResolveUsesConflicts() throws Exception
+    {
+        // Each api package is exported in two versions, but the matching
+        // impl package only uses the older one, so the importer has to
+        // backtrack from the newer version of every api package.
+        String oldExports = "";
+        String newExports = "";
+        String implExports = "";
+        String implImports = "";
+        String imports = "";
+        for (int i = 0; i < PACKAGES; i++)
+        {
+            String sep = (i == 0) ? "" : ", ";
+            oldExports += sep + "test.api" + i + "; version=1.0.0";
+            newExports += sep + "test.api" + i + "; version=2.0.0";
+            implExports += sep + "test.impl" + i + "; uses:=test.api" + i;
+            implImports += sep + "test.api" + i + "; version=\"[1,2)\"";
+            imports += sep + "test.api" + i + ", test.impl" + i;
+        }
+
+        Bundle oldApi = install("test.api.old", "Export-Package: " + oldExports + "\n");
+        Bundle newApi = install("test.api.new", "Export-Package: " + newExports + "\n");
+        Bundle impl = install("test.impl", "Export-Package: " + implExports + "\n"
+            + "Import-Package: " + implImports + "\n");
+        Bundle importer = install("test.importer", "Import-Package: " + imports + "\n");
+
+        // Resolve the providers first, so their package spaces are shared
+        // between the candidate permutations of the importer.
+        newApi.start();
+        impl.start();
+        importer.start();
+        assertEquals(Bundle.ACTIVE, importer.getState());
+
+        List<BundleWire> wires = importer.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        int count = 0;
+        for (BundleWire wire : wires)
+        {
+            String pkg = (String) wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE);
+            if (pkg.startsWith("test.api"))
+            {
+                assertEquals(oldApi, wire.getProviderWiring().getBundle());
+                count++;
+            }
+        }
+        assertEquals(PACKAGES, count);
+    }
+
+    public void testResolveSpeculativePermutations() throws Exception
+    {
+        // The importer is restricted to the older api package, which has
+        // several exporters, so both the api candidates of the importer and
+        // of the chosen impl bundle are permutated at the same time.
+        Bundle oldApi = install("test.api.old", "Export-Package: test.api; version=1.0.0\n");
+        install("test.api.old2", "Export-Package: test.api; version=1.0.0\n");
+        install("test.api.new", "Export-Package: test.api; version=2.0.0\n");
+        for (int i = 0; i < PACKAGES; i++)
+        {
+            install("test.impl" + i,
+                "Export-Package: test.impl; uses:=test.api\n"
+                + "Import-Package: test.api; version=\"[1,3)\"\n");
+        }
+        Bundle importer = install("test.importer",
+            "Import-Package: test.api; version=\"[1,2)\", test.impl\n");
+
+        importer.start();
+        assertEquals(Bundle.ACTIVE, importer.getState());
+
+        for (BundleWire wire : importer.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE))
+        {
+            for (BundleWire implWire : wire.getProviderWiring()
+                .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE))
+            {
+                assertEquals(oldApi, implWire.getProviderWiring().getBundle());
+            }
+        }
+    }
+
+    public void testResolveReusingUnchangedPackageSpaces() throws Exception
+    {
+        // Only the api candidates of the importer change between the
+        // permutations, so the package spaces of the unresolved lib and
+        // util bundles are reused, while those of the importer are not.
+        Bundle oldApi = install("test.api.old", "Export-Package: test.api; version=1.0.0\n");
+        install("test.api.new", "Export-Package: test.api; version=2.0.0\n");
+        Bundle util = install("test.util", "Export-Package: test.util\n");
+        Bundle lib = install("test.lib", "Export-Package: test.lib; uses:=test.util\n"
+            + "Import-Package: test.util\n");
+        install("test.impl", "Export-Package: test.impl; uses:=test.api\n"
+            + "Import-Package: test.api; version=\"[1,2)\", test.lib\n");
+        Bundle importer = install("test.importer",
+            "Import-Package: test.api, test.impl, test.lib, test.util\n");
+
+        assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(null));
+
+        Map<String, Bundle> providers = new HashMap<String, Bundle>();
+        for (BundleWire wire : importer.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE))
+        {
+            providers.put(
+                (String) wire.getCapability().getAttributes()
+                    .get(BundleRevision.PACKAGE_NAMESPACE),
+                wire.getProviderWiring().getBundle());
+        }
+        assertEquals(oldApi, providers.get("test.api"));
+        assertEquals(lib, providers.get("test.lib"));
+        assertEquals(util, providers.get("test.util"));
+    }
+
+    private Bundle install(String bsn, String headers) throws Exception
+    {
+        return m_felix.getBundleContext().installBundle(
+            createBundle(bsn, headers).toURI().toString());
+    }
+
+    private static File createBundle(String bsn, String headers) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+}
@@ -18,11 +18,16 @@
  */
 package org.apache.felix.framework;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
 
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.easymock.MockControl;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -331,4 +336,211 @@ public class ServiceRegistryTest extends TestCase
         assertEquals("Unregistration should have no effect", 0, sr.getHooks(FindHook.class).size());
         assertEquals("Unregistration should have no effect", 0, sr.getHooks(ListenerHook.class).size());
     }
+
+    public void testConcurrentLookups()
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        MockControl controlContext = MockControl.createNiceControl(BundleContext.class);
+        BundleContext c = (BundleContext) controlContext.getMock();
+        controlContext.expectAndReturn(c.getBundle(), b);
+        controlContext.replay();
+
+        ServiceRegistry sr = new ServiceRegistry(new Logger(), null, true);
+        Hashtable props = new Hashtable();
+        props.put("foo", "bar");
+        ServiceRegistration reg1 = sr.registerService(
+            c, new String [] {String.class.getName()}, "hello", props);
+        ServiceRegistration reg2 = sr.registerService(
+            c, new String [] {String.class.getName(), Object.class.getName()}, "world", new Hashtable());
+
+        assertEquals(2, sr.getServiceReferences(null, null).size());
+        assertEquals(2, sr.getServiceReferences(String.class.getName(), null).size());
+        assertEquals(1, sr.getServiceReferences(Object.class.getName(), null).size());
+        assertEquals(0, sr.getServiceReferences(Integer.class.getName(), null).size());
+        List refs = sr.getServiceReferences(
+            String.class.getName(), SimpleFilter.parse("(foo=bar)"));
+        assertEquals(1, refs.size());
+        assertSame(reg1.getReference(), refs.get(0));
+        refs = sr.getServiceReferences(
+            null, SimpleFilter.parse("(&(objectClass=java.lang.Object)(!(foo=bar)))"));
+        assertEquals(1, refs.size());
+        assertSame(reg2.getReference(), refs.get(0));
+
+        sr.unregisterService(b, reg1);
+        assertEquals(1, sr.getServiceReferences(String.class.getName(), null).size());
+        sr.unregisterService(b, reg2);
+        assertEquals(0, sr.getServiceReferences(String.class.getName(), null).size());
+        assertEquals(0, sr.getServiceReferences(null, null).size());
+    }
+
+    public void testServiceUsageCounts()
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        MockControl controlContext = MockControl.createNiceControl(BundleContext.class);
+        BundleContext c = (BundleContext) controlContext.getMock();
+        controlContext.expectAndReturn(c.getBundle(), b);
+        controlContext.replay();
+
+        ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        ServiceReference ref = sr.registerService(
+            c, new String [] {String.class.getName()}, "hello", new Hashtable())
+            .getReference();
+
+        assertEquals("hello", sr.getService(b, ref));
+        assertEquals("hello", sr.getService(b, ref));
+        assertEquals(1, sr.getServicesInUse(b).length);
+        assertTrue(sr.ungetService(b, ref));
+        assertEquals(1, sr.getUsingBundles(ref).length);
+        assertTrue(sr.ungetService(b, ref));
+        assertNull(sr.getUsingBundles(ref));
+        assertFalse(sr.ungetService(b, ref));
+
+        // Usages must be tracked again after all were released at once.
+        sr.getService(b, ref);
+        sr.ungetServices(b);
+        assertNull(sr.getServicesInUse(b));
+        sr.getService(b, ref);
+        assertEquals(1, sr.getServicesInUse(b).length);
+        assertTrue(sr.ungetService(b, ref));
+        assertFalse(sr.ungetService(b, ref));
+    }
+
+    public void testConcurrentGetService() throws Exception
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        final Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        MockControl controlContext = MockControl.createNiceControl(BundleContext.class);
+        BundleContext c = (BundleContext) controlContext.getMock();
+        controlContext.expectAndReturn(c.getBundle(), b);
+        controlContext.replay();
+
+        final ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        final ServiceReference[] refs = new ServiceReference[2];
+        for (int i = 0; i < refs.length; i++)
+        {
+            refs[i] = sr.registerService(
+                c, new String [] {String.class.getName()}, "svc" + i, new Hashtable())
+                .getReference();
+        }
+
+        // Every concurrent get must be counted exactly once.
+        final int gets = 100;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final ServiceReference ref = refs[i % refs.length];
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int j = 0; j < gets; j++)
+                        {
+                            assertNotNull(sr.getService(b, ref));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        errors.add(th);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        assertEquals(2, sr.getServicesInUse(b).length);
+        for (int i = 0; i < refs.length; i++)
+        {
+            int count = 0;
+            while (sr.ungetService(b, refs[i]))
+            {
+                count++;
+            }
+            assertEquals(threads.length / refs.length * gets, count);
+            assertNull(sr.getUsingBundles(refs[i]));
+        }
+        assertNull(sr.getServicesInUse(b));
+    }
+
+    public void testConcurrentGetUngetService() throws Exception
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        final Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        MockControl controlContext = MockControl.createNiceControl(BundleContext.class);
+        BundleContext c = (BundleContext) controlContext.getMock();
+        controlContext.expectAndReturn(c.getBundle(), b);
+        controlContext.replay();
+
+        final ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        final ServiceReference[] refs = new ServiceReference[4];
+        for (int i = 0; i < refs.length; i++)
+        {
+            refs[i] = sr.registerService(
+                c, new String [] {String.class.getName()}, "svc" + i, new Hashtable())
+                .getReference();
+        }
+
+        // Half of the threads share one service, the others spread over all,
+        // so usage counts are both contended and created and flushed again.
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[64];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final ServiceReference ref = (i % 2 == 0) ? refs[0] : refs[i % refs.length];
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int j = 0; j < 1000; j++)
+                        {
+                            assertNotNull(sr.getService(b, ref));
+                            assertTrue(sr.ungetService(b, ref));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        errors.add(th);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertNull(sr.getServicesInUse(b));
+        for (int i = 0; i < refs.length; i++)
+        {
+            assertNull(sr.getUsingBundles(refs[i]));
+            assertFalse(sr.ungetService(b, refs[i]));
+        }
+    }
 }
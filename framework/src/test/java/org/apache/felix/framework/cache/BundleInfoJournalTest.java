@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class BundleInfoJournalTest extends TestCase
+{
+    private File m_cacheDir;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix.test", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        BundleCache.deleteDirectoryTree(m_cacheDir);
+    }
+
+    public void testArchivesUseJournal() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        config.put(BundleCache.CACHE_LOCKING_PROP, "false");
+        config.put(BundleCache.CACHE_BUNDLEJOURNAL_PROP, "true");
+
+        BundleCache cache = new BundleCache(new Logger(), config);
+        cache.getArchives();
+        BundleArchive archive = cache.create(1, 3, "test:1", createJar());
+        archive.setPersistentState(Bundle.ACTIVE);
+        archive.close();
+        cache.release();
+        assertFalse(new File(m_cacheDir, "bundle1" + File.separator + "bundle.info").exists());
+
+        cache = new BundleCache(new Logger(), config);
+        BundleArchive[] archives = cache.getArchives();
+        assertEquals(1, archives.length);
+        assertEquals(1, archives[0].getId());
+        assertEquals("test:1", archives[0].getLocation());
+        assertEquals(3, archives[0].getStartLevel());
+        assertEquals(Bundle.ACTIVE, archives[0].getPersistentState());
+        archives[0].close();
+        cache.release();
+
+        // Disabling the journal moves the bundle info back to files.
+        config.remove(BundleCache.CACHE_BUNDLEJOURNAL_PROP);
+        cache = new BundleCache(new Logger(), config);
+        archives = cache.getArchives();
+        assertEquals(Bundle.ACTIVE, archives[0].getPersistentState());
+        archives[0].close();
+        cache.release();
+        assertFalse(new File(m_cacheDir, BundleInfoJournal.JOURNAL_FILE).exists());
+        assertTrue(new File(m_cacheDir, "bundle1" + File.separator + "bundle.info").exists());
+    }
+
+    public void testIncompleteRecordIsIgnored() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_cacheDir);
+        journal.put("bundle1", info(1, 1));
+        journal.put("bundle2", info(2, 1));
+        journal.put("bundle1", info(1, 3));
+        journal.put("bundle2", null);
+        journal.put("bundle3", info(3, 1));
+        journal.close();
+
+        // Cut the last record short as if the process died while writing it.
+        RandomAccessFile raf = new RandomAccessFile(
+            new File(m_cacheDir, BundleInfoJournal.JOURNAL_FILE), "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_cacheDir);
+        assertEquals(3, journal.get("bundle1").m_startLevel);
+        assertEquals("loc1", journal.get("bundle1").m_location);
+        assertNull(journal.get("bundle2"));
+        assertNull(journal.get("bundle3"));
+
+        // The journal is usable after dropping the broken record.
+        journal.put("bundle3", info(3, 2));
+        journal.close();
+        journal = new BundleInfoJournal(new Logger(), m_cacheDir);
+        assertEquals(2, journal.get("bundle3").m_startLevel);
+        journal.close();
+    }
+
+    public void testConcurrentWrites() throws Exception
+    {
+        final BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_cacheDir);
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int id = i + 1;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int level = 1; level <= 50; level++)
+                        {
+                            journal.put("bundle" + id, info(id, level));
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join();
+        }
+        journal.close();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        BundleInfoJournal reopened = new BundleInfoJournal(new Logger(), m_cacheDir);
+        for (int i = 1; i <= threads.length; i++)
+        {
+            assertEquals(i, reopened.get("bundle" + i).m_id);
+            assertEquals(50, reopened.get("bundle" + i).m_startLevel);
+        }
+        reopened.close();
+    }
+
+    private static ByteArrayInputStream createJar() throws Exception
+    {
+        String manifest = "Manifest-Version: 1.0\n"
+            + "Bundle-SymbolicName: org.foo\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new JarOutputStream(baos, mf).close();
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    private static BundleInfoJournal.BundleInfo info(long id, int startLevel)
+    {
+        return new BundleInfoJournal.BundleInfo(id, "loc" + id, 2, startLevel, 1000L + id, 0);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+public class IndexedJarContentTest extends TestCase
+{
+    private File m_rootDir;
+    private File m_jar;
+    private WeakZipFileFactory m_factory;
+
+    protected void setUp() throws Exception
+    {
+        m_rootDir = File.createTempFile("felix.test", ".dir");
+        m_rootDir.delete();
+        m_rootDir.mkdirs();
+        m_jar = new File(m_rootDir, "bundle.jar");
+        m_factory = new WeakZipFileFactory(1);
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_jar));
+        zos.putNextEntry(new ZipEntry("org/"));
+        zos.putNextEntry(new ZipEntry("org/foo/"));
+        for (int i = 0; i < 10; i++)
+        {
+            byte[] bytes = createBytes(i * 1000);
+            ZipEntry ze = new ZipEntry("org/foo/Entry" + i + ".class");
+            // Mix stored and deflated entries.
+            if ((i % 2) == 0)
+            {
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                ze.setMethod(ZipEntry.STORED);
+                ze.setSize(bytes.length);
+                ze.setCrc(crc.getValue());
+            }
+            zos.putNextEntry(ze);
+            zos.write(bytes);
+        }
+        zos.close();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        File[] files = m_rootDir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            files[i].delete();
+        }
+        m_rootDir.delete();
+    }
+
+    public void testSameEntriesAsJarContent() throws Exception
+    {
+        JarContent expected = new JarContent(new Logger(), new HashMap(), m_factory,
+            this, m_rootDir, m_jar, null);
+        IndexedJarContent actual = new IndexedJarContent(new Logger(), new HashMap(),
+            m_factory, this, m_rootDir, m_jar, null);
+
+        List<String> names = toList(expected.getEntries());
+        assertEquals(names, toList(actual.getEntries()));
+        for (String name : names)
+        {
+            assertTrue(actual.hasEntry(name));
+            assertTrue(Arrays.equals(
+                expected.getEntryAsBytes(name), actual.getEntryAsBytes(name)));
+        }
+        assertEquals(expected.hasEntry("org/foo"), actual.hasEntry("org/foo"));
+        assertFalse(actual.hasEntry("org/bar/Missing.class"));
+        assertNull(actual.getEntryAsBytes("org/bar/Missing.class"));
+        assertNull(actual.getEntryAsStream("org/bar/Missing.class"));
+        assertNotNull(actual.getEntryAsStream("org/foo/Entry3.class"));
+
+        expected.close();
+        actual.close();
+    }
+
+    public void testIndexIsPersisted() throws Exception
+    {
+        IndexedJarContent content = new IndexedJarContent(new Logger(), new HashMap(),
+            m_factory, this, m_rootDir, m_jar, null);
+        content.close();
+
+        File index = new File(m_rootDir, "bundle.jar.index");
+        assertTrue(index.exists());
+        long modified = index.lastModified();
+
+        // A second content must reuse the persisted index.
+        content = new IndexedJarContent(new Logger(), new HashMap(),
+            m_factory, this, m_rootDir, m_jar, null);
+        assertEquals(modified, index.lastModified());
+        assertTrue(Arrays.equals(createBytes(9000),
+            content.getEntryAsBytes("org/foo/Entry9.class")));
+        content.close();
+    }
+
+    public void testModifiedJarFile() throws Exception
+    {
+        IndexedJarContent content = new IndexedJarContent(new Logger(), new HashMap(),
+            m_factory, this, m_rootDir, m_jar, null);
+        assertNotNull(content.getEntryAsBytes("org/foo/Entry9.class"));
+
+        // No file handle is held, so the JAR file can be replaced, and reads
+        // must fail cleanly once it no longer matches the index.
+        assertTrue(m_jar.delete());
+        FileOutputStream fos = new FileOutputStream(m_jar);
+        fos.write(createBytes(100));
+        fos.close();
+        assertTrue(content.hasEntry("org/foo/Entry9.class"));
+        assertNull(content.getEntryAsBytes("org/foo/Entry9.class"));
+        content.close();
+    }
+
+    private static byte[] createBytes(int size)
+    {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) ((i % 65) + 65);
+        }
+        return bytes;
+    }
+
+    private static List<String> toList(Enumeration<String> e)
+    {
+        return (e == null) ? Collections.EMPTY_LIST : Collections.list(e);
+    }
+}
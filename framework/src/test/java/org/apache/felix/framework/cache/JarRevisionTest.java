@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+
+public class JarRevisionTest extends TestCase
+{
+    private File m_rootDir;
+    private File m_jar;
+    private File m_revisionDir;
+    private Map m_config;
+    private WeakZipFileFactory m_factory;
+
+    protected void setUp() throws Exception
+    {
+        m_rootDir = File.createTempFile("felix.test", ".dir");
+        m_rootDir.delete();
+        m_rootDir.mkdirs();
+        m_jar = new File(m_rootDir, "source.jar");
+        m_revisionDir = new File(m_rootDir, "version0.0");
+        m_config = new HashMap();
+        m_config.put(BundleCache.CACHE_MANIFESTSNAPSHOT_PROP, "true");
+        m_factory = new WeakZipFileFactory(0);
+
+        // Use a header that is longer than what writeUTF() supports.
+        StringBuffer exports = new StringBuffer("org.foo.p0");
+        for (int i = 1; i < 10000; i++)
+        {
+            exports.append(",org.foo.p").append(i);
+        }
+        String manifest = "Manifest-Version: 1.0\n"
+            + "Bundle-SymbolicName: org.foo\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Export-Package", exports.toString());
+        new JarOutputStream(new FileOutputStream(m_jar), mf).close();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_rootDir);
+    }
+
+    public void testManifestSnapshot() throws Exception
+    {
+        JarRevision revision = new JarRevision(new Logger(), m_config, m_factory,
+            m_revisionDir, m_jar.toURI().toString(), false, new FileInputStream(m_jar));
+        Map expected = revision.getManifestHeader();
+        revision.close();
+
+        File snapshot = new File(m_revisionDir, "bundle.manifest");
+        assertTrue(snapshot.exists());
+        long modified = snapshot.lastModified();
+
+        // A restarted revision reads the headers from the snapshot.
+        revision = new JarRevision(new Logger(), m_config, m_factory,
+            m_revisionDir, m_jar.toURI().toString(), false, null);
+        Map actual = revision.getManifestHeader();
+        revision.close();
+        assertEquals(expected, actual);
+        assertEquals("org.foo", actual.get("bundle-symbolicname"));
+        assertEquals(modified, snapshot.lastModified());
+
+        // A modified JAR file invalidates the snapshot.
+        File bundleJar = new File(m_revisionDir, "bundle.jar");
+        bundleJar.setLastModified(bundleJar.lastModified() - 10000);
+        snapshot.setLastModified(0);
+        revision = new JarRevision(new Logger(), m_config, m_factory,
+            m_revisionDir, m_jar.toURI().toString(), false, null);
+        assertEquals(expected, revision.getManifestHeader());
+        revision.close();
+        assertTrue(snapshot.lastModified() != 0);
+    }
+
+    public void testNoZipFileOpenedWithSnapshot() throws Exception
+    {
+        JarRevision revision = new JarRevision(new Logger(), m_config, m_factory,
+            m_revisionDir, m_jar.toURI().toString(), false, new FileInputStream(m_jar));
+        revision.getManifestHeader();
+        revision.close();
+
+        final List opened = new ArrayList();
+        WeakZipFileFactory factory = new WeakZipFileFactory(0)
+        {
+            public WeakZipFile create(File file) throws IOException
+            {
+                opened.add(file);
+                return super.create(file);
+            }
+        };
+
+        // Creating a revision and its content from the snapshot must not
+        // open the JAR file, only using the content does.
+        revision = new JarRevision(new Logger(), m_config, factory,
+            m_revisionDir, m_jar.toURI().toString(), false, null);
+        revision.getManifestHeader();
+        Content content = revision.getContent();
+        assertTrue(opened.isEmpty());
+        assertTrue(content.hasEntry("META-INF/MANIFEST.MF"));
+        assertEquals(1, opened.size());
+        content.close();
+        revision.close();
+
+        // The indexed content does not need the JAR file at all.
+        m_config.put(BundleCache.CACHE_JARINDEX_PROP, "true");
+        opened.clear();
+        revision = new JarRevision(new Logger(), m_config, factory,
+            m_revisionDir, m_jar.toURI().toString(), false, null);
+        revision.getManifestHeader();
+        content = revision.getContent();
+        assertTrue(content.hasEntry("META-INF/MANIFEST.MF"));
+        assertTrue(content.getEntryAsContent(".").hasEntry("META-INF/MANIFEST.MF"));
+        assertTrue(opened.isEmpty());
+        content.close();
+        revision.close();
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        dir.delete();
+    }
+}
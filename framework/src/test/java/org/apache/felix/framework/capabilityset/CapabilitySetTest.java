@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String NS = "osgi.wiring.package";
+
+    private CapabilitySet m_indexed;
+    private CapabilitySet m_unindexed;
+
+    protected void setUp() throws Exception
+    {
+        m_indexed = new CapabilitySet(
+            Arrays.asList(new String[] { NS }),
+            Arrays.asList(new String[] { "version" }), true);
+        m_unindexed = new CapabilitySet(null, true);
+        for (int i = 0; i < 10; i++)
+        {
+            for (int j = 0; j < 4; j++)
+            {
+                Map<String, Object> attrs = new HashMap<String, Object>();
+                attrs.put(NS, "pkg" + i);
+                attrs.put("version", new Version(j, 0, 0));
+                add(attrs);
+            }
+        }
+        // Capabilities whose version attribute is not version-typed must
+        // still be found.
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(NS, "pkg0");
+        attrs.put("version", "2.5.0");
+        add(attrs);
+        attrs = new HashMap<String, Object>();
+        attrs.put(NS, "pkg1");
+        add(attrs);
+    }
+
+    private void add(Map<String, Object> attrs)
+    {
+        BundleCapability cap = new BundleCapabilityImpl(
+            null, NS, new HashMap<String, String>(), attrs);
+        m_indexed.addCapability(cap);
+        m_unindexed.addCapability(cap);
+    }
+
+    private void assertSameMatches(String filter, int expected)
+    {
+        SimpleFilter sf = SimpleFilter.parse(filter);
+        Set<BundleCapability> indexed = m_indexed.match(sf, true);
+        Set<BundleCapability> unindexed = m_unindexed.match(sf, true);
+        assertEquals(filter, unindexed, indexed);
+        assertEquals(filter, expected, indexed.size());
+    }
+
+    public void testEqualityLookup()
+    {
+        assertSameMatches("(osgi.wiring.package=pkg3)", 4);
+        assertSameMatches("(osgi.wiring.package=missing)", 0);
+        assertSameMatches("(version=2.0.0)", 10);
+    }
+
+    public void testVersionRangeLookup()
+    {
+        assertSameMatches("(version>=2.0.0)", 21);
+        assertSameMatches("(version<=1.0.0)", 20);
+        assertSameMatches("(&(version>=1.0.0)(!(version>=3.0.0)))", 21);
+        assertSameMatches("(version>=invalid)", 0);
+    }
+
+    public void testPlannedFilters()
+    {
+        assertSameMatches(
+            "(&(osgi.wiring.package=pkg0)(version>=1.5.0)(!(version>=3.0.0)))", 2);
+        assertSameMatches(
+            "(&(osgi.wiring.package=pkg1)(version>=1.0.0))", 3);
+        assertSameMatches(
+            "(|(osgi.wiring.package=pkg1)(osgi.wiring.package=pkg2))", 9);
+        assertSameMatches(
+            "(|(osgi.wiring.package=pkg1)(!(version>=1.0.0)))", 14);
+        assertSameMatches("(osgi.wiring.package=pkg*)", 42);
+    }
+
+    public void testReuseFilterWithMixedTypes()
+    {
+        // The filter value is converted to the type of each attribute it
+        // is compared to, which must not leak between attribute types.
+        SimpleFilter sf = SimpleFilter.parse("(version=2.5.0)");
+        for (int i = 0; i < 2; i++)
+        {
+            assertEquals(1, m_unindexed.match(sf, true).size());
+        }
+        sf = SimpleFilter.parse("(version>=2.0.0)");
+        for (int i = 0; i < 2; i++)
+        {
+            assertEquals(21, m_unindexed.match(sf, true).size());
+        }
+    }
+
+    public void testRemoveCapability()
+    {
+        SimpleFilter sf = SimpleFilter.parse("(&(osgi.wiring.package=pkg0)(version>=2.0.0))");
+        for (BundleCapability cap : m_indexed.match(sf, true))
+        {
+            m_indexed.removeCapability(cap);
+            m_unindexed.removeCapability(cap);
+        }
+        assertSameMatches("(&(osgi.wiring.package=pkg0)(version>=2.0.0))", 0);
+        assertSameMatches("(version>=0.0.0)", 38);
+    }
+
+    public void testTypedGenericCapability()
+    {
+        // Generic namespaces are indexed on their namesake attribute, but a
+        // typed value like foo:Long=5 must still match the string (foo=5).
+        CapabilitySet indexed = new CapabilitySet(
+            Arrays.asList(new String[] { "foo" }), true);
+        CapabilitySet unindexed = new CapabilitySet(null, true);
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("foo", new Long(5));
+        BundleCapability typed = new BundleCapabilityImpl(
+            null, "foo", new HashMap<String, String>(), attrs);
+        attrs = new HashMap<String, Object>();
+        attrs.put("foo", "5");
+        BundleCapability string = new BundleCapabilityImpl(
+            null, "foo", new HashMap<String, String>(), attrs);
+        indexed.addCapability(typed);
+        indexed.addCapability(string);
+        unindexed.addCapability(typed);
+        unindexed.addCapability(string);
+
+        SimpleFilter sf = SimpleFilter.parse("(foo=5)");
+        assertEquals(2, indexed.match(sf, true).size());
+        assertEquals(unindexed.match(sf, true), indexed.match(sf, true));
+        sf = SimpleFilter.parse("(&(foo=5)(!(foo=6)))");
+        assertEquals(2, indexed.match(sf, true).size());
+        sf = SimpleFilter.parse("(|(foo=5)(bar=*))");
+        assertEquals(2, indexed.match(sf, true).size());
+        sf = SimpleFilter.parse("(foo=6)");
+        assertEquals(0, indexed.match(sf, true).size());
+
+        indexed.removeCapability(typed);
+        sf = SimpleFilter.parse("(foo=5)");
+        assertEquals(1, indexed.match(sf, true).size());
+    }
+}
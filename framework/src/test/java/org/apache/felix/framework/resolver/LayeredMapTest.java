@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.resolver;
+
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class LayeredMapTest extends TestCase
+{
+    public void testCopyIsIndependent()
+    {
+        LayeredMap<String, String> map = new LayeredMap<String, String>();
+        map.put("a", "1");
+        map.put("b", "2");
+        assertTrue(map.isOwned("a"));
+
+        LayeredMap<String, String> copy = map.copy();
+        assertFalse(map.isOwned("a"));
+        assertFalse(copy.isOwned("a"));
+        assertEquals("1", copy.get("a"));
+
+        copy.put("a", "3");
+        copy.remove("b");
+        map.put("c", "4");
+        assertTrue(copy.isOwned("a"));
+
+        assertEquals("1", map.get("a"));
+        assertEquals("2", map.get("b"));
+        assertEquals("4", map.get("c"));
+        assertEquals("3", copy.get("a"));
+        assertNull(copy.get("b"));
+        assertNull(copy.get("c"));
+
+        Map<String, String> entries = copy.toMap();
+        assertEquals(1, entries.size());
+        assertEquals("3", entries.get("a"));
+        assertEquals(3, map.toMap().size());
+    }
+
+    public void testDeepCopies()
+    {
+        LayeredMap<Integer, Integer> map = new LayeredMap<Integer, Integer>();
+        for (int i = 0; i < 100; i++)
+        {
+            map.put(i, i);
+        }
+        // Each copy removes one more entry than the map it was copied from.
+        for (int i = 0; i < 50; i++)
+        {
+            map = map.copy();
+            map.remove(i);
+            assertNull(map.get(i));
+            assertEquals(Integer.valueOf(i + 1), map.get(i + 1));
+            assertEquals(99 - i, map.toMap().size());
+        }
+    }
+}
@@ -29,11 +29,15 @@ import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
 import org.easymock.EasyMock;
+import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
@@ -154,6 +158,112 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireServiceEventToIndexedListeners() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+        final Bundle b2 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry);
+
+        final List fired = Collections.synchronizedList(new ArrayList());
+        AllServiceListener stringListener = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, stringListener,
+            new FilterImpl("(&(objectClass=java.lang.String)(foo=bar))"));
+        AllServiceListener integerListener = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, integerListener,
+            new FilterImpl("(objectClass=java.lang.Integer)"));
+        AllServiceListener anyListener = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b2.getBundleContext(), ServiceListener.class, anyListener,
+            new FilterImpl("(|(foo=bar)(objectClass=java.lang.Integer))"));
+
+        Hashtable props = new Hashtable();
+        props.put("foo", "bar");
+        ServiceReference sr = registry.registerService(b2.getBundleContext(),
+            new String [] {String.class.getName()}, "hello", props).getReference();
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(2, fired.size());
+        assertTrue(fired.contains(stringListener));
+        assertTrue(fired.contains(anyListener));
+
+        // Changing the filter must move the listener in the index.
+        fired.clear();
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, integerListener,
+            new FilterImpl("(objectClass=java.lang.String)"));
+        ed.removeListener(b1.getBundleContext(), ServiceListener.class, stringListener);
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(2, fired.size());
+        assertTrue(fired.contains(integerListener));
+        assertTrue(fired.contains(anyListener));
+
+        fired.clear();
+        ed.removeListeners(b1.getBundleContext());
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(1, fired.size());
+        assertTrue(fired.contains(anyListener));
+    }
+
+    public void testFireBundleEventInParallel()
+    {
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry, 2);
+        ed.startDispatching();
+
+        final Bundle b1 = getMockBundle();
+        final Bundle b2 = getMockBundle();
+        final List received1 = Collections.synchronizedList(new ArrayList());
+        final List received2 = Collections.synchronizedList(new ArrayList());
+        ed.addListener(b1.getBundleContext(), BundleListener.class, new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received1.add(event);
+            }
+        }, null);
+        ed.addListener(b2.getBundleContext(), BundleListener.class, new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received2.add(event);
+            }
+        }, null);
+
+        List fired = new ArrayList();
+        for (int i = 0; i < 100; i++)
+        {
+            BundleEvent event = new BundleEvent(BundleEvent.INSTALLED, b1);
+            fired.add(event);
+            ed.fireBundleEvent(event, null);
+        }
+
+        // Stopping delivers all pending events.
+        ed.stopDispatching();
+        assertEquals(fired, received1);
+        assertEquals(fired, received2);
+        assertEquals(0, ed.getQueueDepth());
+        assertTrue(ed.getMaxQueueDepth() > 0);
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
@@ -22,6 +22,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import junit.framework.TestCase;
@@ -94,4 +96,102 @@ public class WeakZipFileTest extends TestCase
             fail("Unable to read zip file entry: " + ex);
         }
     }
-}
\ No newline at end of file
+
+    public void testConcurrentReadsWithFileLimit() throws Exception
+    {
+        final int files = 8;
+        final int threads = 16;
+        final int iterations = 500;
+
+        // Create temporary zip files with distinct contents.
+        final byte[][] contents = new byte[files][];
+        File[] tmpZips = new File[files];
+        for (int i = 0; i < files; i++)
+        {
+            contents[i] = new byte[4096 + i];
+            for (int j = 0; j < contents[i].length; j++)
+            {
+                contents[i][j] = (byte) (((i + j) % 65) + 65);
+            }
+            tmpZips[i] = File.createTempFile("felix.test", ".zip");
+            tmpZips[i].deleteOnExit();
+            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tmpZips[i]));
+            zos.putNextEntry(new ZipEntry(ENTRY_NAME));
+            zos.write(contents[i], 0, contents[i].length);
+            zos.close();
+        }
+
+        // Only allow two open files, so most reads must reopen a file.
+        final WeakZipFileFactory factory = new WeakZipFileFactory(2);
+        final WeakZipFile[] zipFiles = new WeakZipFile[files];
+        for (int i = 0; i < files; i++)
+        {
+            zipFiles[i] = factory.create(tmpZips[i]);
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < iterations; i++)
+                        {
+                            int idx = (offset + i) % files;
+                            WeakZipFile zipFile = zipFiles[idx];
+                            InputStream is = zipFile.getInputStream(
+                                zipFile.getEntry(ENTRY_NAME));
+                            byte[] bytes = new byte[contents[idx].length];
+                            int n = 0;
+                            while (n < bytes.length)
+                            {
+                                int len = is.read(bytes, n, bytes.length - n);
+                                if (len < 0)
+                                {
+                                    throw new IllegalStateException(
+                                        "Unexpected end of zip file " + idx);
+                                }
+                                n += len;
+                            }
+                            is.close();
+                            if (!Arrays.equals(contents[idx], bytes))
+                            {
+                                throw new IllegalStateException(
+                                    "Unexpected content for zip file " + idx);
+                            }
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        failure[0] = th;
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        if (failure[0] != null)
+        {
+            fail(failure[0].toString());
+        }
+        assertTrue("Too many open zip files.", factory.getOpenZipZiles().size() <= 2);
+        for (int i = 0; i < files; i++)
+        {
+            zipFiles[i].close();
+        }
+        assertTrue(factory.getZipZiles().isEmpty());
+    }
+}